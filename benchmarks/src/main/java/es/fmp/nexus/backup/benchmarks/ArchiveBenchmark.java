@@ -0,0 +1,164 @@
+package es.fmp.nexus.backup.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.fmp.nexus.backup.blob.BlobArchiveWriter;
+import es.fmp.nexus.backup.blob.BlobBackupOptions;
+import es.fmp.nexus.backup.blob.BlobBackupRunner;
+import es.fmp.nexus.backup.blob.BlobStoreWalker;
+import es.fmp.nexus.backup.blob.ParallelDeflater;
+import es.fmp.nexus.backup.blob.ZipBlobArchiveWriter;
+
+/**
+ * Archiving a whole blob store: a plain {@link ZipOutputStream} copy (the way blob stores used to be archived) against
+ * the plugin's zip writer and the complete {@link BlobBackupRunner}. Besides backups per second, every benchmark reports
+ * {@code megabytes} and {@code files} archived per second.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@Fork(1)
+public class ArchiveBenchmark {
+
+    private static final double MIB = 1024 * 1024;
+
+    /**
+     * Archived data, reported as rates
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Throughput {
+        public double megabytes;
+
+        public long files;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            files = 0;
+        }
+
+        void add(final BlobStoreState store) {
+            megabytes += store.totalSize / MIB;
+            files += store.blobs * 2L;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ZipOutputStreamParams {
+        @Param({ "8192", "65536", "1048576" })
+        public int bufferSize;
+
+        @Param({ "0", "1", "6" })
+        public int level;
+    }
+
+    @State(Scope.Benchmark)
+    public static class WriterParams {
+        @Param({ "0", "1", "6" })
+        public int level;
+
+        @Param({ "1", "4", "0" })
+        public int threads;
+    }
+
+    @State(Scope.Benchmark)
+    public static class RunnerParams {
+        @Param({ "0", "6" })
+        public int level;
+
+        @Param({ "1", "2", "4", "8" })
+        public int parts;
+    }
+
+    @Benchmark
+    public void zipOutputStream(final BlobStoreState store, final ZipOutputStreamParams params, final Throughput throughput) throws IOException {
+        byte[] buffer = new byte[params.bufferSize];
+        Path root = store.blobStore;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(store.output.resolve("default.zip")),
+                params.bufferSize))) {
+            zip.setLevel(params.level);
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(root)) {
+                        zip.putNextEntry(new ZipEntry(root.relativize(dir).toString() + "/"));
+                        zip.closeEntry();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                    zip.putNextEntry(new ZipEntry(root.relativize(file).toString()));
+                    try (InputStream in = Files.newInputStream(file)) {
+                        copy(in, zip, buffer);
+                    }
+                    zip.closeEntry();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        throughput.add(store);
+    }
+
+    private static void copy(final InputStream in, final OutputStream out, final byte[] buffer) throws IOException {
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Plugin zip writer fed by the blob store walker, with compression on given number of threads (0 for all cores)
+     */
+    @Benchmark
+    public void zipBlobArchiveWriter(final BlobStoreState store, final WriterParams params, final Throughput throughput) throws IOException {
+        int threads = params.threads > 0 ? params.threads : Runtime.getRuntime().availableProcessors();
+        try (ParallelDeflater deflater = params.level > 0 ? new ParallelDeflater(params.level, threads, "bench") : null;
+                BlobArchiveWriter writer = new ZipBlobArchiveWriter(store.output.resolve("default.zip"), deflater)) {
+            new BlobStoreWalker(store.blobStore).walk(writer::write);
+            writer.finish();
+        }
+        throughput.add(store);
+    }
+
+    /**
+     * Complete blob store backup, split in given number of parts
+     */
+    @Benchmark
+    public void blobBackupRunner(final BlobStoreState store, final RunnerParams params, final Throughput throughput) throws Exception {
+        BlobBackupOptions options = new BlobBackupOptions();
+        options.setCompressionLevel(params.level);
+        options.setShards(params.parts);
+        new BlobBackupRunner(store.blobStore, store.output.resolve("default-bench.bak").toFile(), options, null).call();
+        throughput.add(store);
+    }
+}
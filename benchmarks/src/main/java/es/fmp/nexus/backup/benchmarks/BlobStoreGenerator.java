@@ -0,0 +1,241 @@
+package es.fmp.nexus.backup.benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates a synthetic file blob store with the layout Nexus uses: {@code content/vol-NN/chap-NN} directories holding
+ * {@code <blob id>.bytes} files along with their {@code <blob id>.properties}, plus the {@code metadata.properties} of
+ * the store. Blob sizes follow a log-uniform distribution between a minimum and a maximum size, so there are as many
+ * blobs of a few KB as of a few MB (like POMs and checksums next to jars), and a configurable fraction of blobs hold
+ * compressible text instead of random bytes. Generation is deterministic for a given seed.
+ *
+ */
+public class BlobStoreGenerator {
+
+    private static final int VOLUMES = 43;
+
+    private static final int CHAPTERS = 47;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final String[] REPOSITORIES = { "maven-releases", "maven-snapshots", "maven-central", "npm-proxy" };
+
+    private final long seed;
+
+    private int blobs = 1000;
+
+    private long minSize = 1024;
+
+    private long maxSize = 1024 * 1024;
+
+    private double compressible = 0.3;
+
+    public BlobStoreGenerator(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param blobs
+     *            number of blobs to generate
+     * @return this generator
+     */
+    public BlobStoreGenerator blobs(final int blobs) {
+        this.blobs = blobs;
+        return this;
+    }
+
+    /**
+     * @param minSize
+     *            smallest blob size in bytes
+     * @param maxSize
+     *            largest blob size in bytes
+     * @return this generator
+     */
+    public BlobStoreGenerator sizes(final long minSize, final long maxSize) {
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        return this;
+    }
+
+    /**
+     * @param compressible
+     *            fraction of blobs, from 0 to 1, holding text rather than random bytes
+     * @return this generator
+     */
+    public BlobStoreGenerator compressible(final double compressible) {
+        this.compressible = compressible;
+        return this;
+    }
+
+    /**
+     * Generates the blob store
+     *
+     * @param root
+     *            blob store directory, created if missing
+     * @return total size of generated blob content in bytes
+     * @throws IOException
+     *             if files cannot be written
+     */
+    public long generate(final Path root) throws IOException {
+        Random random = new Random(seed);
+        byte[] binary = new byte[CHUNK_SIZE];
+        random.nextBytes(binary);
+        byte[] text = text(random);
+        MessageDigest sha1 = sha1();
+
+        Files.createDirectories(root.resolve("content"));
+        writeString(root.resolve("metadata.properties"), "#" + new Date() + "\ntype=file/1\n");
+
+        long total = 0;
+        for (int i = 0; i < blobs; i++) {
+            String blobId = new UUID(random.nextLong(), random.nextLong()).toString();
+            int hash = Math.abs(blobId.hashCode() % (VOLUMES * CHAPTERS));
+            Path directory = root.resolve("content").resolve(String.format("vol-%02d", hash % VOLUMES + 1))
+                    .resolve(String.format("chap-%02d", hash / VOLUMES + 1));
+            Files.createDirectories(directory);
+
+            long size = size(random);
+            boolean textual = random.nextDouble() < compressible;
+            writeContent(directory.resolve(blobId + ".bytes"), size, textual ? text : binary, random.nextInt(CHUNK_SIZE), sha1);
+            String repository = REPOSITORIES[random.nextInt(REPOSITORIES.length)];
+            String name = String.format("org/example/artifact-%d/1.%d/artifact-%d-1.%d.%s", i % 97, i % 13, i % 97, i % 13, textual ? "pom" : "jar");
+            writeString(directory.resolve(blobId + ".properties"),
+                    String.format(Locale.ROOT,
+                            "#%s%n@BlobStore.created-by=admin%nsize=%d%n@Bucket.repo-name=%s%ncreationTime=%d%n@BlobStore.created-by-ip=127.0.0.1%n"
+                                    + "@BlobStore.content-type=%s%n@BlobStore.blob-name=%s%nsha1=%s%n",
+                            new Date(), size, repository, System.currentTimeMillis(), textual ? "application/xml" : "application/java-archive",
+                            name, hex(sha1.digest())));
+            total += size;
+        }
+        return total;
+    }
+
+    private long size(final Random random) {
+        if (minSize == maxSize) {
+            return minSize;
+        }
+        double low = Math.log(Math.max(1, minSize));
+        double high = Math.log(maxSize);
+        return Math.max(minSize, Math.min(maxSize, (long) Math.exp(low + random.nextDouble() * (high - low))));
+    }
+
+    private static byte[] text(final Random random) {
+        String[] words = { "<dependency>", "<groupId>", "org.example", "</groupId>", "<artifactId>", "</artifactId>", "<version>", "1.0.0",
+                "</version>", "<scope>", "test", "compile", "</scope>", "</dependency>", "\n", "    " };
+        byte[] text = new byte[CHUNK_SIZE];
+        int position = 0;
+        while (position < text.length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+            int length = Math.min(word.length, text.length - position);
+            System.arraycopy(word, 0, text, position, length);
+            position += length;
+        }
+        return text;
+    }
+
+    /**
+     * Writes size bytes taken cyclically from pattern, starting at offset so that blobs differ from each other
+     */
+    private static void writeContent(final Path file, final long size, final byte[] pattern, final int offset, final MessageDigest sha1)
+            throws IOException {
+        sha1.reset();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = size;
+            int position = offset;
+            while (remaining > 0) {
+                int length = (int) Math.min(remaining, pattern.length - position);
+                sha1.update(pattern, position, length);
+                ByteBuffer buffer = ByteBuffer.wrap(pattern, position, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                remaining -= length;
+                position = 0;
+            }
+        }
+    }
+
+    private static void writeString(final Path file, final String content) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            writer.write(content);
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Parses sizes like {@code 512}, {@code 64k}, {@code 10m} or {@code 2g}
+     *
+     * @param size
+     *            size with optional unit
+     * @return size in bytes
+     */
+    public static long parseSize(final String size) {
+        String value = size.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+        case 'k':
+            unit = 1024L;
+            break;
+        case 'm':
+            unit = 1024L * 1024;
+            break;
+        case 'g':
+            unit = 1024L * 1024 * 1024;
+            break;
+        default:
+            return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+    }
+
+    /**
+     * Generates a blob store from the command line
+     *
+     * @param args
+     *            {@code <directory> <blobs> <min size> <max size> [compressible fraction] [seed]}
+     * @throws IOException
+     *             if files cannot be written
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("usage: BlobStoreGenerator <directory> <blobs> <min size> <max size> [compressible fraction] [seed]");
+            System.exit(2);
+        }
+        BlobStoreGenerator generator = new BlobStoreGenerator(args.length > 5 ? Long.parseLong(args[5]) : 0).blobs(Integer.parseInt(args[1]))
+                .sizes(parseSize(args[2]), parseSize(args[3]));
+        if (args.length > 4) {
+            generator.compressible(Double.parseDouble(args[4]));
+        }
+        long total = generator.generate(Paths.get(args[0]));
+        System.out.printf("generated %s blobs, %d bytes, in %s%n", args[1], total, args[0]);
+    }
+}
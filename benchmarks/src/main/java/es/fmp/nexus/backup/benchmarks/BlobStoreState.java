@@ -0,0 +1,85 @@
+package es.fmp.nexus.backup.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic blob store generated once per trial, along with a scratch directory for backup files that is emptied after
+ * every invocation. Stores are generated below {@code java.io.tmpdir} unless the {@code benchmark.dir} system property
+ * points elsewhere (e.g. to the disk actually holding blob stores).
+ *
+ */
+@State(Scope.Benchmark)
+public class BlobStoreState {
+
+    @Param("2000")
+    public int blobs;
+
+    @Param("1k")
+    public String minSize;
+
+    @Param("4m")
+    public String maxSize;
+
+    @Param("0.3")
+    public double compressible;
+
+    Path directory;
+
+    Path blobStore;
+
+    Path output;
+
+    long totalSize;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        Path base = Paths.get(System.getProperty("benchmark.dir", System.getProperty("java.io.tmpdir")));
+        Files.createDirectories(base);
+        directory = Files.createTempDirectory(base, "blobbackup-bench");
+        blobStore = directory.resolve("blobs").resolve("default");
+        output = Files.createDirectories(directory.resolve("backup"));
+        totalSize = new BlobStoreGenerator(42).blobs(blobs).sizes(BlobStoreGenerator.parseSize(minSize), BlobStoreGenerator.parseSize(maxSize))
+                .compressible(compressible).generate(blobStore);
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws IOException {
+        delete(output, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        delete(directory, true);
+    }
+
+    private static void delete(final Path root, final boolean self) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                if (self || !dir.equals(root)) {
+                    Files.delete(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package es.fmp.nexus.backup.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import es.fmp.nexus.backup.blob.BlobStoreWalker;
+
+/**
+ * Listing a blob store along with the attributes of every file, the work done before any byte is archived. Run it with
+ * a large number of small blobs (e.g. {@code -p blobs=200000 -p maxSize=1k}) and a cold page cache to see the effect
+ * of the walk strategy on metadata I/O.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class WalkBenchmark {
+
+    @Benchmark
+    public void filesWalk(final BlobStoreState store, final Blackhole blackhole) throws IOException {
+        try (Stream<Path> paths = Files.walk(store.blobStore)) {
+            paths.forEach(path -> {
+                try {
+                    blackhole.consume(Files.readAttributes(path, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void walkFileTree(final BlobStoreState store, final Blackhole blackhole) throws IOException {
+        Files.walkFileTree(store.blobStore, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                blackhole.consume(attrs);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Sorted walk used by blob backups
+     */
+    @Benchmark
+    public void blobStoreWalker(final BlobStoreState store, final Blackhole blackhole) throws IOException {
+        new BlobStoreWalker(store.blobStore).walk(blackhole::consume);
+    }
+}
@@ -0,0 +1,261 @@
+package es.fmp.nexus.backup;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksum manifest of a backup file, stored next to it with {@link #EXTENSION} appended to its name. The manifest is
+ * in {@code sha256sum} format, so {@code sha256sum -c} checks it as well, with the size of the file and, for archives,
+ * the CRC and size of every entry in comment lines:
+ *
+ * <pre>
+ * # entry &lt;crc32 hex&gt; &lt;size&gt; &lt;entry name&gt;
+ * # size &lt;file size&gt;
+ * &lt;sha256 hex&gt;  &lt;file name&gt;
+ * </pre>
+ *
+ * The digest is computed by the writer of the backup file as it is written, entries are listed in archive order.
+ *
+ */
+public class BackupChecksums {
+
+    /**
+     * Extension of checksum manifests
+     */
+    public static final String EXTENSION = ".sha256";
+
+    private static final String ENTRY_PREFIX = "# entry ";
+
+    private static final String SIZE_PREFIX = "# size ";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final String fileName;
+
+    private final String sha256;
+
+    private final long size;
+
+    private final long entryCount;
+
+    /**
+     * Receiver of the entries listed in a manifest
+     */
+    public interface EntryVisitor {
+        void visit(String name, long crc, long size) throws IOException;
+    }
+
+    private BackupChecksums(final String fileName, final String sha256, final long size, final long entryCount) {
+        this.fileName = fileName;
+        this.sha256 = sha256;
+        this.size = size;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * @param file
+     *            backup file
+     * @return path of its checksum manifest
+     */
+    public static Path of(final Path file) {
+        return file.resolveSibling(file.getFileName() + EXTENSION);
+    }
+
+    /**
+     * @return new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @param digest
+     *            digest value
+     * @return lower case hexadecimal representation
+     */
+    public static String toHex(final byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads the summary of a manifest: file name, size, digest and number of entries
+     *
+     * @param manifest
+     *            checksum manifest
+     * @return manifest summary
+     * @throws IOException
+     *             if manifest cannot be read or is incomplete
+     */
+    public static BackupChecksums read(final Path manifest) throws IOException {
+        String sha256 = null;
+        String fileName = null;
+        long size = -1;
+        long entryCount = 0;
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(ENTRY_PREFIX)) {
+                    entryCount++;
+                } else if (line.startsWith(SIZE_PREFIX)) {
+                    size = Long.parseLong(line.substring(SIZE_PREFIX.length()));
+                } else if (!line.startsWith("#") && line.length() > 66 && line.charAt(64) == ' ') {
+                    sha256 = line.substring(0, 64);
+                    // "<hash>  <name>" in text mode, "<hash> *<name>" in binary mode
+                    fileName = line.substring(66);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid size in checksum manifest " + manifest, e);
+        }
+        if (sha256 == null || size < 0) {
+            throw new IOException("incomplete checksum manifest " + manifest);
+        }
+        return new BackupChecksums(fileName, sha256, size, entryCount);
+    }
+
+    /**
+     * Streams the entries listed in a manifest
+     *
+     * @param manifest
+     *            checksum manifest
+     * @param visitor
+     *            receiver of entries
+     * @throws IOException
+     *             if manifest cannot be read or visitor fails
+     */
+    public static void entries(final Path manifest, final EntryVisitor visitor) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(ENTRY_PREFIX)) {
+                    int crcEnd = line.indexOf(' ', ENTRY_PREFIX.length());
+                    int sizeEnd = line.indexOf(' ', crcEnd + 1);
+                    if (crcEnd < 0 || sizeEnd < 0) {
+                        throw new IOException("invalid entry line in checksum manifest " + manifest + ": " + line);
+                    }
+                    visitor.visit(line.substring(sizeEnd + 1), Long.parseLong(line.substring(ENTRY_PREFIX.length(), crcEnd), 16),
+                            Long.parseLong(line.substring(crcEnd + 1, sizeEnd)));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid entry line in checksum manifest " + manifest, e);
+        }
+    }
+
+    /**
+     * @return name of the file as recorded in the manifest
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return SHA-256 of the file, lower case hexadecimal
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return size of the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of archive entries listed, 0 if the file is not an archive
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Writes a manifest into a temporary file, moved in place on commit
+     */
+    public static class Writer implements Closeable {
+        private final Path manifest;
+
+        private final Path tmp;
+
+        private final java.io.Writer out;
+
+        private boolean committed;
+
+        /**
+         * @param manifest
+         *            checksum manifest to write
+         * @throws IOException
+         *             if temporary file cannot be created
+         */
+        public Writer(final Path manifest) throws IOException {
+            this.manifest = manifest;
+            this.tmp = manifest.resolveSibling(manifest.getFileName() + TMP_SUFFIX);
+            this.out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Records an archive entry
+         *
+         * @throws IOException
+         *             on write failure
+         */
+        public void entry(final String name, final long crc, final long size) throws IOException {
+            out.write(ENTRY_PREFIX);
+            out.write(String.format("%08x", crc));
+            out.write(' ');
+            out.write(Long.toString(size));
+            out.write(' ');
+            out.write(name);
+            out.write('\n');
+        }
+
+        /**
+         * Completes the manifest
+         *
+         * @param fileName
+         *            name of the backup file
+         * @param size
+         *            size of the backup file
+         * @param digest
+         *            SHA-256 of the backup file
+         * @throws IOException
+         *             on write failure
+         */
+        public void commit(final String fileName, final long size, final byte[] digest) throws IOException {
+            out.write(SIZE_PREFIX);
+            out.write(Long.toString(size));
+            out.write('\n');
+            out.write(toHex(digest));
+            out.write("  ");
+            out.write(fileName);
+            out.write('\n');
+            out.close();
+            Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (!committed) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
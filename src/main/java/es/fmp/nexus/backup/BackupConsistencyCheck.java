@@ -0,0 +1,199 @@
+package es.fmp.nexus.backup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.blob.BlobBackupIds;
+import es.fmp.nexus.backup.blob.BlobIdSet;
+import es.fmp.nexus.backup.db.DatabaseBackup;
+
+/**
+ * Checks the blob store backups of a run against the component database backed up along with them: every blob
+ * referenced by an asset must be in the backup of its blob store (or of a member, for group blob stores), otherwise
+ * restoring the run would give assets without content. Blobs no asset references (orphans) are reported too, though
+ * they are expected for soft deleted blobs the blob store was not compacted of yet.
+ * <p>
+ * Blob references are read from the database while it is frozen, so they match its backup, and blob IDs are read from
+ * the backups once they are complete. Both are kept in {@link BlobIdSet}s, one per blob store, so the check only needs
+ * a few hundred MiB of page cache for tens of millions of blobs, no heap.
+ *
+ */
+public class BackupConsistencyCheck implements Closeable {
+
+    private static final int MAX_REPORTED_BLOBS = 20;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path directory;
+
+    /**
+     * Blob IDs referenced by assets, by blob store name as found in the references
+     */
+    private final Map<String, BlobIdSet> references = new LinkedHashMap<>();
+
+    private long invalidReferences;
+
+    private volatile boolean referencesRead;
+
+    /**
+     * @param directory
+     *            directory the temporary files of the ID sets are created into
+     */
+    public BackupConsistencyCheck(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the blob references of every asset. Meant to run while databases are frozen
+     *
+     * @throws IOException
+     *             if references cannot be stored
+     */
+    public void readReferences(final DatabaseBackup databaseBackup) throws IOException {
+        long start = System.currentTimeMillis();
+        long assets;
+        try {
+            assets = databaseBackup.assetBlobRefs(blobRef -> {
+                try {
+                    addReference(blobRef);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long count = references.values().stream().mapToLong(BlobIdSet::size).sum();
+        log.info("{} blob references of {} assets read in {}", count, assets, DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"));
+        if (invalidReferences > 0) {
+            log.warn("{} asset blob references could not be parsed and are not checked", invalidReferences);
+        }
+        referencesRead = true;
+    }
+
+    private void addReference(final String blobRef) throws IOException {
+        // store@node:blob, or store:blob@node since Nexus 3.21
+        int at = blobRef.indexOf('@');
+        int colon = blobRef.indexOf(':');
+        if (colon <= 0) {
+            invalidReferences++;
+            return;
+        }
+        String store = blobRef.substring(0, at > 0 && at < colon ? at : colon);
+        String blobId = at > colon ? blobRef.substring(colon + 1, at) : blobRef.substring(colon + 1);
+        BlobIdSet ids = references.get(store);
+        if (ids == null) {
+            ids = new BlobIdSet(directory);
+            references.put(store, ids);
+        }
+        ids.add(blobId);
+    }
+
+    /**
+     * Compares the blob references read with the blobs of the backups of the run, logging missing and orphaned blobs
+     *
+     * @param backups
+     *            main archive or mirror directory of the backup of each blob store taken by the run, null for blob
+     *            stores without one
+     * @param groups
+     *            members of group blob stores, by group name
+     * @return number of referenced blobs missing from the backups
+     * @throws IOException
+     *             if ID sets cannot be written
+     */
+    public long check(final Map<String, Path> backups, final Map<String, List<String>> groups) throws IOException {
+        if (!referencesRead) {
+            log.warn("blob consistency check skipped, blob references could not be read from the component database");
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, BlobIdSet> backedUp = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Path> backup : backups.entrySet()) {
+                if (backup.getValue() == null) {
+                    continue;
+                }
+                BlobIdSet ids = new BlobIdSet(directory);
+                try {
+                    BlobBackupIds.collect(backup.getValue(), ids);
+                    backedUp.put(backup.getKey(), ids);
+                    log.debug("{} blobs in backup {}", ids.size(), backup.getValue());
+                } catch (IOException e) {
+                    ids.close();
+                    log.warn("blob store {} not checked, its backup {} cannot be read: {}", backup.getKey(), backup.getValue(), e.toString());
+                }
+            }
+
+            long missing = 0;
+            for (Map.Entry<String, BlobIdSet> referenced : references.entrySet()) {
+                List<String> members = groups.getOrDefault(referenced.getKey(), Collections.singletonList(referenced.getKey()));
+                List<BlobIdSet> candidates = new ArrayList<>();
+                members.stream().map(backedUp::get).forEach(candidates::add);
+                if (candidates.isEmpty() || candidates.contains(null)) {
+                    log.warn("{} blobs referenced in blob store {} not checked, blob store has no readable backup in this run", referenced.getValue().size(),
+                            referenced.getKey());
+                    continue;
+                }
+                List<String> examples = new ArrayList<>();
+                long[] count = new long[1];
+                referenced.getValue().forEach(id -> {
+                    if (candidates.stream().noneMatch(ids -> ids.contains(id))) {
+                        if (count[0]++ < MAX_REPORTED_BLOBS) {
+                            examples.add(id);
+                        }
+                    }
+                });
+                if (count[0] > 0) {
+                    log.error("{} of {} blobs referenced by assets in blob store {} are missing from its backup, e.g. {}", count[0],
+                            referenced.getValue().size(), referenced.getKey(), examples);
+                }
+                missing += count[0];
+            }
+
+            for (Map.Entry<String, BlobIdSet> backup : backedUp.entrySet()) {
+                List<String> examples = new ArrayList<>();
+                long[] count = new long[1];
+                backup.getValue().forEach(id -> {
+                    if (references.values().stream().noneMatch(ids -> ids.contains(id))) {
+                        if (count[0]++ < MAX_REPORTED_BLOBS) {
+                            examples.add(id);
+                        }
+                    }
+                });
+                if (count[0] > 0) {
+                    log.info("{} of {} blobs in backup of blob store {} are not referenced by any asset (including soft deleted blobs), e.g. {}", count[0],
+                            backup.getValue().size(), backup.getKey(), examples);
+                }
+            }
+            log.info("blob consistency check of {} blob store backups done in {}, {} referenced blobs missing", backedUp.size(),
+                    DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"), missing);
+            return missing;
+        } finally {
+            for (BlobIdSet ids : backedUp.values()) {
+                ids.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary files of the blob references
+     */
+    @Override
+    public void close() throws IOException {
+        for (BlobIdSet ids : references.values()) {
+            ids.close();
+        }
+        references.clear();
+    }
+}
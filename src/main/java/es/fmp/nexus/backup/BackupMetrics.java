@@ -0,0 +1,153 @@
+package es.fmp.nexus.backup;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.common.ComponentSupport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Backup metrics published in the Nexus metric registry (and therefore through JMX and the metrics endpoints), all of
+ * them named after {@link #PREFIX}:
+ * <ul>
+ * <li>{@code blob.bytes}, {@code blob.files}: blob store archiving throughput</li>
+ * <li>{@code blob.file}: latency of archiving a single blob store file</li>
+ * <li>{@code jobs.queued}, {@code jobs.running}: backup jobs waiting to run and running</li>
+ * <li>{@code freeze}, {@code freeze.last}: time databases are kept frozen</li>
+ * <li>{@code database.<name>}, {@code blobstore.<name>}: duration of every database and blob store backup</li>
+ * <li>{@code failures}: failed backup jobs</li>
+ * </ul>
+ *
+ */
+@Named
+@Singleton
+public class BackupMetrics extends ComponentSupport {
+
+    public static final String PREFIX = "es.fmp.nexus.backup";
+
+    private final MetricRegistry registry;
+
+    private final Meter bytes;
+
+    private final Meter files;
+
+    private final Timer fileLatency;
+
+    private final Timer freeze;
+
+    private final Counter failures;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicLong lastFreeze = new AtomicLong();
+
+    @Inject
+    public BackupMetrics(final MetricRegistry registry) {
+        this.registry = checkNotNull(registry);
+        this.bytes = registry.meter(name("blob", "bytes"));
+        this.files = registry.meter(name("blob", "files"));
+        this.fileLatency = registry.timer(name("blob", "file"));
+        this.freeze = registry.timer(name("freeze"));
+        this.failures = registry.counter(name("failures"));
+        register(name("jobs", "queued"), (Gauge<Integer>) queued::get);
+        register(name("jobs", "running"), (Gauge<Integer>) running::get);
+        register(name("freeze", "last"), (Gauge<Long>) lastFreeze::get);
+    }
+
+    private static String name(final String... names) {
+        return MetricRegistry.name(PREFIX, names);
+    }
+
+    private void register(final String name, final Metric metric) {
+        // registry outlives the plugin, a previous instance may have left its gauge behind
+        registry.remove(name);
+        registry.register(name, metric);
+    }
+
+    /**
+     * Records a blob store file added to an archive
+     *
+     * @param size
+     *            size of the file
+     * @param nanos
+     *            time taken to archive it
+     */
+    public void archived(final long size, final long nanos) {
+        bytes.mark(size);
+        files.mark();
+        fileLatency.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time databases were kept frozen
+     *
+     * @param millis
+     *            freeze duration
+     */
+    public void frozen(final long millis) {
+        freeze.update(millis, TimeUnit.MILLISECONDS);
+        lastFreeze.set(millis);
+    }
+
+    /**
+     * Records a failed backup job
+     */
+    public void failed() {
+        failures.inc();
+    }
+
+    /**
+     * Records a change in the number of jobs waiting to run
+     */
+    void queued(final int delta) {
+        queued.addAndGet(delta);
+    }
+
+    /**
+     * Records a change in the number of running jobs
+     */
+    void running(final int delta) {
+        running.addAndGet(delta);
+    }
+
+    /**
+     * @return job recording its duration as {@code database.<name>}
+     */
+    public <T> Callable<T> database(final String name, final Callable<T> job) {
+        return timed(registry.timer(name("database", name)), job);
+    }
+
+    /**
+     * @return job recording its duration as {@code blobstore.<name>}
+     */
+    public <T> Callable<T> blobStore(final String name, final Callable<T> job) {
+        return timed(registry.timer(name("blobstore", name)), job);
+    }
+
+    private static <T> Callable<T> timed(final Timer timer, final Callable<T> job) {
+        return () -> {
+            Timer.Context context = timer.time();
+            try {
+                return job.call();
+            } finally {
+                context.stop();
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package es.fmp.nexus.backup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination a backup file is streamed to instead of being written into the backup location, such as an object
+ * storage upload. What is written only becomes the backup file once {@link #commit()} is called: closing the output
+ * before discards it, so incomplete backups are never left behind.
+ *
+ */
+public abstract class BackupOutput extends OutputStream implements WritableByteChannel {
+
+    /**
+     * @return number of bytes written so far
+     */
+    public abstract long size();
+
+    /**
+     * Completes the backup file with the data written. Nothing can be written afterwards
+     *
+     * @throws IOException
+     *             if the backup file cannot be completed, in which case it is discarded
+     */
+    public abstract void commit() throws IOException;
+
+    @Override
+    public abstract void write(byte[] b, int off, int len) throws IOException;
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), n);
+            src.position(src.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(n, 64 * 1024)];
+            while (src.hasRemaining()) {
+                int length = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, length);
+                write(chunk, 0, length);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return stream writing into this output whose {@code close()} leaves it open, for writers that close the stream
+     *         they are given before the output is committed
+     */
+    public OutputStream unclosable() {
+        return new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                BackupOutput.this.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                BackupOutput.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // committed or discarded by the owner of the output
+            }
+        };
+    }
+}
@@ -0,0 +1,320 @@
+package es.fmp.nexus.backup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.blob.BlobArchiveIndex;
+import es.fmp.nexus.backup.blob.BlobRestoreRunner;
+import es.fmp.nexus.backup.blob.BlobStoreMirror;
+import es.fmp.nexus.backup.blob.DedupBlobArchiveWriter;
+import es.fmp.nexus.backup.blob.SyntheticFullBackup;
+
+/**
+ * Deletes old backups from a backup location, keeping the newest backup of each of the last N days, ISO weeks and
+ * months that have backups. All backups taken by a task run (database {@code .bak} files, blob store {@code .bak} files
+ * with their parts and blob store mirrors) share the timestamp of the run, so they are kept or deleted together and the
+ * database backups always stay paired with the blob store backups taken along with them. The newest run is always kept.
+ * <p>
+ * Incremental blob store backups depend on the previous backups of their chain. Those are either kept too or, with
+ * synthetic full backups enabled, the kept incremental backup is first merged with its chain into a full backup (see
+ * {@link SyntheticFullBackup}) so they can be deleted. The newest backup of each blob store is never deleted, as the
+ * next incremental backup is taken against it. Content of dedup backups no longer referenced is deleted last.
+ *
+ */
+public class BackupRetention {
+
+    private static final String BACKUP_EXTENSION = ".bak";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final int keepDaily;
+
+    private final int keepWeekly;
+
+    private final int keepMonthly;
+
+    private final boolean syntheticFull;
+
+    /**
+     * Backup file or mirror found in the backup location
+     */
+    private static class Backup {
+        private final Path path;
+
+        private final String name;
+
+        private final LocalDateTime timestamp;
+
+        Backup(final Path path, final String name, final LocalDateTime timestamp) {
+            this.path = path;
+            this.name = name;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param keepDaily
+     *            number of days to keep the newest backup of
+     * @param keepWeekly
+     *            number of weeks to keep the newest backup of
+     * @param keepMonthly
+     *            number of months to keep the newest backup of
+     * @param syntheticFull
+     *            whether incremental backups are turned into full ones instead of keeping the backups they depend on
+     */
+    public BackupRetention(final int keepDaily, final int keepWeekly, final int keepMonthly, final boolean syntheticFull) {
+        this.keepDaily = Math.max(0, keepDaily);
+        this.keepWeekly = Math.max(0, keepWeekly);
+        this.keepMonthly = Math.max(0, keepMonthly);
+        this.syntheticFull = syntheticFull;
+    }
+
+    /**
+     * @return whether any backup is ever deleted
+     */
+    public boolean isEnabled() {
+        return keepDaily > 0 || keepWeekly > 0 || keepMonthly > 0;
+    }
+
+    /**
+     * @param timestamps
+     *            timestamps of backup runs
+     * @return timestamps of the runs to keep
+     */
+    public Set<LocalDateTime> select(final Collection<LocalDateTime> timestamps) {
+        TreeSet<LocalDateTime> newestFirst = new TreeSet<>(Comparator.reverseOrder());
+        newestFirst.addAll(timestamps);
+        Set<LocalDateTime> kept = new HashSet<>();
+        if (!newestFirst.isEmpty()) {
+            kept.add(newestFirst.first());
+        }
+        keepNewest(newestFirst, keepDaily, LocalDateTime::toLocalDate, kept);
+        keepNewest(newestFirst, keepWeekly, ts -> ts.get(IsoFields.WEEK_BASED_YEAR) * 100 + ts.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), kept);
+        keepNewest(newestFirst, keepMonthly, ts -> ts.getYear() * 100 + ts.getMonthValue(), kept);
+        return kept;
+    }
+
+    private static void keepNewest(final Collection<LocalDateTime> newestFirst, final int periods, final Function<LocalDateTime, Object> period,
+            final Set<LocalDateTime> kept) {
+        Object last = null;
+        int count = 0;
+        for (LocalDateTime timestamp : newestFirst) {
+            Object current = period.apply(timestamp);
+            if (Objects.equals(current, last)) {
+                continue;
+            }
+            if (++count > periods) {
+                return;
+            }
+            kept.add(timestamp);
+            last = current;
+        }
+    }
+
+    /**
+     * Applies the policy to the backups of a location
+     *
+     * @param dbFolder
+     *            folder of database backups
+     * @param blobFolder
+     *            folder of blob store backups
+     * @param startedAt
+     *            start of the current run. Dedup content stored after it is never deleted
+     * @throws IOException
+     *             if backups cannot be listed, merged or deleted
+     */
+    public void apply(final Path dbFolder, final Path blobFolder, final LocalDateTime startedAt) throws IOException {
+        List<Backup> databases = listFiles(dbFolder);
+        List<Backup> blobs = listFiles(blobFolder);
+        List<Backup> mirrors = listMirrors(blobFolder);
+
+        Set<LocalDateTime> timestamps = new HashSet<>();
+        databases.forEach(backup -> timestamps.add(backup.timestamp));
+        blobs.forEach(backup -> timestamps.add(backup.timestamp));
+        mirrors.forEach(backup -> timestamps.add(backup.timestamp));
+        Set<LocalDateTime> kept = select(timestamps);
+        log.info("backup retention keeps {} of {} backup runs (daily: {}, weekly: {}, monthly: {})", kept.size(), timestamps.size(), keepDaily,
+                keepWeekly, keepMonthly);
+
+        Set<Path> keptBlobs = keepBlobChains(blobs, kept);
+
+        int deleted = 0;
+        for (Backup backup : databases) {
+            if (!kept.contains(backup.timestamp)) {
+                log.info("deleting database backup {}", backup.path.getFileName());
+                Files.delete(backup.path);
+                Files.deleteIfExists(BackupChecksums.of(backup.path));
+                deleted++;
+            }
+        }
+        for (Backup backup : blobs) {
+            if (!keptBlobs.contains(backup.path)) {
+                log.info("deleting blob store backup {}", backup.path.getFileName());
+                deleteWithParts(backup.path);
+                deleted++;
+            }
+        }
+        for (Backup backup : mirrors) {
+            if (!kept.contains(backup.timestamp)) {
+                log.info("deleting blob store mirror {}/{}", backup.name, backup.path.getFileName());
+                BlobStoreMirror.delete(backup.path);
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            long content = DedupBlobArchiveWriter.deleteUnreferenced(blobFolder, FileTime.from(startedAt.atZone(ZoneId.systemDefault()).toInstant()));
+            log.info("backup retention deleted {} backups and {} unreferenced blob content files", deleted, content);
+        }
+    }
+
+    /**
+     * @return blob store backups to keep: those of kept runs, the newest of each blob store and the backups their
+     *         incremental chains depend on unless they are merged into synthetic full backups
+     */
+    private Set<Path> keepBlobChains(final List<Backup> blobs, final Set<LocalDateTime> kept) throws IOException {
+        Map<String, List<Backup>> byStore = new HashMap<>();
+        blobs.forEach(backup -> byStore.computeIfAbsent(backup.name, name -> new ArrayList<>()).add(backup));
+
+        Set<Path> keptBlobs = new HashSet<>();
+        for (List<Backup> backups : byStore.values()) {
+            backups.sort(Comparator.comparing(backup -> backup.timestamp));
+            keptBlobs.add(backups.get(backups.size() - 1).path);
+            backups.stream().filter(backup -> kept.contains(backup.timestamp)).forEach(backup -> keptBlobs.add(backup.path));
+
+            // oldest first, so chains below a kept backup are already resolved when a newer one reaches it
+            for (Backup backup : backups) {
+                if (keptBlobs.contains(backup.path)) {
+                    keepChain(backup.path, keptBlobs);
+                }
+            }
+        }
+        return keptBlobs;
+    }
+
+    private void keepChain(final Path backupFile, final Set<Path> keptBlobs) throws IOException {
+        String previous = BlobRestoreRunner.previousBackup(backupFile);
+        if (previous == null || keptBlobs.contains(backupFile.resolveSibling(previous))) {
+            return;
+        }
+        if (syntheticFull) {
+            try {
+                new SyntheticFullBackup(backupFile).call();
+                return;
+            } catch (Exception e) {
+                log.warn("unable to turn {} into a full backup, keeping its incremental chain", backupFile.getFileName(), e);
+            }
+        }
+        Path archive = backupFile;
+        while (previous != null && keptBlobs.add(archive.resolveSibling(previous))) {
+            archive = archive.resolveSibling(previous);
+            previous = Files.isRegularFile(archive) ? BlobRestoreRunner.previousBackup(archive) : null;
+        }
+    }
+
+    /**
+     * Deletes a blob store backup along with its parts and the checksum manifests and indexes of all of them
+     */
+    private void deleteWithParts(final Path backupFile) throws IOException {
+        // parts distributed over other destinations, the ones next to the backup file are matched below
+        List<Path> listed;
+        try {
+            listed = BlobRestoreRunner.parts(backupFile);
+        } catch (IOException e) {
+            log.warn("unable to read parts of blob store backup {}, only deleting parts next to it: {}", backupFile.getFileName(), e.getMessage());
+            listed = new ArrayList<>();
+        }
+        for (Path part : listed) {
+            if (!part.getParent().equals(backupFile.getParent())) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(BackupChecksums.of(part));
+                Files.deleteIfExists(BlobArchiveIndex.of(part));
+            }
+        }
+        String prefix = backupFile.getFileName().toString() + ".part";
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(backupFile.getParent(), prefix + "*")) {
+            for (Path part : parts) {
+                Files.delete(part);
+            }
+        }
+        Files.delete(backupFile);
+        Files.deleteIfExists(BackupChecksums.of(backupFile));
+        Files.deleteIfExists(BlobArchiveIndex.of(backupFile));
+    }
+
+    /**
+     * @return backup files of a folder, named after what they back up
+     */
+    private List<Backup> listFiles(final Path folder) throws IOException {
+        List<Backup> backups = new ArrayList<>();
+        if (!Files.isDirectory(folder)) {
+            return backups;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + BACKUP_EXTENSION)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                String name = BlobRestoreRunner.blobStoreName(fileName);
+                LocalDateTime timestamp = parseTimestamp(BlobRestoreRunner.backupTimestamp(fileName));
+                if (name != null && timestamp != null && Files.isRegularFile(path)) {
+                    backups.add(new Backup(path, name, timestamp));
+                } else {
+                    log.debug("ignoring {}, not named as a backup", path);
+                }
+            }
+        }
+        return backups;
+    }
+
+    /**
+     * @return mirrors of every blob store mirrored into blob backup folder
+     */
+    private static List<Backup> listMirrors(final Path blobFolder) throws IOException {
+        List<Backup> backups = new ArrayList<>();
+        if (!Files.isDirectory(blobFolder)) {
+            return backups;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(blobFolder,
+                path -> Files.isDirectory(path) && !path.getFileName().toString().equals(DedupBlobArchiveWriter.CONTENT_STORE_DIR))) {
+            for (Path mirrorRoot : stream) {
+                for (Path mirror : BlobStoreMirror.mirrors(mirrorRoot)) {
+                    LocalDateTime timestamp = parseTimestamp(mirror.getFileName().toString());
+                    if (timestamp != null) {
+                        backups.add(new Backup(mirror, mirrorRoot.getFileName().toString(), timestamp));
+                    }
+                }
+            }
+        }
+        return backups;
+    }
+
+    private static LocalDateTime parseTimestamp(final String timestamp) {
+        if (timestamp == null) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(timestamp, BlobStoreMirror.TIMESTAMP_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package es.fmp.nexus.backup;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.goodies.common.MultipleFailures;
+
+/**
+ * Runs backup jobs ordered by priority (database jobs first) and then by estimated size, largest first, so the longest
+ * jobs do not start last. Besides a global concurrency limit, the number of jobs reading from or writing to the same
+ * device (file store) at the same time is limited, so concurrent jobs do not turn sequential transfers into seek storms.
+ *
+ */
+public class BackupScheduler {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final int maxConcurrent;
+
+    private final int maxPerDevice;
+
+    private final BackupMetrics metrics;
+
+    private final List<Job> jobs = new ArrayList<>();
+
+    private final Map<Path, Object> devices = new HashMap<>();
+
+    /**
+     * Backup job along with its scheduling attributes
+     */
+    public static class Job {
+        private final String name;
+
+        private final Callable<Void> callable;
+
+        private final boolean priority;
+
+        private final long size;
+
+        private final Set<Object> devices;
+
+        Job(final String name, final Callable<Void> callable, final boolean priority, final long size, final Set<Object> devices) {
+            this.name = name;
+            this.callable = callable;
+            this.priority = priority;
+            this.size = size;
+            this.devices = devices;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * @param maxConcurrent
+     *            maximum number of jobs running at the same time
+     * @param maxPerDevice
+     *            maximum number of running jobs using the same device, as source or as destination
+     * @param metrics
+     *            metrics queued, running and failed jobs are reported to
+     */
+    public BackupScheduler(final int maxConcurrent, final int maxPerDevice, final BackupMetrics metrics) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerDevice = Math.max(1, maxPerDevice);
+        this.metrics = checkNotNull(metrics);
+    }
+
+    /**
+     * Adds a job to be run
+     *
+     * @param name
+     *            job name for logging
+     * @param callable
+     *            job
+     * @param priority
+     *            whether job runs before non priority ones (e.g. database backups, that keep Nexus frozen)
+     * @param size
+     *            estimated number of bytes the job processes
+     * @param source
+     *            location the job reads from, null if unknown
+     * @param target
+     *            location the job writes to, null if unknown
+     * @return added job
+     */
+    public synchronized Job add(final String name, final Callable<Void> callable, final boolean priority, final long size, final Path source,
+            final Path target) {
+        Set<Object> jobDevices = new HashSet<>();
+        if (source != null) {
+            jobDevices.add(device(source));
+        }
+        if (target != null) {
+            jobDevices.add(device(target));
+        }
+        Job job = new Job(name, callable, priority, size, jobDevices);
+        jobs.add(job);
+        metrics.queued(1);
+        return job;
+    }
+
+    /**
+     * @return whether there are no jobs to run
+     */
+    public synchronized boolean isEmpty() {
+        return jobs.isEmpty();
+    }
+
+    /**
+     * Device a location lives in. Locations whose file store cannot be determined are considered their own device
+     */
+    private Object device(final Path location) {
+        return devices.computeIfAbsent(location.toAbsolutePath(), path -> {
+            Path existing = path;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            try {
+                if (existing != null) {
+                    FileStore store = Files.getFileStore(existing);
+                    log.debug("{} is on device {}", path, store);
+                    return store;
+                }
+            } catch (IOException e) {
+                log.debug("unable to determine device of {}: {}", path, e.toString());
+            }
+            return path;
+        });
+    }
+
+    /**
+     * Runs every added job, waiting for all of them to complete. Added jobs are removed
+     *
+     * @param executor
+     *            executor jobs are run on, must allow at least as many concurrent tasks as the concurrency limit
+     * @param failures
+     *            collector of job failures
+     * @throws InterruptedException
+     *             if interrupted while waiting for jobs
+     */
+    public void run(final ExecutorService executor, final MultipleFailures failures) throws InterruptedException {
+        List<Job> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(jobs);
+            jobs.clear();
+        }
+        pending.sort(Comparator.comparing((Job job) -> !job.priority).thenComparing(Comparator.comparingLong((Job job) -> job.size).reversed()));
+
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<Void>, Job> running = new HashMap<>();
+        Map<Object, Integer> busy = new HashMap<>();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                Iterator<Job> candidates = pending.iterator();
+                while (running.size() < maxConcurrent && candidates.hasNext()) {
+                    Job job = candidates.next();
+                    if (job.devices.stream().allMatch(device -> busy.getOrDefault(device, 0) < maxPerDevice)) {
+                        candidates.remove();
+                        job.devices.forEach(device -> busy.merge(device, 1, Integer::sum));
+                        log.info("backup job {} starting (estimated size: {} bytes)", job.name, job.size);
+                        running.put(completion.submit(job.callable), job);
+                        metrics.queued(-1);
+                        metrics.running(1);
+                    }
+                }
+
+                Future<Void> done = completion.take();
+                Job job = running.remove(done);
+                metrics.running(-1);
+                job.devices.forEach(device -> busy.merge(device, -1, Integer::sum));
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        // jobs left when the task is cancelled still run, to stop right away and clean up after themselves
+                        log.info("backup job {} cancelled", job.name);
+                        continue;
+                    }
+                    metrics.failed();
+                    if (e.getCause() != null) {
+                        failures.add(e.getCause()); // when cause is present, unwrapping to reduce log noise
+                    } else {
+                        failures.add(e);
+                    }
+                }
+            }
+        } finally {
+            // jobs left behind when interrupted
+            metrics.queued(-pending.size());
+            metrics.running(-running.size());
+        }
+    }
+}
@@ -3,6 +3,9 @@ package es.fmp.nexus.backup;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
 
 /*
  * Original version Sonatype DatabaseBackupTask: https://github.com/sonatype/nexus-public/blob/master/components/nexus-core/src/main/java/org/sonatype/nexus/internal/backup/DatabaseBackupTask.java
@@ -10,12 +13,13 @@ import java.io.File;
  */
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -25,6 +29,7 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.sonatype.goodies.common.MultipleFailures;
 import org.sonatype.goodies.i18n.I18N;
 import org.sonatype.goodies.i18n.MessageBundle;
@@ -33,16 +38,20 @@ import org.sonatype.nexus.orient.freeze.DatabaseFreezeService;
 import org.sonatype.nexus.orient.freeze.FreezeRequest;
 import org.sonatype.nexus.orient.freeze.FreezeRequest.InitiatorType;
 import org.sonatype.nexus.scheduling.Cancelable;
+import org.sonatype.nexus.scheduling.CancelableHelper;
 import org.sonatype.nexus.scheduling.TaskConfiguration;
 import org.sonatype.nexus.scheduling.TaskSupport;
 import org.sonatype.nexus.security.subject.FakeAlmightySubject;
 import org.sonatype.nexus.thread.NexusExecutorService;
 import org.sonatype.nexus.thread.NexusThreadFactory;
 
-import com.google.common.collect.Lists;
-
 import es.fmp.nexus.backup.blob.BlobBackup;
+import es.fmp.nexus.backup.blob.BlobBackupFormat;
+import es.fmp.nexus.backup.blob.BlobBackupOptions;
+import es.fmp.nexus.backup.blob.IoThrottle;
 import es.fmp.nexus.backup.db.DatabaseBackup;
+import es.fmp.nexus.backup.s3.S3Client;
+import es.fmp.nexus.backup.s3.S3Storage;
 
 /**
  * Task to backup both DBs and blobs.
@@ -54,24 +63,63 @@ public class BackupTask extends TaskSupport implements Cancelable {
 
     private static final int MAX_CONCURRENT_BACKUPS = 32;
 
-    private static final int MAX_QUEUED_BACKUPS = 2;
+    private static final long MIB = 1024 * 1024;
+
+    private static final String COMPONENT_DB = "component";
 
     private String location;
 
     private String cmd;
 
+    private String destinations;
+
+    private BlobBackupOptions blobBackupOptions;
+
+    private int jobsPerDevice;
+
+    private boolean dbDeferredCompression;
+
+    private long readLimit;
+
+    private long writeLimit;
+
+    private long iopsLimit;
+
+    private boolean adaptiveThrottle;
+
+    private BackupRetention retention;
+
+    private boolean consistencyCheck;
+
+    private String s3Endpoint;
+
+    private String s3Bucket;
+
+    private String s3Region;
+
+    private String s3AccessKey;
+
+    private String s3SecretKey;
+
+    private int s3PartSize;
+
+    private int s3Uploads;
+
     private final DatabaseBackup databaseBackup;
 
     private final BlobBackup blobBackup;
 
     private final DatabaseFreezeService freezeService;
 
+    private final BackupMetrics metrics;
+
     @Inject
     public BackupTask(final ApplicationDirectories applicationDirectories, final DatabaseBackup databaseBackup, final BlobBackup blobBackup,
-            final DatabaseFreezeService freezeService) {
+            final DatabaseFreezeService freezeService, final BackupMetrics metrics) {
         this.databaseBackup = checkNotNull(databaseBackup);
         this.blobBackup = checkNotNull(blobBackup);
         this.freezeService = checkNotNull(freezeService);
+        this.metrics = checkNotNull(metrics);
     }
 
     private interface Messages extends MessageBundle {
@@ -91,6 +139,57 @@ public class BackupTask extends TaskSupport implements Cancelable {
         super.configure(configuration);
         this.location = configuration.getString(BackupTaskDescriptor.BACKUP_LOCATION);
         this.cmd = configuration.getString(BackupTaskDescriptor.BLOB_BACKUP_CMD);
+        this.blobBackupOptions = new BlobBackupOptions();
+        blobBackupOptions.setFullBackupInterval(configuration.getInteger(BackupTaskDescriptor.FULL_BACKUP_INTERVAL, 0));
+        blobBackupOptions.setFormat(BlobBackupFormat.parse(configuration.getString(BackupTaskDescriptor.BLOB_BACKUP_FORMAT)));
+        blobBackupOptions.setShards(configuration.getInteger(BackupTaskDescriptor.BLOB_BACKUP_SHARDS, 1));
+        blobBackupOptions.setMaxPartSize(configuration.getInteger(BackupTaskDescriptor.MAX_PART_SIZE, 0) * MIB);
+        this.destinations = configuration.getString(BackupTaskDescriptor.BLOB_DESTINATIONS);
+        blobBackupOptions.setFetchThreads(configuration.getInteger(BackupTaskDescriptor.FETCH_THREADS, BackupTaskDescriptor.DEFAULT_FETCH_THREADS));
+        blobBackupOptions.setAdaptiveWorkers(configuration.getBoolean(BackupTaskDescriptor.ADAPTIVE_WORKERS, false));
+        blobBackupOptions.setSnapshot(configuration.getBoolean(BackupTaskDescriptor.BLOB_SNAPSHOT, false));
+        blobBackupOptions.setSkipDeleted(configuration.getBoolean(BackupTaskDescriptor.SKIP_DELETED, false));
+        blobBackupOptions.setCompressionLevel(configuration.getInteger(BackupTaskDescriptor.COMPRESSION_LEVEL, 0));
+        this.dbDeferredCompression = configuration.getBoolean(BackupTaskDescriptor.DB_DEFERRED_COMPRESSION, false);
+        this.jobsPerDevice = configuration.getInteger(BackupTaskDescriptor.JOBS_PER_DEVICE, BackupTaskDescriptor.DEFAULT_JOBS_PER_DEVICE);
+        this.readLimit = configuration.getInteger(BackupTaskDescriptor.READ_LIMIT, 0) * MIB;
+        this.writeLimit = configuration.getInteger(BackupTaskDescriptor.WRITE_LIMIT, 0) * MIB;
+        this.iopsLimit = configuration.getInteger(BackupTaskDescriptor.IOPS_LIMIT, 0);
+        this.adaptiveThrottle = configuration.getBoolean(BackupTaskDescriptor.ADAPTIVE_THROTTLE, false);
+        this.retention = new BackupRetention(configuration.getInteger(BackupTaskDescriptor.KEEP_DAILY, 0),
+                configuration.getInteger(BackupTaskDescriptor.KEEP_WEEKLY, 0), configuration.getInteger(BackupTaskDescriptor.KEEP_MONTHLY, 0),
+                configuration.getBoolean(BackupTaskDescriptor.SYNTHETIC_FULL, false));
+        this.consistencyCheck = configuration.getBoolean(BackupTaskDescriptor.CONSISTENCY_CHECK, false);
+        this.s3Endpoint = configuration.getString(BackupTaskDescriptor.S3_ENDPOINT);
+        this.s3Bucket = configuration.getString(BackupTaskDescriptor.S3_BUCKET);
+        this.s3Region = StringUtils.defaultIfBlank(configuration.getString(BackupTaskDescriptor.S3_REGION), BackupTaskDescriptor.DEFAULT_S3_REGION);
+        this.s3AccessKey = configuration.getString(BackupTaskDescriptor.S3_ACCESS_KEY);
+        this.s3SecretKey = configuration.getString(BackupTaskDescriptor.S3_SECRET_KEY);
+        this.s3PartSize = configuration.getInteger(BackupTaskDescriptor.S3_PART_SIZE, BackupTaskDescriptor.DEFAULT_S3_PART_SIZE);
+        this.s3Uploads = configuration.getInteger(BackupTaskDescriptor.S3_UPLOADS, BackupTaskDescriptor.DEFAULT_S3_UPLOADS);
+    }
+
+    /**
+     * @return object storage backup files are streamed to, null if backups are written into the backup location
+     */
+    private S3Storage createStorageIfConfigured() {
+        if (StringUtils.isBlank(s3Endpoint)) {
+            return null;
+        }
+        if (StringUtils.isAnyBlank(s3Bucket, s3AccessKey, s3SecretKey)) {
+            throw new RuntimeException("unable to perform backup task, object storage requires bucket, access key and secret key");
+        }
+        if (blobBackupOptions.getFormat() != BlobBackupFormat.ZIP && blobBackupOptions.getFormat() != BlobBackupFormat.PACK) {
+            throw new RuntimeException(
+                    String.format("unable to perform backup task, %s blob backup format cannot be streamed to object storage", blobBackupOptions.getFormat()));
+        }
+        String bucket = StringUtils.strip(s3Bucket.trim(), "/");
+        String prefix = StringUtils.substringAfter(bucket, "/");
+        bucket = StringUtils.substringBefore(bucket, "/");
+        // writers start, complete and commit uploads on their own connections, besides the ones uploading parts
+        S3Client client = new S3Client(URI.create(s3Endpoint.trim()), s3Region.trim(), bucket, s3AccessKey.trim(), s3SecretKey,
+                s3Uploads + MAX_CONCURRENT_BACKUPS);
+        return new S3Storage(client, prefix, (int) Math.min(Integer.MAX_VALUE, s3PartSize * MIB), s3Uploads);
     }
 
     private File createBackupDirIfMissing(String basePath, String name) {
@@ -111,36 +210,110 @@ public class BackupTask extends TaskSupport implements Cancelable {
 
     @Override
     protected Object execute() throws Exception {
-        List<Callable<Void>> jobs = Lists.newArrayList();
+        BackupScheduler jobs = new BackupScheduler(MAX_CONCURRENT_BACKUPS, jobsPerDevice, metrics);
+        // jobs compressing database exports and archiving blob store snapshots, run once databases are released
+        BackupScheduler archiveJobs = new BackupScheduler(MAX_CONCURRENT_BACKUPS, jobsPerDevice, metrics);
         final LocalDateTime timestamp = LocalDateTime.now();
+        // limits are shared by all blob backups of this run
+        blobBackupOptions.setThrottle(new IoThrottle(readLimit, writeLimit, iopsLimit, adaptiveThrottle));
+        blobBackupOptions.setMetrics(metrics);
+        blobBackupOptions.setCancellation(this::isCanceled);
         log.info("task named '{}' database and blob backup to location {}", getName(), location);
+        final S3Storage storage = createStorageIfConfigured();
+        blobBackupOptions.setStorage(storage);
+        if (storage != null) {
+            log.info("backup files are streamed to object storage {} bucket {}", s3Endpoint, s3Bucket);
+        }
+        try {
+            execute(timestamp, jobs, archiveJobs, storage);
+        } finally {
+            if (storage != null) {
+                storage.close();
+            }
+        }
+        return null;
+    }
+
+    private void execute(final LocalDateTime timestamp, final BackupScheduler jobs, final BackupScheduler archiveJobs, final S3Storage storage)
+            throws Exception {
 
         File blobBackupPath = createBackupDirIfMissing(location, "blob");
         File dbBackupPath = createBackupDirIfMissing(location, "db");
+        List<Path> blobDestinations = new ArrayList<>();
+        for (String destination : StringUtils.split(StringUtils.defaultString(destinations), ',')) {
+            if (StringUtils.isNotBlank(destination)) {
+                blobDestinations.add(createBackupDirIfMissing(destination.trim(), "blob").toPath());
+            }
+        }
+        blobBackupOptions.setDestinations(blobDestinations);
 
         MultipleFailures failures = new MultipleFailures();
 
+        BackupConsistencyCheck check = null;
+        if (consistencyCheck && !StringUtils.isEmpty(cmd)) {
+            log.warn("blob consistency check skipped, blob stores are backed up by an external command");
+        } else if (consistencyCheck && storage != null) {
+            log.warn("blob consistency check skipped, backups streamed to object storage cannot be read back");
+        } else if (consistencyCheck) {
+            check = new BackupConsistencyCheck(blobBackupPath.toPath());
+        }
+        try {
+            runBackups(timestamp, jobs, archiveJobs, storage, blobBackupPath, dbBackupPath, failures, check);
+        } finally {
+            if (check != null) {
+                check.close();
+            }
+        }
+    }
+
+    private void runBackups(final LocalDateTime timestamp, final BackupScheduler jobs, final BackupScheduler archiveJobs, final S3Storage storage,
+            final File blobBackupPath, final File dbBackupPath, final MultipleFailures failures, final BackupConsistencyCheck check) throws Exception {
+
         final FreezeRequest request = freezeService.requestFreeze(InitiatorType.SYSTEM, getConfiguration().getName());
         if (request == null) {
             throw new RuntimeException("unable to perform backup task, as attempt to freeze databases failed");
         }
+        long freezeStart = System.currentTimeMillis();
 
+        // streamed backup files do not load the device of the backup location
+        final Path dbTarget = storage == null ? dbBackupPath.toPath() : null;
+        final Path blobTarget = storage == null ? blobBackupPath.toPath() : null;
         for (String dbName : databaseBackup.dbNames()) {
             try {
                 log.info("database backup of {} starting", dbName);
-                Callable<Void> job = databaseBackup.fullBackup(dbBackupPath.getAbsolutePath(), dbName, timestamp);
-                jobs.add(job);
+                long size = databaseBackup.dbSize(dbName);
+                if (dbDeferredCompression) {
+                    Callable<Callable<Void>> export = metrics.database(dbName,
+                            databaseBackup.stagedBackup(dbBackupPath.getAbsolutePath(), dbName, timestamp, this::isCanceled, storage));
+                    // compression only involves the backup location, it runs once databases are released
+                    jobs.add("db " + dbName, () -> {
+                        archiveJobs.add("db compression " + dbName, export.call(), false, size, dbBackupPath.toPath(), dbTarget);
+                        return null;
+                    }, true, size, databaseBackup.dbDirectory(dbName).toPath(), dbBackupPath.toPath());
+                } else {
+                    Callable<Void> job = metrics.database(dbName,
+                            databaseBackup.fullBackup(dbBackupPath.getAbsolutePath(), dbName, timestamp, this::isCanceled, storage));
+                    jobs.add("db " + dbName, job, true, size, databaseBackup.dbDirectory(dbName).toPath(), dbTarget);
+                }
             } catch (Exception e) {
                 failures.add(new RuntimeException(String.format(
                         "database backup of %s to location: %s please check filesystem permissions and that the location exists", dbName, location), e));
             }
         }
 
+        if (check != null) {
+            // references are read while frozen, so they match the database backups
+            jobs.add("db blob references", () -> {
+                check.readReferences(databaseBackup);
+                return null;
+            }, true, databaseBackup.dbSize(COMPONENT_DB), databaseBackup.dbDirectory(COMPONENT_DB).toPath(), null);
+        }
+
         if (!StringUtils.isEmpty(cmd)) {
             try {
                 log.info("blobs backup with external cmd starting");
                 Callable<Void> job = blobBackup.externalBackup(cmd);
-                jobs.add(job);
+                jobs.add("blobs cmd", job, false, 0, null, null);
             } catch (Exception e) {
                     failures.add(new RuntimeException(
                             String.format("blobs backup with external cmd: %s please review external tool logs", cmd), e));
@@ -149,8 +322,22 @@ public class BackupTask extends TaskSupport implements Cancelable {
             for (String blobName : blobBackup.blobNames()) {
                 try {
                     log.info("blob backup of {} starting", blobName);
-                    Callable<Void> job = blobBackup.internalBackup(blobBackupPath.getAbsolutePath(), blobName, timestamp);
-                    jobs.add(job);
+                    Path blobStorePath = blobBackup.blobStorePath(blobName);
+                    long size = blobBackup.blobStoreSize(blobName);
+                    // other blob stores cannot be captured, they are backed up in full while databases are frozen
+                    if (blobBackupOptions.isSnapshot() && blobStorePath != null) {
+                        Callable<Callable<Void>> capture = blobBackup.snapshotBackup(blobBackupPath.getAbsolutePath(), blobName, timestamp,
+                                blobBackupOptions);
+                        // capture only works on the device of the blob store, archiving runs once databases are released
+                        jobs.add("blob snapshot " + blobName, () -> {
+                            archiveJobs.add("blob " + blobName, metrics.blobStore(blobName, capture.call()), false, size, blobStorePath, blobTarget);
+                            return null;
+                        }, false, size, blobStorePath, null);
+                    } else {
+                        Callable<Void> job = metrics.blobStore(blobName,
+                                blobBackup.internalBackup(blobBackupPath.getAbsolutePath(), blobName, timestamp, blobBackupOptions));
+                        jobs.add("blob " + blobName, job, false, size, blobStorePath, blobTarget);
+                    }
                 } catch (Exception e) {
                     if (StringUtils.isEmpty(cmd)) {
                         failures.add(new RuntimeException(String.format(
@@ -163,35 +350,79 @@ public class BackupTask extends TaskSupport implements Cancelable {
             }
         }
 
-        monitorBackupResults(jobs, failures);
-        if (!freezeService.releaseRequest(request)) {
-            failures.add(new RuntimeException("failed to automatically release read-only state; view the nodes screen to disable read-only mode."));
+        try {
+            monitorBackupResults(jobs, failures);
+        } finally {
+            if (!freezeService.releaseRequest(request)) {
+                failures.add(new RuntimeException("failed to automatically release read-only state; view the nodes screen to disable read-only mode."));
+            }
+            long frozen = System.currentTimeMillis() - freezeStart;
+            metrics.frozen(frozen);
+            log.info("databases were frozen for {}", DurationFormatUtils.formatDuration(frozen, "HH:mm:ss.S"));
         }
 
-        failures.maybePropagate();
-        return null;
+        if (!archiveJobs.isEmpty()) {
+            // run even when cancelled, so that snapshots and staging files are deleted
+            log.info("compressing database exports and archiving blob store snapshots");
+            monitorBackupResults(archiveJobs, failures);
+        }
 
-    }
+        if (isCanceled()) {
+            if (storage != null) {
+                log.warn("task named '{}' cancelled, backups streamed to object storage were discarded", getName());
+            } else {
+                log.warn("task named '{}' cancelled, next backup resumes cancelled blob store backups", getName());
+            }
+            failures.maybePropagate();
+            CancelableHelper.checkCancellation();
+        }
 
-    private void monitorBackupResults(final List<Callable<Void>> jobs, final MultipleFailures failures) throws InterruptedException {
-        ExecutorService executorService = makeExecutorService();
-        List<Future<Void>> futures = executorService.invokeAll(jobs);
-        executorService.shutdown();
-        for (Future<Void> future : futures) {
+        if (check != null) {
             try {
-                future.get();
-            } catch (ExecutionException e) {
-                if (e.getCause() != null) {
-                    failures.add(e.getCause()); // when cause is present, unwrapping to reduce log noise
-                } else {
-                    failures.add(e);
+                Map<String, Path> backups = new LinkedHashMap<>();
+                for (String blobName : blobBackup.blobNames()) {
+                    backups.put(blobName, blobBackup.backupPath(blobBackupPath.getAbsolutePath(), blobName, timestamp));
                 }
+                long missing = check.check(backups, blobBackup.blobStoreGroups());
+                if (missing > 0) {
+                    failures.add(new RuntimeException(
+                            String.format("%d blobs referenced by the component database are missing from blob store backups, see log for details", missing)));
+                }
+            } catch (IOException e) {
+                failures.add(new RuntimeException(String.format("blob consistency check in location: %s failed", location), e));
             }
         }
+
+        if (retention.isEnabled() && storage != null) {
+            log.warn("backup retention skipped, retention of backups in object storage is left to bucket lifecycle rules");
+        } else if (retention.isEnabled()) {
+            // a failed run must not push out the backups it was meant to replace
+            if (failures.isEmpty()) {
+                try {
+                    retention.apply(dbBackupPath.toPath(), blobBackupPath.toPath(), timestamp);
+                } catch (IOException e) {
+                    failures.add(new RuntimeException(String.format("backup retention in location: %s failed", location), e));
+                }
+            } else {
+                log.warn("backup retention skipped as some backups failed");
+            }
+        }
+
+        failures.maybePropagate();
+    }
+
+    private void monitorBackupResults(final BackupScheduler jobs, final MultipleFailures failures) throws InterruptedException {
+        ExecutorService executorService = makeExecutorService();
+        try {
+            jobs.run(executorService, failures);
+        } finally {
+            executorService.shutdown();
+        }
     }
 
     private ExecutorService makeExecutorService() {
-        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(MAX_QUEUED_BACKUPS);
+        // scheduler never submits more jobs than threads, queue is only a hand-off
+        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
         ThreadFactory factory = new NexusThreadFactory("dbbackup", "dbbackup");
         ThreadPoolExecutor backing = new ThreadPoolExecutor(MAX_CONCURRENT_BACKUPS, MAX_CONCURRENT_BACKUPS, 1, TimeUnit.NANOSECONDS, queue, factory);
         backing.allowCoreThreadTimeOut(true);
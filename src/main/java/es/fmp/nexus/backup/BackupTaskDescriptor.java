@@ -14,6 +14,9 @@ import javax.inject.Singleton;
 import org.sonatype.goodies.i18n.I18N;
 import org.sonatype.goodies.i18n.MessageBundle;
 import org.sonatype.nexus.common.node.NodeAccess;
+import org.sonatype.nexus.formfields.CheckboxFormField;
+import org.sonatype.nexus.formfields.NumberTextFormField;
+import org.sonatype.nexus.formfields.PasswordFormField;
 import org.sonatype.nexus.formfields.StringTextFormField;
 import org.sonatype.nexus.scheduling.TaskConfiguration;
 import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
@@ -36,6 +39,72 @@ public class BackupTaskDescriptor
 
   public static final String BLOB_BACKUP_CMD = "cmd";
 
+  public static final String FULL_BACKUP_INTERVAL = "fullBackupInterval";
+
+  public static final String BLOB_BACKUP_FORMAT = "format";
+
+  public static final String BLOB_BACKUP_SHARDS = "shards";
+
+  public static final String BLOB_DESTINATIONS = "destinations";
+
+  public static final String MAX_PART_SIZE = "maxPartSize";
+
+  public static final String FETCH_THREADS = "fetchThreads";
+
+  public static final int DEFAULT_FETCH_THREADS = 16;
+
+  public static final String ADAPTIVE_WORKERS = "adaptiveWorkers";
+
+  public static final String BLOB_SNAPSHOT = "snapshot";
+
+  public static final String DB_DEFERRED_COMPRESSION = "dbDeferredCompression";
+
+  public static final String SKIP_DELETED = "skipDeleted";
+
+  public static final String COMPRESSION_LEVEL = "compressionLevel";
+
+  public static final String JOBS_PER_DEVICE = "jobsPerDevice";
+
+  public static final int DEFAULT_JOBS_PER_DEVICE = 4;
+
+  public static final String READ_LIMIT = "readLimit";
+
+  public static final String WRITE_LIMIT = "writeLimit";
+
+  public static final String IOPS_LIMIT = "iopsLimit";
+
+  public static final String ADAPTIVE_THROTTLE = "adaptiveThrottle";
+
+  public static final String KEEP_DAILY = "keepDaily";
+
+  public static final String KEEP_WEEKLY = "keepWeekly";
+
+  public static final String KEEP_MONTHLY = "keepMonthly";
+
+  public static final String SYNTHETIC_FULL = "syntheticFull";
+
+  public static final String CONSISTENCY_CHECK = "consistencyCheck";
+
+  public static final String S3_ENDPOINT = "s3Endpoint";
+
+  public static final String S3_BUCKET = "s3Bucket";
+
+  public static final String S3_REGION = "s3Region";
+
+  public static final String DEFAULT_S3_REGION = "us-east-1";
+
+  public static final String S3_ACCESS_KEY = "s3AccessKey";
+
+  public static final String S3_SECRET_KEY = "s3SecretKey";
+
+  public static final String S3_PART_SIZE = "s3PartSize";
+
+  public static final int DEFAULT_S3_PART_SIZE = 16;
+
+  public static final String S3_UPLOADS = "s3Uploads";
+
+  public static final int DEFAULT_S3_UPLOADS = 8;
+
   private interface Messages
       extends MessageBundle
   {
@@ -53,6 +122,174 @@ public class BackupTaskDescriptor
 
     @DefaultMessage("If specified, provided system command is used to back up blobs instead of generating bak files")
     String cmdText();
+
+    @DefaultMessage("Full blob backup interval")
+    String fullBackupIntervalLabel();
+
+    @DefaultMessage("Number of runs between full blob store backups. Runs in between only archive files new or changed since previous backup. 0 always performs full backups")
+    String fullBackupIntervalText();
+
+    @DefaultMessage("Blob backup format")
+    String formatLabel();
+
+    @DefaultMessage("zip (default): one bak file per blob store. dedup: blob content is stored once in a content-addressed directory shared by all backups and bak files only keep the rest of files and an index. pack: like zip, but files of up to 16 KiB are batched into large compressed segments, for blob stores with millions of small files. mirror: plain copy of every blob store into a dated directory, unchanged files hard linked to the previous one")
+    String formatText();
+
+    @DefaultMessage("Blob backup parts")
+    String shardsLabel();
+
+    @DefaultMessage("Number of parts archived concurrently each blob store backup is split into (by content volume directory). 1 (default) archives every blob store into a single file")
+    String shardsText();
+
+    @DefaultMessage("Additional blob backup locations")
+    String destinationsLabel();
+
+    @DefaultMessage("Comma separated filesystem locations, e.g. on other disks, blob backup parts are distributed over round-robin along with the backup location. Main bak files, database backups and the dedup content store stay in the backup location")
+    String destinationsText();
+
+    @DefaultMessage("Maximum blob archive size (MiB)")
+    String maxPartSizeLabel();
+
+    @DefaultMessage("Blob archives roll over into a new numbered part once they reach this size (exceeded by the files being compressed when it is reached). 0 (default) for no limit")
+    String maxPartSizeText();
+
+    @DefaultMessage("Blob fetch threads")
+    String fetchThreadsLabel();
+
+    @DefaultMessage("Number of blobs fetched at the same time from blob stores that are not file based (e.g. S3), which are backed up through the blob store API and are limited by request latency rather than bandwidth. 16 by default")
+    String fetchThreadsText();
+
+    @DefaultMessage("Adaptive blob workers")
+    String adaptiveWorkersLabel();
+
+    @DefaultMessage("Tune the number of files copied at a time by mirrors and of blobs fetched at a time from non file based blob stores while they are backed up: it grows while throughput (bytes/s and files/s) grows and backs off when it stops growing or drops. The number reached is remembered per blob store for the next backup, which starts from it instead of the default (8 mirror threads, or as many as blob backup parts) or blob fetch threads")
+    String adaptiveWorkersText();
+
+    @DefaultMessage("Archive blobs after releasing databases")
+    String snapshotLabel();
+
+    @DefaultMessage("While databases are frozen only take a fast snapshot of each file blob store (hard links to blob content and copies of the rest of files), archiving it once Nexus is writable again. Other blob stores (e.g. S3) cannot be captured and are backed up in full while databases are frozen")
+    String snapshotText();
+
+    @DefaultMessage("Compress databases after releasing them")
+    String dbDeferredCompressionLabel();
+
+    @DefaultMessage("While databases are frozen only export them uncompressed into a staging file next to their backup file, compressing it once Nexus is writable again. Needs room for the uncompressed export of the largest databases")
+    String dbDeferredCompressionText();
+
+    @DefaultMessage("Skip deleted blobs")
+    String skipDeletedLabel();
+
+    @DefaultMessage("Leave out of blob backups the blobs soft-deleted by Nexus (deleted=true in their properties file) that a blob store compaction would remove, as well as temporary files")
+    String skipDeletedText();
+
+    @DefaultMessage("Blob compression level")
+    String compressionLevelLabel();
+
+    @DefaultMessage("Deflate level of archived blob files, from 1 (fastest) to 9 (smallest), compressed in parallel on all cores. Files that do not compress are still stored as is. 0 (default) stores every file uncompressed")
+    String compressionLevelText();
+
+    @DefaultMessage("Concurrent backups per disk")
+    String jobsPerDeviceLabel();
+
+    @DefaultMessage("Maximum number of database and blob store backups reading from or writing to the same disk at the same time. Backups run largest first, databases before blob stores. Use 1 or 2 for spinning disks")
+    String jobsPerDeviceText();
+
+    @DefaultMessage("Blob read limit (MiB/s)")
+    String readLimitLabel();
+
+    @DefaultMessage("Maximum bandwidth used by all blob backups together to read blob stores. 0 (default) for unlimited")
+    String readLimitText();
+
+    @DefaultMessage("Blob write limit (MiB/s)")
+    String writeLimitLabel();
+
+    @DefaultMessage("Maximum bandwidth used by all blob backups together to write backup files. 0 (default) for unlimited")
+    String writeLimitText();
+
+    @DefaultMessage("Blob file read limit (files/s)")
+    String iopsLimitLabel();
+
+    @DefaultMessage("Maximum number of blob store files read per second by all blob backups together. 0 (default) for unlimited")
+    String iopsLimitText();
+
+    @DefaultMessage("Adaptive blob read limit")
+    String adaptiveThrottleLabel();
+
+    @DefaultMessage("Slow down blob backups when blob store read latency rises (e.g. because Nexus is busy serving artifacts), recovering speed up to the configured limits once it drops")
+    String adaptiveThrottleText();
+
+    @DefaultMessage("Daily backups to keep")
+    String keepDailyLabel();
+
+    @DefaultMessage("Number of days to keep the newest backup of. Database and blob store backups taken by the same run are kept or deleted together, after a run without failures. 0 (default) for days, weeks and months never deletes backups")
+    String keepDailyText();
+
+    @DefaultMessage("Weekly backups to keep")
+    String keepWeeklyLabel();
+
+    @DefaultMessage("Number of weeks to keep the newest backup of. 0 (default) for none")
+    String keepWeeklyText();
+
+    @DefaultMessage("Monthly backups to keep")
+    String keepMonthlyLabel();
+
+    @DefaultMessage("Number of months to keep the newest backup of. 0 (default) for none")
+    String keepMonthlyText();
+
+    @DefaultMessage("Synthetic full blob backups")
+    String syntheticFullLabel();
+
+    @DefaultMessage("When retention deletes backups a kept incremental blob backup depends on, merge its chain into a full backup from the existing bak files instead of keeping them")
+    String syntheticFullText();
+
+    @DefaultMessage("Check blob references")
+    String consistencyCheckLabel();
+
+    @DefaultMessage("Once blob stores are backed up, check that every blob referenced by an asset of the component database is in the backup of its blob store, failing the backup otherwise, and report blobs referenced by no asset. Not available with an external blob store backup command or object storage")
+    String consistencyCheckText();
+
+    @DefaultMessage("Object storage endpoint")
+    String s3EndpointLabel();
+
+    @DefaultMessage("URL of an S3-compatible object storage (e.g. https://s3.eu-west-1.amazonaws.com or http://minio:9000) database and blob backup files are streamed to instead of being written into the backup location, which then only keeps blob store manifests. Requires zip or pack blob backup format; retention is left to bucket lifecycle rules")
+    String s3EndpointText();
+
+    @DefaultMessage("Object storage bucket")
+    String s3BucketLabel();
+
+    @DefaultMessage("Bucket backup files are uploaded to, optionally followed by a key prefix (e.g. backups/nexus). Files are stored under db/ and blob/ as in the backup location")
+    String s3BucketText();
+
+    @DefaultMessage("Object storage region")
+    String s3RegionLabel();
+
+    @DefaultMessage("Region requests are signed for. us-east-1 (default) suits most S3-compatible servers")
+    String s3RegionText();
+
+    @DefaultMessage("Object storage access key")
+    String s3AccessKeyLabel();
+
+    @DefaultMessage("Access key id of the object storage account")
+    String s3AccessKeyText();
+
+    @DefaultMessage("Object storage secret key")
+    String s3SecretKeyLabel();
+
+    @DefaultMessage("Secret access key of the object storage account")
+    String s3SecretKeyText();
+
+    @DefaultMessage("Upload part size (MiB)")
+    String s3PartSizeLabel();
+
+    @DefaultMessage("Size of the parts backup files are uploaded in, each held in memory until uploaded (at least 5). Doubles every 1000 parts, as an upload holds at most 10000 parts")
+    String s3PartSizeText();
+
+    @DefaultMessage("Concurrent part uploads")
+    String s3UploadsLabel();
+
+    @DefaultMessage("Number of parts uploaded at the same time by all backups. Backups wait when twice as many parts are waiting to be uploaded, which bounds memory use")
+    String s3UploadsText();
   }
 
   private static final Messages messages = I18N.create(Messages.class);
@@ -73,6 +310,176 @@ public class BackupTaskDescriptor
              messages.cmdText(),
              OPTIONAL
         ),
+        new NumberTextFormField(
+            FULL_BACKUP_INTERVAL,
+            messages.fullBackupIntervalLabel(),
+            messages.fullBackupIntervalText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new StringTextFormField(
+            BLOB_BACKUP_FORMAT,
+            messages.formatLabel(),
+            messages.formatText(),
+            OPTIONAL,
+            "^(zip|dedup|pack|mirror)$"
+        ),
+        new NumberTextFormField(
+            BLOB_BACKUP_SHARDS,
+            messages.shardsLabel(),
+            messages.shardsText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(1),
+        new StringTextFormField(
+            BLOB_DESTINATIONS,
+            messages.destinationsLabel(),
+            messages.destinationsText(),
+            OPTIONAL
+        ),
+        new NumberTextFormField(
+            MAX_PART_SIZE,
+            messages.maxPartSizeLabel(),
+            messages.maxPartSizeText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new NumberTextFormField(
+            FETCH_THREADS,
+            messages.fetchThreadsLabel(),
+            messages.fetchThreadsText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(DEFAULT_FETCH_THREADS),
+        new CheckboxFormField(
+            ADAPTIVE_WORKERS,
+            messages.adaptiveWorkersLabel(),
+            messages.adaptiveWorkersText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new CheckboxFormField(
+            BLOB_SNAPSHOT,
+            messages.snapshotLabel(),
+            messages.snapshotText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new CheckboxFormField(
+            DB_DEFERRED_COMPRESSION,
+            messages.dbDeferredCompressionLabel(),
+            messages.dbDeferredCompressionText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new CheckboxFormField(
+            SKIP_DELETED,
+            messages.skipDeletedLabel(),
+            messages.skipDeletedText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new NumberTextFormField(
+            COMPRESSION_LEVEL,
+            messages.compressionLevelLabel(),
+            messages.compressionLevelText(),
+            OPTIONAL
+        ).withMinimumValue(0).withMaximumValue(9).withInitialValue(0),
+        new NumberTextFormField(
+            JOBS_PER_DEVICE,
+            messages.jobsPerDeviceLabel(),
+            messages.jobsPerDeviceText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(DEFAULT_JOBS_PER_DEVICE),
+        new NumberTextFormField(
+            READ_LIMIT,
+            messages.readLimitLabel(),
+            messages.readLimitText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new NumberTextFormField(
+            WRITE_LIMIT,
+            messages.writeLimitLabel(),
+            messages.writeLimitText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new NumberTextFormField(
+            IOPS_LIMIT,
+            messages.iopsLimitLabel(),
+            messages.iopsLimitText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new CheckboxFormField(
+            ADAPTIVE_THROTTLE,
+            messages.adaptiveThrottleLabel(),
+            messages.adaptiveThrottleText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new NumberTextFormField(
+            KEEP_DAILY,
+            messages.keepDailyLabel(),
+            messages.keepDailyText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new NumberTextFormField(
+            KEEP_WEEKLY,
+            messages.keepWeeklyLabel(),
+            messages.keepWeeklyText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new NumberTextFormField(
+            KEEP_MONTHLY,
+            messages.keepMonthlyLabel(),
+            messages.keepMonthlyText(),
+            OPTIONAL
+        ).withMinimumValue(0).withInitialValue(0),
+        new CheckboxFormField(
+            SYNTHETIC_FULL,
+            messages.syntheticFullLabel(),
+            messages.syntheticFullText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new CheckboxFormField(
+            CONSISTENCY_CHECK,
+            messages.consistencyCheckLabel(),
+            messages.consistencyCheckText(),
+            OPTIONAL
+        ).withInitialValue(false),
+        new StringTextFormField(
+            S3_ENDPOINT,
+            messages.s3EndpointLabel(),
+            messages.s3EndpointText(),
+            OPTIONAL,
+            "^https?://.+$"
+        ),
+        new StringTextFormField(
+            S3_BUCKET,
+            messages.s3BucketLabel(),
+            messages.s3BucketText(),
+            OPTIONAL
+        ),
+        new StringTextFormField(
+            S3_REGION,
+            messages.s3RegionLabel(),
+            messages.s3RegionText(),
+            OPTIONAL
+        ),
+        new StringTextFormField(
+            S3_ACCESS_KEY,
+            messages.s3AccessKeyLabel(),
+            messages.s3AccessKeyText(),
+            OPTIONAL
+        ),
+        new PasswordFormField(
+            S3_SECRET_KEY,
+            messages.s3SecretKeyLabel(),
+            messages.s3SecretKeyText(),
+            OPTIONAL
+        ),
+        new NumberTextFormField(
+            S3_PART_SIZE,
+            messages.s3PartSizeLabel(),
+            messages.s3PartSizeText(),
+            OPTIONAL
+        ).withMinimumValue(5).withInitialValue(DEFAULT_S3_PART_SIZE),
+        new NumberTextFormField(
+            S3_UPLOADS,
+            messages.s3UploadsLabel(),
+            messages.s3UploadsText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(DEFAULT_S3_UPLOADS),
         nodeAccess.isClustered() ? newLimitNodeFormField() : null
     );
   }
@@ -0,0 +1,125 @@
+package es.fmp.nexus.backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.blob.ChannelZipReader;
+
+/**
+ * Checks a backup file against its {@link BackupChecksums} manifest: size first, then SHA-256 over a memory mapping of
+ * the file, so the check costs one sequential read. When the digest does not match and the manifest lists archive
+ * entries, each entry is checked against the central directory and its data CRC to report which ones are corrupted.
+ *
+ */
+public class BackupVerifier {
+
+    private static final long MAX_MAPPING = 1024 * 1024 * 1024;
+
+    private static final int MAX_REPORTED_ENTRIES = 20;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path file;
+
+    /**
+     * @param file
+     *            backup file, with its checksum manifest next to it
+     */
+    public BackupVerifier(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return size of the verified file
+     * @throws IOException
+     *             if the file does not match its manifest or cannot be read
+     */
+    public long verify() throws IOException {
+        Path manifest = BackupChecksums.of(file);
+        BackupChecksums checksums = BackupChecksums.read(manifest);
+        if (!Files.isRegularFile(file)) {
+            throw new IOException("backup file " + file + " is missing");
+        }
+        long size = Files.size(file);
+        if (size != checksums.getSize()) {
+            throw new IOException(String.format("backup file %s is corrupted: size %d, expected %d", file, size, checksums.getSize()));
+        }
+
+        MessageDigest digest = BackupChecksums.newDigest();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < size; offset += MAX_MAPPING) {
+                MappedByteBuffer mapping = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAX_MAPPING, size - offset));
+                digest.update(mapping);
+            }
+        }
+        String sha256 = BackupChecksums.toHex(digest.digest());
+        if (sha256.equals(checksums.getSha256())) {
+            log.debug("backup file {} verified", file);
+            return size;
+        }
+        throw new IOException(String.format("backup file %s is corrupted: SHA-256 %s, expected %s%s", file, sha256, checksums.getSha256(),
+                checksums.getEntryCount() > 0 ? describeEntries(manifest) : ""));
+    }
+
+    /**
+     * @return description of the archive entries that do not match the manifest
+     */
+    private String describeEntries(final Path manifest) {
+        List<String> corrupted = new ArrayList<>();
+        try (ChannelZipReader reader = new ChannelZipReader(file)) {
+            Map<String, ChannelZipReader.Entry> entries = new HashMap<>();
+            reader.entries(entry -> entries.put(entry.getName(), entry));
+            BackupChecksums.entries(manifest, (name, crc, size) -> {
+                ChannelZipReader.Entry entry = entries.get(name);
+                if (entry == null) {
+                    corrupted.add(name + " (missing)");
+                } else if (entry.getCrc() != crc || entry.getSize() != size) {
+                    corrupted.add(name + " (central directory)");
+                } else if (!entry.isDirectory() && !dataMatches(reader, entry)) {
+                    corrupted.add(name);
+                }
+            });
+        } catch (IOException e) {
+            return ", unable to check entries: " + e.getMessage();
+        }
+        if (corrupted.isEmpty()) {
+            return ", all entries match";
+        }
+        StringBuilder description = new StringBuilder(String.format(", %d corrupted entries: ", corrupted.size()));
+        description.append(String.join(", ", corrupted.subList(0, Math.min(MAX_REPORTED_ENTRIES, corrupted.size()))));
+        if (corrupted.size() > MAX_REPORTED_ENTRIES) {
+            description.append(", ...");
+        }
+        return description.toString();
+    }
+
+    private static boolean dataMatches(final ChannelZipReader reader, final ChannelZipReader.Entry entry) {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (InputStream in = reader.openStream(entry)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        return size == entry.getSize() && crc.getValue() == entry.getCrc();
+    }
+}
@@ -0,0 +1,175 @@
+package es.fmp.nexus.backup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Named;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.sonatype.goodies.common.MultipleFailures;
+import org.sonatype.goodies.i18n.I18N;
+import org.sonatype.goodies.i18n.MessageBundle;
+import org.sonatype.nexus.scheduling.Cancelable;
+import org.sonatype.nexus.scheduling.TaskConfiguration;
+import org.sonatype.nexus.scheduling.TaskSupport;
+import org.sonatype.nexus.security.subject.FakeAlmightySubject;
+import org.sonatype.nexus.thread.NexusExecutorService;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.google.common.collect.Lists;
+
+import es.fmp.nexus.backup.blob.BlobBackupRunner;
+import es.fmp.nexus.backup.blob.BlobRestoreRunner;
+
+/**
+ * Task to verify database and blob store backup files against their checksum manifests, many files at a time. Backup
+ * files without manifest (taken by previous versions) are skipped.
+ *
+ */
+@Named
+public class BackupVerifyTask extends TaskSupport implements Cancelable {
+
+    private static final String BACKUP_EXTENSION = ".bak";
+
+    private String location;
+
+    private String timestamp;
+
+    private int threads;
+
+    private interface Messages extends MessageBundle {
+        @DefaultMessage(BackupVerifyTaskDescriptor.MSG)
+        String message();
+    }
+
+    private static final Messages messages = I18N.create(Messages.class);
+
+    @Override
+    public String getMessage() {
+        return messages.message();
+    }
+
+    @Override
+    public void configure(final TaskConfiguration configuration) {
+        super.configure(configuration);
+        this.location = configuration.getString(BackupVerifyTaskDescriptor.BACKUP_LOCATION);
+        this.timestamp = configuration.getString(BackupVerifyTaskDescriptor.BACKUP_TIMESTAMP);
+        this.threads = configuration.getInteger(BackupVerifyTaskDescriptor.VERIFY_THREADS, BackupVerifyTaskDescriptor.DEFAULT_THREADS);
+    }
+
+    @Override
+    protected Object execute() throws Exception {
+        long start = System.currentTimeMillis();
+        log.info("task named '{}' verification of backups {} in location {}", getName(), StringUtils.isEmpty(timestamp) ? "" : "taken at " + timestamp,
+                location);
+
+        List<Path> files = Lists.newArrayList();
+        int unchecked = 0;
+        for (String folder : new String[] { "db", "blob" }) {
+            File path = new File(location, folder);
+            if (path.isDirectory()) {
+                unchecked += listBackupFiles(path.toPath(), files);
+            }
+        }
+        listDistributedParts(new File(location, "blob").toPath(), files);
+        if (files.isEmpty()) {
+            throw new RuntimeException(String.format("unable to perform verify task, no backups with checksums %s found in '%s'",
+                    StringUtils.isEmpty(timestamp) ? "" : "taken at " + timestamp, location));
+        }
+
+        AtomicLong verifiedSize = new AtomicLong();
+        List<Callable<Void>> jobs = Lists.newArrayList();
+        for (Path file : files) {
+            jobs.add(() -> {
+                verifiedSize.addAndGet(new BackupVerifier(file).verify());
+                return null;
+            });
+        }
+
+        MultipleFailures failures = new MultipleFailures();
+        ExecutorService executorService = makeExecutorService();
+        List<Future<Void>> futures = executorService.invokeAll(jobs);
+        executorService.shutdown();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                log.error("{}", e.getCause() != null ? e.getCause().getMessage() : e.toString());
+                failures.add(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+
+        long elapsedTime = Math.max(1, System.currentTimeMillis() - start);
+        log.info("verification of {} backup files finished in {}: {} verified ({}/s), {} corrupted, {} without checksums", files.size(),
+                DurationFormatUtils.formatDuration(elapsedTime, "HH:mm:ss.S"), BlobBackupRunner.humanReadableByteCountBin(verifiedSize.get()),
+                BlobBackupRunner.humanReadableByteCountBin(verifiedSize.get() * 1000 / elapsedTime), failures.size(), unchecked);
+        failures.maybePropagate();
+        return null;
+    }
+
+    /**
+     * Collects the backup files (and parts) of a folder that have a checksum manifest
+     *
+     * @return number of backup files without manifest
+     */
+    private int listBackupFiles(final Path folder, final List<Path> files) throws IOException {
+        int unchecked = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder,
+                path -> Files.isRegularFile(path) && (StringUtils.isEmpty(timestamp) || path.getFileName().toString().contains("-" + timestamp + "-")))) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(BackupChecksums.EXTENSION)) {
+                    files.add(path.resolveSibling(name.substring(0, name.length() - BackupChecksums.EXTENSION.length())));
+                } else if (name.endsWith(BACKUP_EXTENSION) && !Files.exists(BackupChecksums.of(path))) {
+                    unchecked++;
+                }
+            }
+        }
+        return unchecked;
+    }
+
+    /**
+     * Collects the parts of blob store backups that were distributed over other destinations and have a checksum
+     * manifest. Backups whose part list cannot be read are left to their own verification
+     */
+    private void listDistributedParts(final Path folder, final List<Path> files) {
+        List<Path> listed = Lists.newArrayList();
+        for (Path file : files) {
+            if (!file.getParent().equals(folder) || !file.getFileName().toString().endsWith(BACKUP_EXTENSION)) {
+                continue;
+            }
+            try {
+                for (Path part : BlobRestoreRunner.parts(file)) {
+                    if (!part.getParent().equals(folder) && Files.exists(BackupChecksums.of(part))) {
+                        listed.add(part);
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("unable to read parts of {}: {}", file, e.getMessage());
+            }
+        }
+        files.addAll(listed);
+    }
+
+    private ExecutorService makeExecutorService() {
+        int poolSize = Math.max(1, threads);
+        ThreadFactory factory = new NexusThreadFactory("backupverify", "backupverify");
+        ThreadPoolExecutor backing = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<>(), factory);
+        backing.allowCoreThreadTimeOut(true);
+        return NexusExecutorService.forFixedSubject(backing, FakeAlmightySubject.TASK_SUBJECT);
+    }
+}
@@ -0,0 +1,98 @@
+package es.fmp.nexus.backup;
+
+import static org.sonatype.nexus.formfields.FormField.MANDATORY;
+import static org.sonatype.nexus.formfields.FormField.OPTIONAL;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.i18n.I18N;
+import org.sonatype.goodies.i18n.MessageBundle;
+import org.sonatype.nexus.common.node.NodeAccess;
+import org.sonatype.nexus.formfields.NumberTextFormField;
+import org.sonatype.nexus.formfields.StringTextFormField;
+import org.sonatype.nexus.scheduling.TaskConfiguration;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+/**
+ * {@link BackupVerifyTask} descriptor.
+ *
+ */
+@Named
+@Singleton
+public class BackupVerifyTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String MSG = "Admin - Verify database and blob backups";
+
+  public static final String TYPE_ID = "backupverify";
+
+  public static final String BACKUP_LOCATION = BackupTaskDescriptor.BACKUP_LOCATION;
+
+  public static final String BACKUP_TIMESTAMP = "timestamp";
+
+  public static final String VERIFY_THREADS = "threads";
+
+  public static final int DEFAULT_THREADS = 4;
+
+  private interface Messages
+      extends MessageBundle
+  {
+    @DefaultMessage(MSG)
+    String name();
+
+    @DefaultMessage("Backup location")
+    String locationLabel();
+
+    @DefaultMessage("Filesystem location of backup data, as configured in the backup task")
+    String locationHelpText();
+
+    @DefaultMessage("Backup timestamp")
+    String timestampLabel();
+
+    @DefaultMessage("Timestamp of the backup to verify as it appears in bak file names (e.g. 2019-12-14-00-00-00). Empty verifies every backup in the location")
+    String timestampText();
+
+    @DefaultMessage("Verify threads")
+    String threadsLabel();
+
+    @DefaultMessage("Number of backup files verified at the same time")
+    String threadsText();
+  }
+
+  private static final Messages messages = I18N.create(Messages.class);
+
+  @Inject
+  public BackupVerifyTaskDescriptor(final NodeAccess nodeAccess)
+  {
+    super(TYPE_ID, BackupVerifyTask.class, messages.name(), VISIBLE, EXPOSED,
+        new StringTextFormField(
+            BACKUP_LOCATION,
+            messages.locationLabel(),
+            messages.locationHelpText(),
+            MANDATORY
+        ),
+        new StringTextFormField(
+            BACKUP_TIMESTAMP,
+            messages.timestampLabel(),
+            messages.timestampText(),
+            OPTIONAL,
+            "^\\d{4}(-\\d{2}){5}$"
+        ),
+        new NumberTextFormField(
+            VERIFY_THREADS,
+            messages.threadsLabel(),
+            messages.threadsText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(DEFAULT_THREADS),
+        nodeAccess.isClustered() ? newLimitNodeFormField() : null
+    );
+  }
+
+  @Override
+  public void initializeConfiguration(final TaskConfiguration configuration) {
+    // cover upgrade from non-HA to HA: task will warn until a node is chosen
+    configuration.setString(LIMIT_NODE_KEY, "");
+  }
+}
@@ -0,0 +1,173 @@
+package es.fmp.nexus.backup;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.sonatype.goodies.common.MultipleFailures;
+import org.sonatype.goodies.i18n.I18N;
+import org.sonatype.goodies.i18n.MessageBundle;
+import org.sonatype.nexus.scheduling.Cancelable;
+import org.sonatype.nexus.scheduling.TaskConfiguration;
+import org.sonatype.nexus.scheduling.TaskSupport;
+import org.sonatype.nexus.security.subject.FakeAlmightySubject;
+import org.sonatype.nexus.thread.NexusExecutorService;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.google.common.collect.Lists;
+
+import es.fmp.nexus.backup.blob.BlobRestore;
+import es.fmp.nexus.backup.blob.BlobRestoreRunner;
+
+/**
+ * Task to restore blob stores from the bak files of a backup. Each blob store is restored into its own directory under
+ * the restore location, live blob stores are not modified. When blob IDs are given only those blobs are restored,
+ * looked up in the backups of every blob store.
+ *
+ */
+@Named
+public class BlobRestoreTask extends TaskSupport implements Cancelable {
+
+    private String location;
+
+    private String timestamp;
+
+    private String target;
+
+    private int threads;
+
+    private int stores;
+
+    private Set<String> blobIds;
+
+    private final BlobRestore blobRestore;
+
+    @Inject
+    public BlobRestoreTask(final BlobRestore blobRestore) {
+        this.blobRestore = checkNotNull(blobRestore);
+    }
+
+    private interface Messages extends MessageBundle {
+        @DefaultMessage(BlobRestoreTaskDescriptor.MSG)
+        String message();
+    }
+
+    private static final Messages messages = I18N.create(Messages.class);
+
+    @Override
+    public String getMessage() {
+        return messages.message();
+    }
+
+    @Override
+    public void configure(final TaskConfiguration configuration) {
+        super.configure(configuration);
+        this.location = configuration.getString(BlobRestoreTaskDescriptor.BACKUP_LOCATION);
+        this.timestamp = configuration.getString(BlobRestoreTaskDescriptor.BACKUP_TIMESTAMP);
+        this.target = configuration.getString(BlobRestoreTaskDescriptor.RESTORE_LOCATION);
+        this.threads = configuration.getInteger(BlobRestoreTaskDescriptor.RESTORE_THREADS, BlobRestoreRunner.DEFAULT_THREADS);
+        this.stores = configuration.getInteger(BlobRestoreTaskDescriptor.CONCURRENT_STORES, 1);
+        String ids = configuration.getString(BlobRestoreTaskDescriptor.BLOB_IDS);
+        this.blobIds = ids == null || ids.trim().isEmpty() ? null : new LinkedHashSet<>(Arrays.asList(ids.trim().split("[\\s,]+")));
+    }
+
+    @Override
+    protected Object execute() throws Exception {
+        log.info("task named '{}' restore of blobs backed up at {} from location {} into {}", getName(), timestamp, location, target);
+
+        File blobBackupPath = new File(location, "blob");
+        if (!blobBackupPath.isDirectory()) {
+            throw new RuntimeException(String.format("unable to perform restore task, blob backup location '%s' is not a directory", blobBackupPath));
+        }
+        List<String> backupFiles = blobRestore.backupFiles(blobBackupPath.getAbsolutePath(), timestamp);
+        if (backupFiles.isEmpty()) {
+            throw new RuntimeException(String.format("unable to perform restore task, no blob backups taken at %s found in '%s'", timestamp, blobBackupPath));
+        }
+
+        if (blobIds != null) {
+            restoreBlobs(blobBackupPath, backupFiles);
+            return null;
+        }
+
+        List<Callable<Void>> jobs = Lists.newArrayList();
+        MultipleFailures failures = new MultipleFailures();
+        for (String backupFile : backupFiles) {
+            try {
+                jobs.add(blobRestore.restore(blobBackupPath.getAbsolutePath(), backupFile, target, threads));
+            } catch (Exception e) {
+                failures.add(new RuntimeException(String.format("blob restore of %s to location: %s please check filesystem permissions", backupFile, target), e));
+            }
+        }
+
+        ExecutorService executorService = makeExecutorService();
+        List<Future<Void>> futures = executorService.invokeAll(jobs);
+        executorService.shutdown();
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failures.add(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+
+        failures.maybePropagate();
+        return null;
+    }
+
+    /**
+     * Restores the configured blobs from the backup of every blob store, failing if some are in none of them
+     */
+    private void restoreBlobs(final File blobBackupPath, final List<String> backupFiles) throws Exception {
+        List<Callable<Set<String>>> jobs = Lists.newArrayList();
+        MultipleFailures failures = new MultipleFailures();
+        for (String backupFile : backupFiles) {
+            try {
+                jobs.add(blobRestore.restoreBlobs(blobBackupPath.getAbsolutePath(), backupFile, target, blobIds));
+            } catch (Exception e) {
+                failures.add(new RuntimeException(String.format("blob restore of %s to location: %s please check filesystem permissions", backupFile, target), e));
+            }
+        }
+
+        Set<String> notFound = new HashSet<>(blobIds);
+        ExecutorService executorService = makeExecutorService();
+        List<Future<Set<String>>> futures = executorService.invokeAll(jobs);
+        executorService.shutdown();
+        for (Future<Set<String>> future : futures) {
+            try {
+                notFound.removeAll(future.get());
+            } catch (ExecutionException e) {
+                failures.add(e.getCause() != null ? e.getCause() : e);
+            }
+        }
+        if (!notFound.isEmpty()) {
+            failures.add(new RuntimeException(String.format("%d of %d blobs not found in blob backups taken at %s: %s", notFound.size(), blobIds.size(),
+                    timestamp, notFound)));
+        }
+
+        failures.maybePropagate();
+    }
+
+    private ExecutorService makeExecutorService() {
+        int poolSize = Math.max(1, stores);
+        ThreadFactory factory = new NexusThreadFactory("blobrestore", "blobrestore");
+        ThreadPoolExecutor backing = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<>(), factory);
+        backing.allowCoreThreadTimeOut(true);
+        return NexusExecutorService.forFixedSubject(backing, FakeAlmightySubject.TASK_SUBJECT);
+    }
+}
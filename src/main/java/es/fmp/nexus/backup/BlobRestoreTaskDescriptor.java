@@ -0,0 +1,140 @@
+package es.fmp.nexus.backup;
+
+import static org.sonatype.nexus.formfields.FormField.MANDATORY;
+import static org.sonatype.nexus.formfields.FormField.OPTIONAL;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.i18n.I18N;
+import org.sonatype.goodies.i18n.MessageBundle;
+import org.sonatype.nexus.common.node.NodeAccess;
+import org.sonatype.nexus.formfields.NumberTextFormField;
+import org.sonatype.nexus.formfields.StringTextFormField;
+import org.sonatype.nexus.scheduling.TaskConfiguration;
+import org.sonatype.nexus.scheduling.TaskDescriptorSupport;
+
+import es.fmp.nexus.backup.blob.BlobRestoreRunner;
+
+/**
+ * {@link BlobRestoreTask} descriptor.
+ *
+ */
+@Named
+@Singleton
+public class BlobRestoreTaskDescriptor
+    extends TaskDescriptorSupport
+{
+  public static final String MSG = "Admin - Restore blob stores from backup";
+
+  public static final String TYPE_ID = "blobrestore";
+
+  public static final String BACKUP_LOCATION = BackupTaskDescriptor.BACKUP_LOCATION;
+
+  public static final String BACKUP_TIMESTAMP = "timestamp";
+
+  public static final String RESTORE_LOCATION = "target";
+
+  public static final String RESTORE_THREADS = "threads";
+
+  public static final String CONCURRENT_STORES = "stores";
+
+  public static final String BLOB_IDS = "blobIds";
+
+  private interface Messages
+      extends MessageBundle
+  {
+    @DefaultMessage(MSG)
+    String name();
+
+    @DefaultMessage("Backup location")
+    String locationLabel();
+
+    @DefaultMessage("Filesystem location of backup data, as configured in the backup task")
+    String locationHelpText();
+
+    @DefaultMessage("Backup timestamp")
+    String timestampLabel();
+
+    @DefaultMessage("Timestamp of the backup to restore as it appears in bak file names (e.g. 2019-12-14-00-00-00)")
+    String timestampText();
+
+    @DefaultMessage("Restore location")
+    String targetLabel();
+
+    @DefaultMessage("Filesystem location where a directory is restored for each blob store. Existing blob store directories must be empty. Live blob stores are never touched: move restored directories in place with Nexus stopped")
+    String targetText();
+
+    @DefaultMessage("Restore threads")
+    String threadsLabel();
+
+    @DefaultMessage("Number of workers extracting files of each blob store concurrently")
+    String threadsText();
+
+    @DefaultMessage("Concurrent blob stores")
+    String storesLabel();
+
+    @DefaultMessage("Number of blob stores restored at the same time")
+    String storesText();
+
+    @DefaultMessage("Blob IDs")
+    String blobIdsLabel();
+
+    @DefaultMessage("Restore only these blobs (IDs separated by commas or spaces), looked up in the index of each backup instead of extracting whole blob stores. The newest copy in the backup chain is restored, even if the blob was deleted since")
+    String blobIdsText();
+  }
+
+  private static final Messages messages = I18N.create(Messages.class);
+
+  @Inject
+  public BlobRestoreTaskDescriptor(final NodeAccess nodeAccess)
+  {
+    super(TYPE_ID, BlobRestoreTask.class, messages.name(), VISIBLE, EXPOSED,
+        new StringTextFormField(
+            BACKUP_LOCATION,
+            messages.locationLabel(),
+            messages.locationHelpText(),
+            MANDATORY
+        ),
+        new StringTextFormField(
+            BACKUP_TIMESTAMP,
+            messages.timestampLabel(),
+            messages.timestampText(),
+            MANDATORY,
+            "^\\d{4}(-\\d{2}){5}$"
+        ),
+        new StringTextFormField(
+            RESTORE_LOCATION,
+            messages.targetLabel(),
+            messages.targetText(),
+            MANDATORY
+        ),
+        new NumberTextFormField(
+            RESTORE_THREADS,
+            messages.threadsLabel(),
+            messages.threadsText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(BlobRestoreRunner.DEFAULT_THREADS),
+        new NumberTextFormField(
+            CONCURRENT_STORES,
+            messages.storesLabel(),
+            messages.storesText(),
+            OPTIONAL
+        ).withMinimumValue(1).withInitialValue(1),
+        new StringTextFormField(
+            BLOB_IDS,
+            messages.blobIdsLabel(),
+            messages.blobIdsText(),
+            OPTIONAL
+        ),
+        nodeAccess.isClustered() ? newLimitNodeFormField() : null
+    );
+  }
+
+  @Override
+  public void initializeConfiguration(final TaskConfiguration configuration) {
+    // cover upgrade from non-HA to HA: task will warn until a node is chosen
+    configuration.setString(LIMIT_NODE_KEY, "");
+  }
+}
@@ -0,0 +1,425 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonatype.nexus.blobstore.VolumeChapterLocationStrategy;
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobAttributes;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobMetrics;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.fmp.nexus.backup.BackupChecksums;
+import es.fmp.nexus.backup.BackupOutput;
+import es.fmp.nexus.backup.s3.S3Storage;
+
+/**
+ * Background thread that creates the backup of a blob store that is not file based (e.g. S3) through the blob store
+ * API. Blob IDs are enumerated from the blob store while the attributes and content of every blob are fetched by a
+ * pool of concurrent readers, so the latency of remote stores overlaps and the backup runs at the bandwidth of the
+ * network rather than one request at a time. Blobs are archived as soon as they are fetched, with a bounded number of
+ * them fetched ahead: content up to a compression block is held in memory, larger content is spooled to a temporary
+ * file next to the backup.
+ * <p>
+ * Blobs are archived under the names a file blob store gives them ({@code content/vol-NN/chap-NN/<blob id>.properties}
+ * and {@code .bytes}), which are also the keys S3 blob stores use, so a restored backup can be used as a file blob
+ * store or uploaded back as is. Backups are always full zip archives; a cancelled or failed backup is deleted.
+ * <p>
+ * With adaptive workers the number of blobs fetched at a time is tuned while the backup runs (see {@link WorkerTuner}).
+ *
+ */
+public class ApiBlobBackupRunner implements Callable<Void> {
+
+    private static final String CONTENT_DIR = "content/";
+
+    private static final String PROPERTIES_EXTENSION = ".properties";
+
+    private static final String BYTES_EXTENSION = ".bytes";
+
+    private static final String HEADER_PREFIX = "@";
+
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    /**
+     * Largest blob content held in memory once fetched, the rest is spooled
+     */
+    private static final int MAX_MEMORY_CONTENT = ParallelDeflater.BLOCK_SIZE;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final BlobStore blobStore;
+
+    private final File backupFile;
+
+    private final BlobBackupOptions options;
+
+    private final VolumeChapterLocationStrategy locations = new VolumeChapterLocationStrategy();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private long count;
+
+    private long size;
+
+    private long storedSize;
+
+    private long failed;
+
+    private WorkerTuner tuner;
+
+    /**
+     * A blob fetched from the blob store, ready to be archived
+     */
+    private static class FetchedBlob implements Closeable {
+        private final String location;
+
+        private final byte[] properties;
+
+        private final long lastModified;
+
+        private byte[] content;
+
+        private Path spool;
+
+        private long size;
+
+        private long nanos;
+
+        FetchedBlob(final String location, final byte[] properties, final long lastModified) {
+            this.location = location;
+            this.properties = properties;
+            this.lastModified = lastModified;
+        }
+
+        void read(final InputStream in, final Path spoolFolder, final String spoolPrefix) throws IOException {
+            byte[] head = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_MEMORY_CONTENT + 1L));
+            if (head.length <= MAX_MEMORY_CONTENT) {
+                content = head;
+                size = head.length;
+                return;
+            }
+            spool = Files.createTempFile(spoolFolder, spoolPrefix, SPOOL_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(spool)) {
+                out.write(head);
+                size = head.length + ByteStreams.copy(in, out);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spool != null) {
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+
+    /**
+     * @param blobStore
+     *            blob store to back up
+     * @param backupFile
+     *            the backup data will be written onto this file
+     * @param options
+     *            backup settings, only compression level, skip deleted, fetch threads, limits and object storage apply
+     */
+    public ApiBlobBackupRunner(final BlobStore blobStore, final File backupFile, final BlobBackupOptions options) {
+        this.blobStore = checkNotNull(blobStore);
+        this.backupFile = checkNotNull(backupFile);
+        this.options = checkNotNull(options);
+    }
+
+    @Override
+    public Void call() throws Exception {
+        try {
+            backup();
+        } catch (Throwable e) {
+            deleteArchive(e);
+            if (e instanceof CancellationException) {
+                throw e;
+            }
+            throw new RuntimeException(String.format("backup of blob store %s to file %s failed", blobStore.getBlobStoreConfiguration().getName(),
+                    backupFile.getName()), e);
+        }
+        return null;
+    }
+
+    private void backup() throws Exception {
+        long start = System.currentTimeMillis();
+        String name = blobStore.getBlobStoreConfiguration().getName();
+        Path archive = backupFile.toPath();
+        S3Storage storage = options.getStorage();
+        if (storage != null) {
+            // nothing is written into the empty file reserving the name of the backup
+            Files.deleteIfExists(archive);
+        }
+        checkCanceled();
+        int threads = Math.max(1, options.getFetchThreads());
+        log.info("backup of blob store {} of type {} starting, fetching {} blobs at a time", backupFile.getName(),
+                blobStore.getBlobStoreConfiguration().getType(), options.isAdaptiveWorkers() ? "a tuned number of" : threads);
+        if (options.isAdaptiveWorkers()) {
+            tuner = new WorkerTuner(name, WorkerTuner.of(archive.toAbsolutePath().getParent(), name), threads);
+            threads = WorkerTuner.MAX_WORKERS;
+        }
+
+        ExecutorService fetchers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("blobfetch-" + name + "-%d").setDaemon(true).build());
+        CompletionService<FetchedBlob> fetched = new ExecutorCompletionService<>(fetchers);
+        ParallelDeflater deflater = options.getCompressionLevel() > 0
+                ? new ParallelDeflater(options.getCompressionLevel(), Runtime.getRuntime().availableProcessors(), "blobbackup-" + name)
+                : null;
+        BackupOutput output = storage != null ? storage.create(key(archive), BackupChecksums.of(archive), BlobArchiveIndex.of(archive)) : null;
+        int inFlight = 0;
+        try (ChannelZipWriter zip = new ChannelZipWriter(archive, output, deflater); Stream<BlobId> ids = blobStore.getBlobIdStream()) {
+            zip.setIndex(new BlobArchiveIndex.Writer(BlobArchiveIndex.of(archive)));
+            // enough blobs fetched ahead to keep every reader busy while the writer catches up
+            int window = threads * 2;
+            for (Iterator<BlobId> it = ids.iterator(); it.hasNext();) {
+                checkCanceled();
+                BlobId id = it.next();
+                fetched.submit(() -> fetch(id));
+                inFlight++;
+                if (tuner != null) {
+                    window = tuner.getWorkers() * 2;
+                }
+                for (Future<FetchedBlob> done = fetched.poll(); done != null || inFlight >= window; done = fetched.poll()) {
+                    archive(zip, done != null ? done : fetched.take());
+                    inFlight--;
+                }
+            }
+            while (inFlight > 0) {
+                checkCanceled();
+                archive(zip, fetched.take());
+                inFlight--;
+            }
+            zip.finish();
+        } finally {
+            fetchers.shutdownNow();
+            discardFetched(fetchers, fetched);
+            if (deflater != null) {
+                deflater.close();
+            }
+            if (tuner != null) {
+                tuner.finish();
+            }
+        }
+
+        long elapsedTime = System.currentTimeMillis() - start;
+        log.info("backup of blob store {} finished {} in {}: {} blobs, size: {}, compressedSize: {}, {}/s", backupFile.getName(),
+                failed > 0 ? "with " + failed + " blobs that could not be fetched" : "successfully",
+                DurationFormatUtils.formatDuration(elapsedTime, "HH:mm:ss.S"), count, BlobBackupRunner.humanReadableByteCountBin(size),
+                BlobBackupRunner.humanReadableByteCountBin(storedSize), BlobBackupRunner.humanReadableByteCountBin(size * 1000 / Math.max(1, elapsedTime)));
+        if (skipped.get() > 0) {
+            log.info("backup of blob store {} skipped {} deleted blobs", backupFile.getName(), skipped.get());
+        }
+    }
+
+    /**
+     * Reads the attributes and content of a blob, on a fetch thread
+     *
+     * @return fetched blob, null if it is gone or skipped as deleted
+     */
+    private FetchedBlob fetch(final BlobId id) throws IOException, InterruptedException {
+        if (tuner == null) {
+            return fetchBlob(id);
+        }
+        tuner.acquire();
+        FetchedBlob result = null;
+        try {
+            result = fetchBlob(id);
+            return result;
+        } finally {
+            if (result != null) {
+                tuner.completed(result.size);
+            } else {
+                tuner.release();
+            }
+        }
+    }
+
+    private FetchedBlob fetchBlob(final BlobId id) throws IOException {
+        long start = System.nanoTime();
+        BlobAttributes attributes = blobStore.getBlobAttributes(id);
+        if (attributes == null) {
+            log.debug("blob {} of {} deleted since listed", id, backupFile.getName());
+            return null;
+        }
+        if (attributes.isDeleted() && options.isSkipDeleted()) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        BlobMetrics metrics = attributes.getMetrics();
+        IoThrottle throttle = options.getThrottle();
+        throttle.acquireRead(metrics != null ? metrics.getContentSize() : 0);
+        Blob blob = blobStore.get(id, true);
+        if (blob == null) {
+            log.debug("blob {} of {} deleted since listed", id, backupFile.getName());
+            return null;
+        }
+        long lastModified = metrics != null && metrics.getCreationTime() != null ? metrics.getCreationTime().getMillis() : System.currentTimeMillis();
+        FetchedBlob result = new FetchedBlob(CONTENT_DIR + locations.location(id), properties(attributes), lastModified);
+        try (InputStream in = blob.getInputStream()) {
+            result.read(in, backupFile.toPath().toAbsolutePath().getParent(), backupFile.getName());
+        } catch (IOException | RuntimeException e) {
+            result.close();
+            throw e;
+        }
+        result.nanos = System.nanoTime() - start;
+        throttle.completed(result.size, result.nanos);
+        return result;
+    }
+
+    /**
+     * @return content of the {@code .properties} file of a blob, as a file blob store writes it
+     */
+    private static byte[] properties(final BlobAttributes attributes) throws IOException {
+        Properties properties = new Properties();
+        Properties stored = attributes.getProperties();
+        if (stored != null) {
+            // defaults included
+            for (String key : stored.stringPropertyNames()) {
+                properties.setProperty(key, stored.getProperty(key));
+            }
+        }
+        if (properties.isEmpty()) {
+            for (Map.Entry<String, String> header : attributes.getHeaders().entrySet()) {
+                properties.setProperty(HEADER_PREFIX + header.getKey(), header.getValue());
+            }
+            BlobMetrics metrics = attributes.getMetrics();
+            if (metrics != null) {
+                properties.setProperty("size", Long.toString(metrics.getContentSize()));
+                if (metrics.getSha1Hash() != null) {
+                    properties.setProperty("sha1", metrics.getSha1Hash());
+                }
+                if (metrics.getCreationTime() != null) {
+                    properties.setProperty("creationTime", Long.toString(metrics.getCreationTime().getMillis()));
+                }
+            }
+            if (attributes.isDeleted()) {
+                properties.setProperty("deleted", "true");
+            }
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        properties.store(content, null);
+        return content.toByteArray();
+    }
+
+    /**
+     * Writes a fetched blob into the archive. Blobs that could not be fetched are logged and left out, as unreadable
+     * files of file blob stores are
+     */
+    private void archive(final ChannelZipWriter zip, final Future<FetchedBlob> future) throws IOException, InterruptedException {
+        FetchedBlob blob;
+        try {
+            blob = future.get();
+        } catch (ExecutionException e) {
+            failed++;
+            log.error("error backing up blob of " + backupFile.getName(), e.getCause());
+            return;
+        }
+        if (blob == null) {
+            return;
+        }
+        try {
+            long start = zip.position();
+            zip.putContent(blob.location + PROPERTIES_EXTENSION, blob.properties, blob.lastModified);
+            if (blob.spool != null) {
+                zip.putFile(blob.location + BYTES_EXTENSION, blob.spool, blob.lastModified);
+            } else {
+                zip.putContent(blob.location + BYTES_EXTENSION, blob.content, blob.lastModified);
+            }
+            // compressed entries are written later, so account for whatever the archive grew meanwhile
+            long stored = zip.position() - start;
+            options.getThrottle().acquireWrite(stored);
+            options.getMetrics().archived(blob.size, blob.nanos);
+            count++;
+            size += blob.size;
+            storedSize += stored;
+        } finally {
+            blob.close();
+        }
+    }
+
+    /**
+     * Deletes the spools of blobs fetched but not archived, once fetch threads are stopped
+     */
+    private void discardFetched(final ExecutorService fetchers, final CompletionService<FetchedBlob> fetched) {
+        try {
+            fetchers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<FetchedBlob> done = fetched.poll(); done != null; done = fetched.poll()) {
+            try {
+                FetchedBlob blob = done.get();
+                if (blob != null) {
+                    blob.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | IOException e) {
+                // failed fetches leave nothing behind
+                log.debug("discarding blob fetched for {}: {}", backupFile.getName(), e.toString());
+            }
+        }
+    }
+
+    private void checkCanceled() {
+        if (options.isCanceled()) {
+            throw new CancellationException(String.format("backup of blob store %s cancelled", backupFile.getName()));
+        }
+    }
+
+    /**
+     * @return object storage key of a backup file, in the folder named as the one of the backup
+     */
+    private String key(final Path file) {
+        return options.getStorage().key(backupFile.getParentFile().getName(), file.getFileName().toString());
+    }
+
+    /**
+     * Deletes the archive of a backup that did not complete, along with its checksum manifest and index
+     */
+    private void deleteArchive(final Throwable cause) {
+        Path archive = backupFile.toPath();
+        try {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(BackupChecksums.of(archive));
+            Files.deleteIfExists(BlobArchiveIndex.of(archive));
+            if (options.getStorage() != null) {
+                options.getStorage().delete(key(archive));
+                options.getStorage().delete(key(BackupChecksums.of(archive)));
+                options.getStorage().delete(key(BlobArchiveIndex.of(archive)));
+            }
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+}
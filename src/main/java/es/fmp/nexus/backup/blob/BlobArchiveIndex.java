@@ -0,0 +1,530 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted index of the blob files of an archive ({@code <archive>.idx}), so single blobs can be restored by reading
+ * just their entries instead of the whole archive. Every {@code .bytes} and {@code .properties} entry under
+ * {@code content/} has a fixed size record with the location of its local header, compression method, CRC and sizes,
+ * sorted by file name (the blob ID followed by its extension) and pointing to its full name in a name heap that follows
+ * the records. Backup metadata entries are indexed too, by their full name. Lookups memory-map the index and binary
+ * search the records, so they take a few page reads whatever the size of the archive.
+ * <p>
+ * Files of {@link PackSegment pack segments} get records of their own with method {@link #METHOD_PACKED}, pointing to
+ * their segment and their position in it, so they are found without reading the file block of every segment.
+ * <p>
+ * Records are collected while the archive is written and sorted in runs spilled to temporary files next to the index
+ * once large enough, merged when the index is committed, so memory does not grow with the number of blobs.
+ *
+ */
+public class BlobArchiveIndex {
+
+    /**
+     * Extension of index files, appended to the archive name
+     */
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x42494458; // BIDX
+
+    /**
+     * Version 2 indexes the files of pack segments
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Method of the records of files packed into a segment: their offset is the number of the segment and their
+     * compressed size the position of the file in the segment
+     */
+    public static final int METHOD_PACKED = 0xFFFF;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_SIZE = 48;
+
+    private static final String CONTENT_PREFIX = "content/";
+
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Chunks overlap so that a record or a name starting in a chunk is read from it as a whole
+     */
+    private static final long CHUNK_OVERLAP = 0x10000 + RECORD_SIZE;
+
+    private static final Comparator<Record> ORDER = (a, b) -> {
+        int c = compare(a.nameBytes, a.keyStart, b.nameBytes, b.keyStart);
+        return c != 0 ? c : compare(a.nameBytes, 0, b.nameBytes, 0);
+    };
+
+    private final Path file;
+
+    private final MappedByteBuffer[] chunks;
+
+    private final long count;
+
+    private BlobArchiveIndex(final Path file, final MappedByteBuffer[] chunks, final long count) {
+        this.file = file;
+        this.chunks = chunks;
+        this.count = count;
+    }
+
+    /**
+     * @return index file of an archive
+     */
+    public static Path of(final Path archive) {
+        return archive.resolveSibling(archive.getFileName() + EXTENSION);
+    }
+
+    /**
+     * @return whether an archive entry is recorded in the index
+     */
+    static boolean isIndexed(final String name) {
+        return name.startsWith(CONTENT_PREFIX) && (name.endsWith(".bytes") || name.endsWith(".properties"))
+                || name.startsWith(BlobRestoreRunner.METADATA_PREFIX) && !name.endsWith("/");
+    }
+
+    /**
+     * @return whether an index exists and is of the current version, otherwise it has to be built again
+     * @throws IOException
+     *             if index exists but cannot be read
+     */
+    public static boolean isCurrent(final Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Memory-maps an index
+     *
+     * @throws IOException
+     *             if index cannot be read or is not valid
+     */
+    public static BlobArchiveIndex open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE + CHUNK_OVERLAP, size - start));
+            }
+            if (size < HEADER_SIZE || chunks[0].getInt(0) != MAGIC || chunks[0].getInt(4) != VERSION) {
+                throw new IOException("not a blob archive index: " + file);
+            }
+            long count = chunks[0].getLong(8);
+            if (count < 0 || HEADER_SIZE + count * RECORD_SIZE > size) {
+                throw new IOException("blob archive index truncated: " + file);
+            }
+            return new BlobArchiveIndex(file, chunks, count);
+        }
+    }
+
+    /**
+     * Builds the index of an archive written without one from its central directory
+     *
+     * @return index file
+     * @throws IOException
+     *             if archive cannot be read or index cannot be written
+     */
+    public static Path build(final Path archive) throws IOException {
+        Path indexFile = of(archive);
+        try (ChannelZipReader reader = new ChannelZipReader(archive); Writer writer = new Writer(indexFile)) {
+            reader.entries(entry -> {
+                writer.add(entry.getName(), entry.getMethod(), entry.getDosTime(), entry.getCrc(), entry.getCompressedSize(), entry.getSize(),
+                        entry.getOffset());
+                if (PackSegment.isSegment(entry.getName())) {
+                    try (PackSegment.Reader pack = new PackSegment.Reader(reader.openStream(entry))) {
+                        writer.addSegment(entry.getName(), pack);
+                    }
+                }
+            });
+            writer.commit();
+        }
+        return indexFile;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of entries in the index
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Looks up a blob file
+     *
+     * @param fileName
+     *            name of the file without its directory, e.g. {@code <blob id>.bytes}, or full name of a metadata entry
+     * @return archive entry of the file, or its location in a pack segment when its method is {@link #METHOD_PACKED},
+     *         null if not in the archive
+     */
+    public ChannelZipReader.Entry find(final String fileName) {
+        byte[] key = fileName.getBytes(StandardCharsets.UTF_8);
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int c = compareKey(HEADER_SIZE + middle * RECORD_SIZE, key);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return entry(HEADER_SIZE + middle * RECORD_SIZE);
+            }
+        }
+        return null;
+    }
+
+    private MappedByteBuffer chunk(final long position) {
+        return chunks[(int) (position / CHUNK_SIZE)];
+    }
+
+    private int compareKey(final long record, final byte[] key) {
+        MappedByteBuffer recordChunk = chunk(record);
+        int recordOffset = (int) (record % CHUNK_SIZE);
+        long name = recordChunk.getLong(recordOffset);
+        int nameLength = recordChunk.getShort(recordOffset + 8) & 0xFFFF;
+        int keyStart = recordChunk.getShort(recordOffset + 10) & 0xFFFF;
+        MappedByteBuffer nameChunk = chunk(name);
+        int nameOffset = (int) (name % CHUNK_SIZE);
+        int length = nameLength - keyStart;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int c = (nameChunk.get(nameOffset + keyStart + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private ChannelZipReader.Entry entry(final long record) {
+        MappedByteBuffer recordChunk = chunk(record);
+        int offset = (int) (record % CHUNK_SIZE);
+        long name = recordChunk.getLong(offset);
+        byte[] nameBytes = new byte[recordChunk.getShort(offset + 8) & 0xFFFF];
+        MappedByteBuffer nameChunk = chunk(name);
+        int nameOffset = (int) (name % CHUNK_SIZE);
+        for (int i = 0; i < nameBytes.length; i++) {
+            nameBytes[i] = nameChunk.get(nameOffset + i);
+        }
+        return new ChannelZipReader.Entry(new String(nameBytes, StandardCharsets.UTF_8), recordChunk.getShort(offset + 12) & 0xFFFF,
+                recordChunk.getInt(offset + 16) & 0xFFFFFFFFL, recordChunk.getInt(offset + 20) & 0xFFFFFFFFL, recordChunk.getLong(offset + 24),
+                recordChunk.getLong(offset + 32), recordChunk.getLong(offset + 40));
+    }
+
+    private static int compare(final byte[] a, final int aStart, final byte[] b, final int bStart) {
+        int length = Math.min(a.length - aStart, b.length - bStart);
+        for (int i = 0; i < length; i++) {
+            int c = (a[aStart + i] & 0xFF) - (b[bStart + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (a.length - aStart) - (b.length - bStart);
+    }
+
+    /**
+     * Entry of the index being written
+     */
+    private static class Record {
+        private final byte[] nameBytes;
+
+        private final int keyStart;
+
+        private final int method;
+
+        private final long dosTime;
+
+        private final long crc;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long offset;
+
+        Record(final byte[] nameBytes, final int method, final long dosTime, final long crc, final long compressedSize, final long size,
+                final long offset) {
+            this.nameBytes = nameBytes;
+            int start = 0;
+            // metadata entries are keyed by their full name, blob files by their name in the volume/chapter directory
+            if (nameBytes.length > 0 && nameBytes[0] != '.') {
+                for (int i = 0; i < nameBytes.length; i++) {
+                    if (nameBytes[i] == '/') {
+                        start = i + 1;
+                    }
+                }
+            }
+            this.keyStart = start;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        void write(final DataOutputStream out) throws IOException {
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeShort(method);
+            out.writeInt((int) dosTime);
+            out.writeInt((int) crc);
+            out.writeLong(compressedSize);
+            out.writeLong(size);
+            out.writeLong(offset);
+        }
+
+        static Record read(final DataInputStream in) throws IOException {
+            int length;
+            try {
+                length = in.readUnsignedShort();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] name = new byte[length];
+            in.readFully(name);
+            return new Record(name, in.readUnsignedShort(), in.readInt() & 0xFFFFFFFFL, in.readInt() & 0xFFFFFFFFL, in.readLong(), in.readLong(),
+                    in.readLong());
+        }
+    }
+
+    /**
+     * Sorted run of records spilled to a temporary file, read back while merging
+     */
+    private static class Run implements Closeable {
+        private final DataInputStream in;
+
+        private Record head;
+
+        Run(final Path file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+            this.head = Record.read(in);
+        }
+
+        Record next() throws IOException {
+            Record record = head;
+            head = Record.read(in);
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects the blob entries of an archive and writes its index once the archive is complete. Not thread safe
+     */
+    public static class Writer implements Closeable {
+        private static final int RUN_RECORDS = 100000;
+
+        private static final String RUN_SUFFIX = ".run";
+
+        private static final String TMP_SUFFIX = ".tmp";
+
+        private final Path file;
+
+        private final List<Record> records = new ArrayList<>();
+
+        private final List<Path> runs = new ArrayList<>();
+
+        private long count;
+
+        /**
+         * @param file
+         *            index to write, see {@link BlobArchiveIndex#of(Path)}
+         */
+        public Writer(final Path file) {
+            this.file = file;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * Records the files of a pack segment
+         *
+         * @param segment
+         *            name of the segment entry
+         * @param pack
+         *            segment, only its file block is read
+         */
+        public void addSegment(final String segment, final PackSegment.Reader pack) throws IOException {
+            int number = PackSegment.number(segment);
+            for (int i = 0; i < pack.size(); i++) {
+                // modification time is restored from the segment, more precise than a DOS time
+                add(pack.getName(i), METHOD_PACKED, 0, pack.getCrc(i) & 0xFFFFFFFFL, i, pack.getSize(i), number);
+            }
+        }
+
+        /**
+         * Records an archive entry, if it is a blob file
+         */
+        public void add(final String name, final int method, final long dosTime, final long crc, final long compressedSize, final long size,
+                final long offset) throws IOException {
+            if (!isIndexed(name)) {
+                return;
+            }
+            records.add(new Record(name.getBytes(StandardCharsets.UTF_8), method, dosTime, crc, compressedSize, size, offset));
+            count++;
+            if (records.size() >= RUN_RECORDS) {
+                spill();
+            }
+        }
+
+        private void spill() throws IOException {
+            records.sort(ORDER);
+            Path run = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), RUN_SUFFIX);
+            runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 64 * 1024))) {
+                for (Record record : records) {
+                    record.write(out);
+                }
+            }
+            records.clear();
+        }
+
+        /**
+         * Writes the index, replacing any previous one
+         *
+         * @throws IOException
+         *             on write failure
+         */
+        public void commit() throws IOException {
+            List<Run> readers = new ArrayList<>();
+            try {
+                Iterator<Record> sorted;
+                if (runs.isEmpty()) {
+                    records.sort(ORDER);
+                    sorted = records.iterator();
+                } else {
+                    if (!records.isEmpty()) {
+                        spill();
+                    }
+                    for (Path run : runs) {
+                        readers.add(new Run(run));
+                    }
+                    sorted = merge(readers);
+                }
+                write(sorted);
+            } finally {
+                for (Run reader : readers) {
+                    reader.close();
+                }
+                close();
+            }
+        }
+
+        private static Iterator<Record> merge(final List<Run> runs) {
+            PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> ORDER.compare(a.head, b.head));
+            runs.stream().filter(run -> run.head != null).forEach(queue::add);
+            return new Iterator<Record>() {
+                @Override
+                public boolean hasNext() {
+                    return !queue.isEmpty();
+                }
+
+                @Override
+                public Record next() {
+                    Run run = queue.poll();
+                    if (run == null) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        Record record = run.next();
+                        if (run.head != null) {
+                            queue.add(run);
+                        }
+                        return record;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("unable to read sorted run of blob archive index", e);
+                    }
+                }
+            };
+        }
+
+        private void write(final Iterator<Record> sorted) throws IOException {
+            Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+            long heapStart = HEADER_SIZE + count * RECORD_SIZE;
+            try (FileChannel tableChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    FileChannel heapChannel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                heapChannel.position(heapStart);
+                try (DataOutputStream table = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tableChannel), 64 * 1024));
+                        BufferedOutputStream heap = new BufferedOutputStream(Channels.newOutputStream(heapChannel), 64 * 1024)) {
+                    table.writeInt(MAGIC);
+                    table.writeInt(VERSION);
+                    table.writeLong(count);
+                    long name = heapStart;
+                    while (sorted.hasNext()) {
+                        Record record = sorted.next();
+                        table.writeLong(name);
+                        table.writeShort(record.nameBytes.length);
+                        table.writeShort(record.keyStart);
+                        table.writeShort(record.method);
+                        table.writeShort(0);
+                        table.writeInt((int) record.dosTime);
+                        table.writeInt((int) record.crc);
+                        table.writeLong(record.compressedSize);
+                        table.writeLong(record.size);
+                        table.writeLong(record.offset);
+                        heap.write(record.nameBytes);
+                        name += record.nameBytes.length;
+                    }
+                    table.flush();
+                    heap.flush();
+                    tableChannel.force(false);
+                } catch (IllegalStateException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Deletes temporary runs, the index is left as it is
+         */
+        @Override
+        public void close() throws IOException {
+            records.clear();
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Destination of the files of a blob store backup
+ *
+ */
+public interface BlobArchiveWriter extends Closeable {
+
+    /**
+     * Archives a file or directory of the blob store
+     *
+     * @param file
+     *            file to archive
+     * @return number of bytes actually stored by the archive for this file
+     * @throws IOException
+     *             if file could not be archived. Archive is still usable
+     */
+    long write(BlobFile file) throws IOException;
+
+    /**
+     * @return time taken to read the file last archived by {@link #write(BlobFile)}, in nanoseconds, without the time
+     *         taken to compress and write it, or -1 if not measured
+     */
+    default long getReadNanos() {
+        return -1;
+    }
+
+    /**
+     * Archives a backup metadata entry
+     *
+     * @param name
+     *            entry name
+     * @param content
+     *            file holding entry content
+     * @throws IOException
+     *             on write failure
+     */
+    void write(String name, Path content) throws IOException;
+
+    /**
+     * Archives a backup metadata entry
+     *
+     * @param name
+     *            entry name
+     * @param content
+     *            entry content
+     * @throws IOException
+     *             on write failure
+     */
+    void write(String name, byte[] content) throws IOException;
+
+    /**
+     * @return number of bytes written to the archive so far, not counting entries pending compression nor data stored elsewhere
+     */
+    long size();
+
+    /**
+     * Completes the archive. No more entries can be written
+     *
+     * @throws IOException
+     *             on write failure
+     */
+    void finish() throws IOException;
+}
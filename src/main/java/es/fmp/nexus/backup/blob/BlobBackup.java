@@ -4,8 +4,10 @@ package es.fmp.nexus.backup.blob;
  * Inspired by https://github.com/sonatype/nexus-public/blob/master/components/nexus-core/src/main/java/org/sonatype/nexus/internal/backup/DatabaseBackup.java
  */
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -17,20 +19,64 @@ public interface BlobBackup
 {
 
   /**
-   * @return java.util.List&lt;String&gt; Names of blobs
+   * @return java.util.List&lt;String&gt; Names of blobs, of every type but groups
    */
   List<String> blobNames();
 
+  /**
+   * @param blobName The name of the blob store
+   * @return java.nio.file.Path Root directory of the blob store, null if it is not a file blob store
+   */
+  Path blobStorePath(String blobName);
+
+  /**
+   * @param blobName The name of the blob store
+   * @return size in bytes of blob store content as reported by its metrics, used to estimate the cost of its backup
+   */
+  long blobStoreSize(String blobName);
+
+  /**
+   * @return java.util.Map&lt;String, List&lt;String&gt;&gt; Names of the members of every group blob store, by group name
+   */
+  Map<String, List<String>> blobStoreGroups();
+
+  /**
+   * @param backupFolder Name of folder holding blob backups
+   * @param blobName The name of the blob store
+   * @param timestamp a timestamp indicating when the backup was taken
+   * @return java.nio.file.Path Main archive or mirror directory of the backup of the blob store taken at given time,
+   *         null if there is none
+   */
+  Path backupPath(String backupFolder, String blobName, LocalDateTime timestamp);
+
   /**
    * Creates a backup job
    *
    * @param backupFolder Name of folder where backup file will be created
    * @param blobName The name of the blob being backed up
    * @param timestamp a timestamp indicating when the backup was taken
+   * @param options backup settings
    * @return java.util.concurrent.Callable For storing backup data
    * @throws IOException
    */
-  Callable<Void> internalBackup(String backupFolder, String blobName, LocalDateTime timestamp) throws IOException;
+  Callable<Void> internalBackup(String backupFolder, String blobName, LocalDateTime timestamp, BlobBackupOptions options) throws IOException;
+
+  /**
+   * Creates a backup job split in two steps: a fast capture of the blob store, meant to be run while databases are
+   * frozen, that returns the job archiving the captured content, which can be run once databases are released. Blob
+   * stores that cannot be captured (their file system has no hard links) are backed up by the first step itself, the
+   * returned job then does nothing
+   *
+   * @param backupFolder Name of folder where backup file will be created
+   * @param blobName The name of the blob being backed up, a file blob store (see {@link #blobStorePath(String)})
+   * @param timestamp a timestamp indicating when the backup was taken
+   * @param options backup settings
+   * @return java.util.concurrent.Callable For capturing blob store, returning the one storing backup data
+   * @throws IOException
+   * @throws IllegalArgumentException if the blob store is not a file blob store
+   */
+  Callable<Callable<Void>> snapshotBackup(String backupFolder, String blobName, LocalDateTime timestamp, BlobBackupOptions options)
+      throws IOException;
 
 
   /**
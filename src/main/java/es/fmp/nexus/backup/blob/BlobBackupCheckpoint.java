@@ -0,0 +1,114 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Records where a cancelled blob store backup stopped, so the next backup of the blob store resumes from it instead of
+ * starting over. The cancelled backup is completed with the files archived so far (marked as partial in its backup
+ * info) and its manifest is committed, so the next backup is taken as an incremental one against it: files already
+ * archived are skipped and the rest are archived. The checkpoint names the partial backup and the last entry archived
+ * by each of its parts (e.g. a {@code content/vol-NN/chap-NN} directory), and is deleted once a backup completes.
+ *
+ */
+public class BlobBackupCheckpoint {
+
+    private static final String BACKUP_PROPERTY = "backup";
+
+    private static final String POSITION_PREFIX = "position.";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path file;
+
+    public BlobBackupCheckpoint(final Path file) {
+        this.file = checkNotNull(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * @return file name of the partial backup or null if there is no checkpoint
+     * @throws IOException
+     *             if checkpoint cannot be read
+     */
+    public String getBackupName() throws IOException {
+        return exists() ? load().getProperty(BACKUP_PROPERTY) : null;
+    }
+
+    /**
+     * @return last entry archived by each part of the partial backup, by part number (0 for the main archive)
+     * @throws IOException
+     *             if checkpoint cannot be read
+     */
+    public Map<Integer, String> getPositions() throws IOException {
+        Map<Integer, String> positions = new TreeMap<>();
+        if (exists()) {
+            Properties properties = load();
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(POSITION_PREFIX)) {
+                    try {
+                        positions.put(Integer.parseInt(key.substring(POSITION_PREFIX.length())), properties.getProperty(key));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("invalid part in blob backup checkpoint " + file + ": " + key, e);
+                    }
+                }
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Records a checkpoint, replacing the current one
+     *
+     * @param backupName
+     *            file name of the partial backup
+     * @param positions
+     *            last entry archived by each part, by part number
+     * @throws IOException
+     *             on write failure
+     */
+    public void write(final String backupName, final Map<Integer, String> positions) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(BACKUP_PROPERTY, backupName);
+        positions.forEach((part, name) -> properties.setProperty(POSITION_PREFIX + part, name));
+        Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "checkpoint of cancelled blob store backup");
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the checkpoint, once the backup it was recorded for has been resumed
+     *
+     * @throws IOException
+     *             if checkpoint cannot be deleted
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private Properties load() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,45 @@
+package es.fmp.nexus.backup.blob;
+
+import java.util.Locale;
+
+/**
+ * Output format of blob store backups
+ *
+ */
+public enum BlobBackupFormat {
+
+    /**
+     * All files into a zip file
+     */
+    ZIP,
+
+    /**
+     * Blob content into a content-addressed directory shared by all backups, everything else into a zip file
+     */
+    DEDUP,
+
+    /**
+     * Small files batched into pack segments, everything into a zip file (see {@link PackBlobArchiveWriter})
+     */
+    PACK,
+
+    /**
+     * Blob store tree synced into a dated directory, unchanged files hard linked to the previous one (see
+     * {@link BlobStoreMirror})
+     */
+    MIRROR;
+
+    /**
+     * @param value
+     *            format name, case insensitive. Empty for default format
+     * @return format
+     * @throws IllegalArgumentException
+     *             if there is no such format
+     */
+    public static BlobBackupFormat parse(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return ZIP;
+        }
+        return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+    }
+}
@@ -0,0 +1,137 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Lists the IDs of the blobs a blob store backup restores, i.e. those whose {@code .properties} file would be
+ * restored, without extracting anything: mirrors are walked, archives are read through their central directory (and
+ * the file block of their pack segments). For incremental backups the whole chain is read from the full backup on,
+ * removing the blobs each backup lists as deleted, like a restore does.
+ *
+ */
+public final class BlobBackupIds {
+
+    private static final String CONTENT_PREFIX = "content/";
+
+    private static final String PROPERTIES_EXTENSION = ".properties";
+
+    private BlobBackupIds() {
+    }
+
+    /**
+     * Adds the IDs of the blobs of a backup to a set
+     *
+     * @param backup
+     *            main archive of a blob store backup, or mirror directory
+     * @param ids
+     *            set IDs are added to
+     * @throws IOException
+     *             if backup, or an archive of its chain, cannot be read
+     */
+    public static void collect(final Path backup, final BlobIdSet ids) throws IOException {
+        if (Files.isDirectory(backup)) {
+            collectMirror(backup, ids);
+            return;
+        }
+        for (Path archive : BlobRestoreRunner.resolveChain(backup)) {
+            List<Path> deleting = new ArrayList<>();
+            collectArchive(archive, ids, deleting, true);
+            // as on restore, names are deleted once the whole backup is in place
+            for (Path withDeleted : deleting) {
+                removeDeleted(withDeleted, ids);
+            }
+        }
+    }
+
+    private static void collectMirror(final Path mirror, final BlobIdSet ids) throws IOException {
+        Path content = mirror.resolve("content");
+        if (!Files.isDirectory(content)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(content)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(PROPERTIES_EXTENSION) && Files.isRegularFile(file)) {
+                    ids.add(name.substring(0, name.length() - PROPERTIES_EXTENSION.length()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the blobs of an archive, and of its parts when it is a main archive, collecting the archives listing deleted
+     * names
+     */
+    private static void collectArchive(final Path archive, final BlobIdSet ids, final List<Path> deleting, final boolean main) throws IOException {
+        List<String> parts = new ArrayList<>();
+        try (ChannelZipReader reader = new ChannelZipReader(archive)) {
+            reader.entries(entry -> {
+                String name = entry.getName();
+                if (PackSegment.isSegment(name)) {
+                    try (PackSegment.Reader segment = new PackSegment.Reader(reader.openStream(entry))) {
+                        for (int i = 0; i < segment.size(); i++) {
+                            add(segment.getName(i), ids);
+                        }
+                    }
+                } else if (main && name.equals(BlobBackupRunner.PARTS_ENTRY)) {
+                    parts.addAll(BlobRestoreRunner.readLines(reader, entry));
+                } else if (name.equals(BlobBackupRunner.DELETED_ENTRY)) {
+                    deleting.add(archive);
+                } else {
+                    add(name, ids);
+                }
+            });
+        }
+        for (String part : parts) {
+            collectArchive(BlobRestoreRunner.resolvePart(archive, part), ids, deleting, false);
+        }
+    }
+
+    /**
+     * Removes the blobs an archive lists as deleted, streaming the list
+     */
+    private static void removeDeleted(final Path archive, final BlobIdSet ids) throws IOException {
+        try (ChannelZipReader reader = new ChannelZipReader(archive)) {
+            ChannelZipReader.Entry[] deleted = new ChannelZipReader.Entry[1];
+            reader.entries(entry -> {
+                if (entry.getName().equals(BlobBackupRunner.DELETED_ENTRY)) {
+                    deleted[0] = entry;
+                }
+            });
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(deleted[0]), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String id = blobId(line);
+                    if (id != null) {
+                        ids.remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(final String name, final BlobIdSet ids) throws IOException {
+        String id = blobId(name);
+        if (id != null) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * @return ID of the blob of a {@code .properties} file in the blob store, null for any other file
+     */
+    private static String blobId(final String name) {
+        if (!name.startsWith(CONTENT_PREFIX) || !name.endsWith(PROPERTIES_EXTENSION)) {
+            return null;
+        }
+        return name.substring(name.lastIndexOf('/') + 1, name.length() - PROPERTIES_EXTENSION.length());
+    }
+}
@@ -1,5 +1,6 @@
 package es.fmp.nexus.backup.blob;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /*
@@ -7,10 +8,12 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
@@ -23,6 +26,7 @@ import org.sonatype.goodies.common.ComponentSupport;
 import org.sonatype.nexus.blobstore.api.BlobStore;
 import org.sonatype.nexus.blobstore.api.BlobStoreManager;
 import org.sonatype.nexus.blobstore.file.FileBlobStore;
+import org.sonatype.nexus.blobstore.group.BlobStoreGroup;
 import org.sonatype.nexus.common.app.ApplicationDirectories;
 import org.sonatype.nexus.common.app.ApplicationVersion;
 import org.sonatype.nexus.orient.restore.RestoreFile;
@@ -38,6 +42,10 @@ import com.google.common.annotations.VisibleForTesting;
 @Singleton
 public class BlobBackupImpl extends ComponentSupport implements BlobBackup {
 
+    private static final String MANIFEST_EXTENSION = ".manifest";
+
+    private static final String CHECKPOINT_EXTENSION = ".checkpoint";
+
     private final BlobStoreManager blobStoreManager;
 
     private final ApplicationDirectories applicationDirectories;
@@ -53,9 +61,75 @@ public class BlobBackupImpl extends ComponentSupport implements BlobBackup {
     }
 
     @Override
-    public Callable<Void> internalBackup(final String backupFolder, final String blobStoreName, final LocalDateTime timestamp) throws IOException {
+    public Callable<Void> internalBackup(final String backupFolder, final String blobStoreName, final LocalDateTime timestamp,
+            final BlobBackupOptions options) throws IOException {
+        BlobStore blobStore = blobStore(blobStoreName);
+        if (!isFileBlobStore(blobStore)) {
+            if (options.getFormat() != BlobBackupFormat.ZIP) {
+                log.warn("blob store {} of type {} is backed up in zip format, {} format only applies to file blob stores", blobStoreName,
+                        blobStore.getBlobStoreConfiguration().getType(), options.getFormat());
+            }
+            return new ApiBlobBackupRunner(blobStore, checkTarget(backupFolder, blobStoreName, timestamp), options);
+        }
+        if (options.getFormat() == BlobBackupFormat.MIRROR) {
+            return new BlobStoreMirror(blobStorePath(blobStoreName), mirrorRoot(backupFolder, blobStoreName), timestamp, options);
+        }
         File backupFile = checkTarget(backupFolder, blobStoreName, timestamp);
-        return new BlobBackupRunner(getBlobStorePath(blobStoreName), backupFile);
+        return new BlobBackupRunner(blobStorePath(blobStoreName), backupFile, options, manifest(backupFile, blobStoreName),
+                checkpoint(backupFile, blobStoreName));
+    }
+
+    @Override
+    public Callable<Callable<Void>> snapshotBackup(final String backupFolder, final String blobStoreName, final LocalDateTime timestamp,
+            final BlobBackupOptions options) throws IOException {
+        // blobs of other blob stores may be deleted and compacted once databases are released, they cannot wait
+        checkArgument(isFileBlobStore(blobStore(blobStoreName)), "blob store %s is not a file blob store, it cannot be captured", blobStoreName);
+        Path blobStorePath = blobStorePath(blobStoreName);
+        BlobStoreSnapshot snapshot;
+        Callable<Void> runner;
+        Callable<Void> liveRunner;
+        if (options.getFormat() == BlobBackupFormat.MIRROR) {
+            snapshot = new BlobStoreSnapshot(blobStorePath, "mirror-" + timestamp.format(BlobStoreMirror.TIMESTAMP_FORMAT));
+            runner = new BlobStoreMirror(snapshot.getPath(), mirrorRoot(backupFolder, blobStoreName), timestamp, options);
+            liveRunner = new BlobStoreMirror(blobStorePath, mirrorRoot(backupFolder, blobStoreName), timestamp, options);
+        } else {
+            File backupFile = checkTarget(backupFolder, blobStoreName, timestamp);
+            snapshot = new BlobStoreSnapshot(blobStorePath, backupFile.getName());
+            runner = new BlobBackupRunner(snapshot.getPath(), backupFile, options, manifest(backupFile, blobStoreName),
+                    checkpoint(backupFile, blobStoreName));
+            liveRunner = new BlobBackupRunner(blobStorePath, backupFile, options, manifest(backupFile, blobStoreName),
+                    checkpoint(backupFile, blobStoreName));
+        }
+        return () -> {
+            if (!snapshot.capture(options::isCanceled)) {
+                // anything but hard links would either not be point-in-time or take as long as the backup itself
+                log.warn("blob store {} cannot be captured into a snapshot, backing it up while databases are still frozen", blobStoreName);
+                liveRunner.call();
+                return () -> null;
+            }
+            return () -> {
+                try {
+                    return runner.call();
+                } finally {
+                    snapshot.delete();
+                }
+            };
+        };
+    }
+
+    /**
+     * Manifest of the blob store, also given when backups are not incremental so that cancelled ones can be resumed
+     */
+    private static BlobStoreManifest manifest(final File backupFile, final String blobStoreName) {
+        return new BlobStoreManifest(new File(backupFile.getParentFile(), blobStoreName + MANIFEST_EXTENSION).toPath());
+    }
+
+    private static BlobBackupCheckpoint checkpoint(final File backupFile, final String blobStoreName) {
+        return new BlobBackupCheckpoint(new File(backupFile.getParentFile(), blobStoreName + CHECKPOINT_EXTENSION).toPath());
+    }
+
+    private Path mirrorRoot(final String backupFolder, final String blobStoreName) {
+        return applicationDirectories.getWorkDirectory(backupFolder).toPath().resolve(blobStoreName);
     }
 
     @Override
@@ -75,9 +149,19 @@ public class BlobBackupImpl extends ComponentSupport implements BlobBackup {
         }
     }
 
-    private Path getBlobStorePath(String name) {
+    @Override
+    public long blobStoreSize(final String name) {
         BlobStore bs = blobStoreManager.get(name);
         checkNotNull(bs);
+        return Math.max(0, bs.getMetrics().getTotalSize());
+    }
+
+    @Override
+    public Path blobStorePath(final String name) {
+        BlobStore bs = blobStore(name);
+        if (!isFileBlobStore(bs)) {
+            return null;
+        }
         Path configurationPath = Paths.get(bs.getBlobStoreConfiguration().attributes(FileBlobStore.CONFIG_KEY).require(FileBlobStore.PATH_KEY).toString());
 
         if (configurationPath.isAbsolute()) {
@@ -93,10 +177,42 @@ public class BlobBackupImpl extends ComponentSupport implements BlobBackup {
         }
     }
 
+    @Override
+    public Map<String, List<String>> blobStoreGroups() {
+        return StreamSupport.stream(blobStoreManager.browse().spliterator(), false).filter(BlobStoreGroup.class::isInstance)
+                .map(BlobStoreGroup.class::cast).collect(Collectors.toMap(group -> group.getBlobStoreConfiguration().getName(),
+                        group -> group.getMembers().stream().map(b -> b.getBlobStoreConfiguration().getName()).collect(Collectors.toList())));
+    }
+
+    @Override
+    public Path backupPath(final String backupFolder, final String blobStoreName, final LocalDateTime timestamp) {
+        File backupFile = new File(applicationDirectories.getWorkDirectory(backupFolder),
+                RestoreFile.formatFilename(blobStoreName, timestamp, applicationVersion.getVersion()));
+        if (backupFile.isFile()) {
+            return backupFile.toPath();
+        }
+        Path mirror = mirrorRoot(backupFolder, blobStoreName).resolve(timestamp.format(BlobStoreMirror.TIMESTAMP_FORMAT));
+        return Files.isDirectory(mirror) ? mirror : null;
+    }
+
     @Override
     public List<String> blobNames() {
+        // members of groups are blob stores of their own
         return StreamSupport.stream(blobStoreManager.browse().spliterator(), true)
-                .filter(b -> b.getBlobStoreConfiguration().getType().equals(FileBlobStore.TYPE)).map(b -> b.getBlobStoreConfiguration().getName())
+                .filter(b -> !b.getBlobStoreConfiguration().getType().equals(BlobStoreGroup.TYPE)).map(b -> b.getBlobStoreConfiguration().getName())
                 .collect(Collectors.toList());
     }
+
+    private BlobStore blobStore(final String name) {
+        BlobStore bs = blobStoreManager.get(name);
+        checkNotNull(bs);
+        return bs;
+    }
+
+    /**
+     * @return whether blob store keeps its blobs in a directory, otherwise it is backed up through the blob store API
+     */
+    private static boolean isFileBlobStore(final BlobStore blobStore) {
+        return FileBlobStore.TYPE.equals(blobStore.getBlobStoreConfiguration().getType());
+    }
 }
@@ -0,0 +1,208 @@
+package es.fmp.nexus.backup.blob;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import com.codahale.metrics.MetricRegistry;
+
+import es.fmp.nexus.backup.BackupMetrics;
+import es.fmp.nexus.backup.s3.S3Storage;
+
+/**
+ * Blob store backup settings configured in the backup task
+ *
+ */
+public class BlobBackupOptions {
+
+    private int fullBackupInterval;
+
+    private BlobBackupFormat format = BlobBackupFormat.ZIP;
+
+    private int shards = 1;
+
+    private boolean snapshot;
+
+    private int compressionLevel;
+
+    private IoThrottle throttle = IoThrottle.UNLIMITED;
+
+    private boolean skipDeleted;
+
+    private BackupMetrics metrics = new BackupMetrics(new MetricRegistry());
+
+    private BooleanSupplier cancellation = () -> false;
+
+    private List<Path> destinations = Collections.emptyList();
+
+    private long maxPartSize;
+
+    private S3Storage storage;
+
+    private int fetchThreads = 16;
+
+    private boolean adaptiveWorkers;
+
+    /**
+     * @return number of runs between full backups, 0 if every backup is a full one
+     */
+    public int getFullBackupInterval() {
+        return fullBackupInterval;
+    }
+
+    public void setFullBackupInterval(final int fullBackupInterval) {
+        this.fullBackupInterval = fullBackupInterval;
+    }
+
+    public BlobBackupFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(final BlobBackupFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * @return maximum number of parts archived concurrently a blob store backup is split into, 1 for a single archive
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(final int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * @return whether file blob stores are captured while databases are frozen and archived after they are released
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(final boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return deflate level of archived files, from 1 (fastest) to 9 (best), 0 to store them uncompressed
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(final int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @return whether soft-deleted blobs and temporary files are left out of backups (see {@link BlobStoreFilter})
+     */
+    public boolean isSkipDeleted() {
+        return skipDeleted;
+    }
+
+    public void setSkipDeleted(final boolean skipDeleted) {
+        this.skipDeleted = skipDeleted;
+    }
+
+    /**
+     * @return I/O limits shared by all blob backups of a task run
+     */
+    public IoThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(final IoThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return metrics archived files are reported to, by default a private registry
+     */
+    public BackupMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(final BackupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return whether the task running the backup has been cancelled, checked between files so that backups stop
+     *         promptly
+     */
+    public boolean isCanceled() {
+        return cancellation.getAsBoolean();
+    }
+
+    public void setCancellation(final BooleanSupplier cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * @return folders, besides the one of the main archive, parts of blob store backups are distributed over
+     */
+    public List<Path> getDestinations() {
+        return destinations;
+    }
+
+    public void setDestinations(final List<Path> destinations) {
+        this.destinations = destinations;
+    }
+
+    /**
+     * @return size in bytes archives roll over into a new part once they reach, 0 for no limit
+     */
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    public void setMaxPartSize(final long maxPartSize) {
+        this.maxPartSize = maxPartSize;
+    }
+
+    /**
+     * @return object storage archives are streamed to instead of the backup location, null to write them locally
+     */
+    public S3Storage getStorage() {
+        return storage;
+    }
+
+    public void setStorage(final S3Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return number of blobs fetched at the same time from blob stores backed up through the blob store API (see
+     *         {@link ApiBlobBackupRunner})
+     */
+    public int getFetchThreads() {
+        return fetchThreads;
+    }
+
+    public void setFetchThreads(final int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    /**
+     * @return whether the number of threads copying files of mirrors and fetching blobs through the blob store API is
+     *         tuned while backups run, starting from the number remembered for each blob store (see
+     *         {@link WorkerTuner})
+     */
+    public boolean isAdaptiveWorkers() {
+        return adaptiveWorkers;
+    }
+
+    public void setAdaptiveWorkers(final boolean adaptiveWorkers) {
+        this.adaptiveWorkers = adaptiveWorkers;
+    }
+
+    /**
+     * @return whether a manifest of archived files is kept so that backups between full ones only archive changes
+     */
+    public boolean isIncremental() {
+        return fullBackupInterval > 0;
+    }
+}
@@ -2,8 +2,9 @@ package es.fmp.nexus.backup.blob;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 
 /*
  * Inspired by https://github.com/sonatype/nexus-public/blob/master/components/nexus-core/src/main/java/org/sonatype/nexus/internal/backup/DatabaseBackupRunner.java
@@ -12,24 +13,67 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang.SystemUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.fmp.nexus.backup.BackupChecksums;
+import es.fmp.nexus.backup.s3.S3Storage;
+
 /**
- * Background thread that creates the blob backup
+ * Background thread that creates the blob backup. Cancellation of the task is checked before every file: archives
+ * are then completed with the files archived so far and recorded as a {@link BlobBackupCheckpoint} the next backup
+ * resumes from, when a checkpoint is given. Otherwise, and on failure, the files of the backup are deleted.
+ * <p>
+ * When a maximum part size is set, archives roll over into a new numbered part once they reach it. Parts are
+ * distributed round-robin over the folder of the backup file and the additional destinations, so writes are spread
+ * over several disks. The main archive lists every part, by file name when next to it and by absolute path otherwise.
+ * <p>
+ * With an object storage, archives are streamed to it instead (all parts next to the main archive) and nothing but
+ * the manifest of the blob store is written into the backup location. A cancelled backup is then discarded rather
+ * than resumed, as the next backup cannot append to archives already uploaded.
  *
  */
 public class BlobBackupRunner implements Callable<Void> {
 
+    /**
+     * Archive entry describing an incremental chain member (type, previous and full backup names)
+     */
+    public static final String BACKUP_INFO_ENTRY = ".backup/backup.properties";
+
+    /**
+     * Archive entry listing names deleted since previous backup of an incremental chain
+     */
+    public static final String DELETED_ENTRY = ".backup/deleted";
+
+    /**
+     * Archive entry listing the other parts of a blob store backup split in several archives, one per line: file names
+     * for parts next to the main archive, absolute paths for parts in other destinations
+     */
+    public static final String PARTS_ENTRY = ".backup/parts";
+
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     private final Path blobStorePath;
@@ -38,6 +82,24 @@ public class BlobBackupRunner implements Callable<Void> {
 
     private final String cmd;
 
+    private final BlobBackupOptions options;
+
+    private final BlobStoreManifest manifest;
+
+    private final BlobBackupCheckpoint checkpoint;
+
+    private final List<Path> archives = new ArrayList<>();
+
+    private final List<Path> parts = new ArrayList<>();
+
+    private boolean checkpointed;
+
+    private ParallelDeflater deflater;
+
+    private BlobStoreFilter filter;
+
+    private ExecutorService listing;
+
     /**
      * Constructor to instantiate thread for executing database backup
      *
@@ -50,6 +112,55 @@ public class BlobBackupRunner implements Callable<Void> {
         this.blobStorePath = checkNotNull(blobStorePath);
         this.backupFile = checkNotNull(backupFile);
         this.cmd = null;
+        this.options = new BlobBackupOptions();
+        this.manifest = null;
+        this.checkpoint = null;
+    }
+
+    /**
+     * Constructor to instantiate thread for executing blob backup with given settings. When a manifest is provided only
+     * files that are new or changed since the backup recorded in it are archived (along with the list of deleted ones),
+     * unless a full backup is due.
+     *
+     * @param blobStorePath
+     *            the path of the file blob store
+     * @param backupFile
+     *            the backup data will be written onto this file
+     * @param options
+     *            backup settings
+     * @param manifest
+     *            manifest of the previous backup, updated on success. Null for non incremental backups
+     */
+    public BlobBackupRunner(final Path blobStorePath, final File backupFile, final BlobBackupOptions options, final BlobStoreManifest manifest) {
+        this(blobStorePath, backupFile, options, manifest, null);
+    }
+
+    /**
+     * Constructor to instantiate thread for executing resumable blob backup with given settings. Archived files are
+     * always recorded in the manifest, which only replaces the current one on success when backups are incremental, or
+     * when cancelled along with the checkpoint. A backup following a checkpoint is taken as an incremental one against
+     * the partial backup, whatever the full backup interval.
+     *
+     * @param blobStorePath
+     *            the path of the file blob store
+     * @param backupFile
+     *            the backup data will be written onto this file
+     * @param options
+     *            backup settings
+     * @param manifest
+     *            manifest of the previous backup
+     * @param checkpoint
+     *            checkpoint of the blob store, recorded when cancelled and deleted on success. Null for backups that
+     *            do not resume
+     */
+    public BlobBackupRunner(final Path blobStorePath, final File backupFile, final BlobBackupOptions options, final BlobStoreManifest manifest,
+            final BlobBackupCheckpoint checkpoint) {
+        this.blobStorePath = checkNotNull(blobStorePath);
+        this.backupFile = checkNotNull(backupFile);
+        this.cmd = null;
+        this.options = checkNotNull(options);
+        this.manifest = manifest;
+        this.checkpoint = checkpoint;
     }
 
     /**
@@ -62,6 +173,9 @@ public class BlobBackupRunner implements Callable<Void> {
         this.cmd = checkNotNull(cmd);
         this.blobStorePath = null;
         this.backupFile = null;
+        this.options = null;
+        this.manifest = null;
+        this.checkpoint = null;
     }
 
     private class ZipStats {
@@ -85,9 +199,9 @@ public class BlobBackupRunner implements Callable<Void> {
         int partialCount;
         long elapsedTime;
 
-        void add(ZipEntry entry) {
-            totalSize += entry.getSize();
-            totalCompressedSize += entry.getCompressedSize();
+        synchronized void add(long size, long compressedSize) {
+            totalSize += size;
+            totalCompressedSize += compressedSize;
             count++;
 
             if ((totalSize - reportedSize) >= SIZE_PROGRESS_STEP || (count - reportedCount) >= COUNT_PROGRESS_STEP) {
@@ -103,9 +217,9 @@ public class BlobBackupRunner implements Callable<Void> {
             }
         }
 
-        void dump() {
-            long dataThroughput = partialSize * 1000 / elapsedTime;
-            long msgThroughtput = partialCount * 1000 / elapsedTime;
+        synchronized void dump() {
+            long dataThroughput = partialSize * 1000 / Math.max(1, elapsedTime);
+            long msgThroughtput = partialCount * 1000 / Math.max(1, elapsedTime);
 
             log.info("blob store backup {} stats: {{}, {}, entries: {}, size: {}, compressedSize: {}}", name, humanReadableByteCountBin(dataThroughput) + "/s",
                     msgThroughtput + " files/s", count, humanReadableByteCountBin(totalSize), humanReadableByteCountBin(totalCompressedSize));
@@ -115,7 +229,7 @@ public class BlobBackupRunner implements Callable<Void> {
     /*
      * From https://stackoverflow.com/a/3758880/34880
      */
-    private static String humanReadableByteCountBin(long bytes) {
+    public static String humanReadableByteCountBin(long bytes) {
         long b = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(bytes);
         return b < 1024L ? bytes + " B"
                 : b <= 0xfffccccccccccccL >> 40 ? String.format("%.1f KiB", bytes / 0x1p10)
@@ -154,52 +268,507 @@ public class BlobBackupRunner implements Callable<Void> {
 
         log.info("backup of blob stores with external command  finished {} in {}.", (exitCode == 0 ? "successfully" : "with error code " + exitCode),
                 DurationFormatUtils.formatDuration(elapsedTime, "HH:mm:ss.S"));
+        if (exitCode != 0) {
+            throw new IOException(String.format("external command exited with error code %d", exitCode));
+        }
     }
 
-    private void backup(Path blobStorePath, File zipFile) throws IOException {
-        Path p = zipFile.toPath();
+    private void backup(Path blobStorePath, File zipFile) throws Exception {
         long start = System.currentTimeMillis();
+        archives.add(zipFile.toPath());
+        if (options.getStorage() != null) {
+            // nothing is written into the empty file reserving the name of the backup
+            Files.deleteIfExists(zipFile.toPath());
+        }
+        checkCanceled(zipFile);
+
+        BlobStoreManifest.Header previous = manifest != null ? manifest.readHeader() : null;
+        String resumed = resumedBackup(previous, zipFile);
+        boolean incremental = previous != null && (resumed != null || previous.getRunsSinceFull() + 1 < options.getFullBackupInterval());
+        if (manifest != null) {
+            log.info("{} backup of blob store {} starting", incremental ? "incremental" : "full", zipFile.getName());
+        }
 
         final ZipStats stats = new ZipStats(zipFile.getName());
-        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
-            // No compression to speed up backup
-            zos.setLevel(0);
-            Files.walk(blobStorePath).forEach(path -> {
-                String relativizedPath = blobStorePath.relativize(path).toString();
-                if (!StringUtils.isEmpty(relativizedPath)) {
-                    Boolean isDirectory = Files.isDirectory(path);
-                    ZipEntry ze = new ZipEntry(blobStorePath.relativize(path).toString() + (isDirectory ? "/" : ""));
-                    try {
-                        zos.putNextEntry(ze);
-                        if (!isDirectory) {
-                            Files.copy(path, zos);
-                        }
-                        zos.closeEntry();
-                        stats.add(ze);
-                        if (log.isDebugEnabled()) {
-                            log.info("added entry to {} (size: {}, compressed size: {}); {}", zipFile.getName(), ze.getSize(), ze.getCompressedSize(),
-                                    ze.getName());
-                        }
-                    } catch (IOException e) {
-                        log.error("error backing up path: " + path, e);
-                    }
+        BlobStoreShards shards = new BlobStoreShards(blobStorePath, options.getShards());
+        List<ArchivePass> passes = new ArrayList<>();
+        ExecutorService executor = null;
+        if (options.isSkipDeleted()) {
+            filter = new BlobStoreFilter(blobStorePath);
+        }
+        // directories are listed ahead of the archive writers, shared by all parts
+        listing = BlobStoreWalker.newListingExecutor("blobbackup-" + blobStorePath.getFileName());
+        if (options.getCompressionLevel() > 0) {
+            deflater = new ParallelDeflater(options.getCompressionLevel(), Runtime.getRuntime().availableProcessors(),
+                    "blobbackup-" + blobStorePath.getFileName());
+        }
+        try {
+            for (int i = 0; i <= shards.getCount(); i++) {
+                passes.add(new ArchivePass(i, i == 0 ? zipFile.toPath() : nextPart(zipFile), shards, stats, incremental));
+            }
+
+            List<Future<Void>> futures = new ArrayList<>();
+            if (shards.getCount() > 0) {
+                log.info("backup of blob store {} split in {} parts", zipFile.getName(), shards.getCount());
+                executor = Executors.newFixedThreadPool(shards.getCount(),
+                        new ThreadFactoryBuilder().setNameFormat("blobbackup-" + blobStorePath.getFileName() + "-%d").setDaemon(true).build());
+                for (ArchivePass pass : passes.subList(1, passes.size())) {
+                    futures.add(executor.submit(pass));
+                }
+            }
+            ArchivePass main = passes.get(0);
+            main.call();
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("backup of blob store part failed", e.getCause());
+                }
+            }
+            boolean canceled = passes.stream().anyMatch(pass -> pass.canceled);
+            if (canceled && (manifest == null || checkpoint == null || options.getStorage() != null)) {
+                throw new CancellationException(String.format("backup of blob store %s cancelled", zipFile.getName()));
+            }
+            for (ArchivePass pass : passes) {
+                if (pass.canceled) {
+                    pass.finishPartial();
+                }
+            }
+
+            if (!parts.isEmpty()) {
+                StringBuilder list = new StringBuilder();
+                for (Path part : parts) {
+                    list.append(part.getParent().equals(zipFile.toPath().toAbsolutePath().getParent()) ? part.getFileName() : part.toAbsolutePath()).append('\n');
+                }
+                if (parts.size() > shards.getCount()) {
+                    log.info("backup of blob store {} rolled over into {} parts", zipFile.getName(), parts.size());
+                }
+                main.first.write(PARTS_ENTRY, list.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (manifest != null) {
+                Properties info = new Properties();
+                info.setProperty("type", incremental ? "incremental" : "full");
+                info.setProperty("full", incremental ? previous.getFullBackupName() : zipFile.getName());
+                if (incremental) {
+                    info.setProperty("previous", previous.getBackupName());
+                    info.setProperty("deleted", Long.toString(passes.stream().mapToLong(pass -> pass.deletedCount).sum()));
+                }
+                if (canceled) {
+                    info.setProperty("partial", "true");
+                }
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                info.store(content, null);
+                main.first.write(BACKUP_INFO_ENTRY, content.toByteArray());
+            }
+            main.first.finish();
+
+            if (manifest != null && (canceled || options.isIncremental())) {
+                try (BlobStoreManifest.Writer manifestWriter = manifest.openWriter(incremental ? previous.getRunsSinceFull() + 1 : 0, zipFile.getName(),
+                        incremental ? previous.getFullBackupName() : zipFile.getName())) {
+                    manifestWriter.addAll(passes.stream().map(pass -> pass.segment).collect(Collectors.toList()));
+                    manifestWriter.commit();
                 }
-            });
+            } else if (manifest != null) {
+                // left by a resumed checkpoint, next backup is a full one anyway
+                Files.deleteIfExists(manifest.getFile());
+            }
+            if (canceled) {
+                Map<Integer, String> positions = new TreeMap<>();
+                passes.stream().filter(pass -> pass.position != null).forEach(pass -> positions.put(pass.shard, pass.position));
+                checkpoint.write(zipFile.getName(), positions);
+                checkpointed = true;
+                log.warn("backup of blob store {} cancelled, {} entries archived so far kept as partial backup (stopped at {}), next backup resumes from it",
+                        zipFile.getName(), stats.count, positions.values());
+                throw new CancellationException(String.format("backup of blob store %s cancelled", zipFile.getName()));
+            }
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            listing.shutdownNow();
+            for (ArchivePass pass : passes) {
+                pass.close();
+            }
+            if (deflater != null) {
+                deflater.close();
+            }
         }
         long elapsedTime = System.currentTimeMillis() - start;
         log.info("backup of blob store {} finished successfully in {}.", zipFile.getName(), DurationFormatUtils.formatDuration(elapsedTime, "HH:mm:ss.S"));
+        if (filter != null) {
+            log.info("backup of blob store {} skipped {} files of deleted blobs ({})", zipFile.getName(), filter.getSkippedFiles(),
+                    humanReadableByteCountBin(filter.getSkippedSize()));
+        }
         stats.dump();
     }
 
+    /**
+     * @return name of the partial backup resumed by this one, when the checkpoint of the blob store matches the
+     *         manifest
+     */
+    private String resumedBackup(BlobStoreManifest.Header previous, File zipFile) throws IOException {
+        String name = checkpoint != null ? checkpoint.getBackupName() : null;
+        if (name == null || previous == null) {
+            return null;
+        }
+        if (!name.equals(previous.getBackupName()) || !Files.isRegularFile(zipFile.toPath().resolveSibling(name))) {
+            log.warn("ignoring checkpoint of blob store backup {}, partial backup {} is no longer the previous backup", zipFile.getName(), name);
+            return null;
+        }
+        log.info("backup of blob store {} resumes partial backup {} (stopped at {})", zipFile.getName(), name, checkpoint.getPositions().values());
+        return name;
+    }
+
+    private void checkCanceled(File zipFile) {
+        if (options.isCanceled()) {
+            throw new CancellationException(String.format("backup of blob store %s cancelled", zipFile.getName()));
+        }
+    }
+
+    /**
+     * Deletes the archives of a backup that did not complete, along with their checksum manifests and indexes
+     */
+    private void deleteArchives(Throwable cause) {
+        for (Path archive : archives) {
+            try {
+                Files.deleteIfExists(archive);
+                Files.deleteIfExists(BackupChecksums.of(archive));
+                Files.deleteIfExists(BlobArchiveIndex.of(archive));
+                if (options != null && options.getStorage() != null) {
+                    // uploads are discarded unless complete, parts already finished are not
+                    options.getStorage().delete(key(archive));
+                    options.getStorage().delete(key(BackupChecksums.of(archive)));
+                    options.getStorage().delete(key(BlobArchiveIndex.of(archive)));
+                }
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Allocates the next part of the backup, in the destination that follows the one of the previous part
+     *
+     * @return path of the part archive
+     */
+    private synchronized Path nextPart(File zipFile) {
+        int part = parts.size() + 1;
+        List<Path> destinations = options.getStorage() == null ? options.getDestinations() : Collections.emptyList();
+        int destination = part % (destinations.size() + 1);
+        Path folder = destination == 0 ? zipFile.toPath().toAbsolutePath().getParent() : destinations.get(destination - 1);
+        Path archive = folder.resolve(partName(zipFile.getName(), part));
+        parts.add(archive);
+        archives.add(archive);
+        return archive;
+    }
+
+    /**
+     * Name of a part of a blob store backup split in several archives
+     *
+     * @param backupName
+     *            name of the main backup file
+     * @param part
+     *            part number, starting at 1
+     * @return name of part file
+     */
+    public static String partName(String backupName, int part) {
+        return String.format("%s.part%02d", backupName, part);
+    }
+
+    /**
+     * Archives one shard of the blob store into its own archive, recording archived files in its own manifest segment.
+     * The archive rolls over into new parts as it reaches the maximum part size: the main archive is left open for the
+     * backup metadata, other archives are finished as soon as they are full
+     */
+    private class ArchivePass implements Callable<Void>, Closeable {
+        private final int shard;
+
+        private final BlobStoreShards shards;
+
+        private final ZipStats stats;
+
+        private final BlobArchiveWriter first;
+
+        private final List<BlobArchiveWriter> rolled = new ArrayList<>();
+
+        private Path archive;
+
+        private BlobArchiveWriter writer;
+
+        private final BlobStoreManifest.Writer segment;
+
+        private final ManifestMerge merge;
+
+        private long deletedCount;
+
+        private volatile boolean canceled;
+
+        private volatile String position;
+
+        ArchivePass(int shard, Path archive, BlobStoreShards shards, ZipStats stats, boolean incremental) throws IOException {
+            this.shard = shard;
+            this.archive = archive;
+            this.shards = shards;
+            this.stats = stats;
+            this.first = createWriter(archive);
+            this.writer = first;
+            this.segment = manifest != null ? manifest.openSegmentWriter(shard) : null;
+            this.merge = incremental ? new ManifestMerge(manifest.openReader(), archive, name -> shards.shardOf(name) == shard) : null;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            BlobStoreWalker.Visitor visitor = file -> {
+                checkCanceled(archive.toFile());
+                // unchanged files are already in the chain so they are recorded in the new manifest without archiving them
+                boolean backedUp = merge != null && merge.isUnchanged(file) || addEntry(writer, file, stats, archive.toFile());
+                if (backedUp && segment != null) {
+                    segment.add(file);
+                }
+                position = file.getName();
+                if (options.getMaxPartSize() > 0 && writer.size() >= options.getMaxPartSize()) {
+                    rollOver();
+                }
+            };
+            try {
+                if (shard == 0) {
+                    new BlobStoreWalker(blobStorePath, name -> shards.isRoot(name) || isExcluded(name), listing, BlobStoreWalker.DEFAULT_THREADS)
+                            .walk(visitor);
+                } else {
+                    BlobStoreWalker walker = new BlobStoreWalker(blobStorePath, BlobBackupRunner.this::isExcluded, listing,
+                            BlobStoreWalker.DEFAULT_THREADS);
+                    for (String root : shards.getRoots(shard)) {
+                        walker.walk(root, visitor);
+                    }
+                }
+            } catch (CancellationException e) {
+                // completed by finishPartial once every part has stopped
+                canceled = true;
+                return null;
+            }
+            if (merge != null) {
+                deletedCount = merge.finish(writer);
+            }
+            if (shard > 0 || writer != first) {
+                writer.finish();
+            }
+            return null;
+        }
+
+        private void rollOver() throws IOException {
+            if (shard > 0 || writer != first) {
+                writer.finish();
+            }
+            archive = nextPart(backupFile);
+            writer = createWriter(archive);
+            rolled.add(writer);
+            log.debug("backup of blob store {} rolled over into {}", backupFile.getName(), archive);
+        }
+
+        /**
+         * Completes the archive of a cancelled pass with the files archived so far. Previous entries not walked yet
+         * are still in the chain, so they are kept in the manifest rather than recorded as deleted
+         */
+        void finishPartial() throws IOException {
+            if (merge != null) {
+                deletedCount = merge.finishPartial(writer, segment);
+            }
+            if (shard > 0 || writer != first) {
+                writer.finish();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (BlobArchiveWriter part : rolled) {
+                    part.close();
+                }
+            } finally {
+                try {
+                    if (merge != null) {
+                        merge.close();
+                    }
+                } finally {
+                    try {
+                        if (segment != null) {
+                            segment.close();
+                        }
+                    } finally {
+                        first.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isExcluded(String name) {
+        return filter != null && filter.test(name);
+    }
+
+    private BlobArchiveWriter createWriter(Path archive) throws IOException {
+        switch (options.getFormat()) {
+        case DEDUP:
+            return new DedupBlobArchiveWriter(archive, backupFile.toPath().resolveSibling(DedupBlobArchiveWriter.CONTENT_STORE_DIR), deflater);
+        case PACK:
+            return new PackBlobArchiveWriter(createZipWriter(archive));
+        default:
+            return createZipWriter(archive);
+        }
+    }
+
+    private ZipBlobArchiveWriter createZipWriter(Path archive) throws IOException {
+        S3Storage storage = options.getStorage();
+        return new ZipBlobArchiveWriter(archive,
+                storage != null ? storage.create(key(archive), BackupChecksums.of(archive), BlobArchiveIndex.of(archive)) : null, deflater).indexed();
+    }
+
+    /**
+     * @return object storage key of a backup file, in the folder named as the one of the backup
+     */
+    private String key(Path file) {
+        return options.getStorage().key(backupFile.getParentFile().getName(), file.getFileName().toString());
+    }
+
+    private boolean addEntry(BlobArchiveWriter writer, BlobFile file, ZipStats stats, File zipFile) {
+        try {
+            long size = Math.max(0, file.getSize());
+            IoThrottle throttle = options.getThrottle();
+            if (!file.isDirectory()) {
+                throttle.acquireRead(size);
+            }
+            long start = System.nanoTime();
+            long storedSize = writer.write(file);
+            if (!file.isDirectory()) {
+                // only the read of the source tells the load of the blob store, not compression nor archive writes
+                throttle.completed(size, writer.getReadNanos());
+                options.getMetrics().archived(size, System.nanoTime() - start);
+            }
+            throttle.acquireWrite(storedSize);
+            stats.add(size, storedSize);
+            if (log.isDebugEnabled()) {
+                log.info("added entry to {} (size: {}, compressed size: {}); {}", zipFile.getName(), size, storedSize, file.getName());
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("error backing up path: " + file.getPath(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Merges previous manifest with the files being walked to tell unchanged files apart and collect the ones deleted
+     * since last backup, only considering the previous entries owned by the part being archived. Deleted names are
+     * spooled to a temporary file next to the backup as there may be millions.
+     */
+    private static class ManifestMerge implements Closeable {
+        private final BlobStoreManifest.Reader previous;
+
+        private final Predicate<String> owned;
+
+        private final Path deletedFile;
+
+        private final Writer deleted;
+
+        private BlobStoreManifest.Entry pending;
+
+        private long deletedCount;
+
+        ManifestMerge(BlobStoreManifest.Reader previous, Path archive, Predicate<String> owned) throws IOException {
+            this.previous = previous;
+            this.owned = owned;
+            this.deletedFile = Files.createTempFile(archive.getParent(), archive.getFileName().toString(), ".deleted");
+            this.deleted = Files.newBufferedWriter(deletedFile, StandardCharsets.UTF_8);
+            this.pending = previous.next();
+        }
+
+        boolean isUnchanged(BlobFile file) throws IOException {
+            while (pending != null && BlobStoreWalker.compareNames(pending.getName(), file.getName()) < 0) {
+                addDeleted(pending);
+                pending = previous.next();
+            }
+            if (pending != null && pending.getName().equals(file.getName())) {
+                BlobStoreManifest.Entry entry = pending;
+                pending = previous.next();
+                return !entry.isChanged(file);
+            }
+            return false;
+        }
+
+        private void addDeleted(BlobStoreManifest.Entry entry) throws IOException {
+            if (!owned.test(entry.getName())) {
+                // archived by another part
+                return;
+            }
+            deleted.write(entry.getName() + (entry.isDirectory() ? "/" : ""));
+            deleted.write('\n');
+            deletedCount++;
+        }
+
+        /**
+         * Records remaining previous entries as deleted and stores the list of deleted names in the archive
+         */
+        long finish(BlobArchiveWriter writer) throws IOException {
+            while (pending != null) {
+                addDeleted(pending);
+                pending = previous.next();
+            }
+            deleted.close();
+            writer.write(DELETED_ENTRY, deletedFile);
+            return deletedCount;
+        }
+
+        /**
+         * Carries remaining previous entries owned by the part over to the new manifest and stores the list of names
+         * deleted among the walked ones in the archive
+         */
+        long finishPartial(BlobArchiveWriter writer, BlobStoreManifest.Writer segment) throws IOException {
+            while (pending != null) {
+                if (owned.test(pending.getName())) {
+                    segment.add(pending);
+                }
+                pending = previous.next();
+            }
+            deleted.close();
+            writer.write(DELETED_ENTRY, deletedFile);
+            return deletedCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                deleted.close();
+                previous.close();
+            } finally {
+                Files.deleteIfExists(deletedFile);
+            }
+        }
+    }
+
     @Override
     public Void call() throws Exception {
         try {
             if (cmd != null) {
                 externalBackup(cmd);
             } else {
-                backup(blobStorePath, backupFile);
+                try {
+                    backup(blobStorePath, backupFile);
+                } catch (Throwable e) {
+                    if (!checkpointed) {
+                        deleteArchives(e);
+                    }
+                    throw e;
+                }
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Throwable e) {
+            if (cmd != null) {
+                throw new RuntimeException(String.format("backup of blob stores with external command \"%s\" failed", cmd), e);
+            }
             throw new RuntimeException(String.format("backup of blob store %s to file %s failed", blobStorePath.getFileName(), backupFile.getName()), e);
         }
 
@@ -0,0 +1,71 @@
+package es.fmp.nexus.backup.blob;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * A file or directory found while walking a blob store, together with the attributes read when it was listed
+ *
+ */
+public class BlobFile {
+
+    private final String name;
+
+    private final Path path;
+
+    private final boolean directory;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final int fileKey;
+
+    /**
+     * @param name
+     *            path relative to the blob store root, using '/' as separator
+     * @param path
+     *            absolute path of the file
+     * @param attrs
+     *            attributes read when the file was listed
+     */
+    public BlobFile(final String name, final Path path, final BasicFileAttributes attrs) {
+        this.name = name;
+        this.path = path;
+        this.directory = attrs.isDirectory();
+        this.size = directory ? -1 : attrs.size();
+        this.lastModified = attrs.lastModifiedTime().toMillis();
+        this.fileKey = Objects.hashCode(attrs.fileKey());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return size in bytes, -1 for directories
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return hash of the file system key (e.g. device and inode), 0 if the file system does not provide one
+     */
+    public int getFileKey() {
+        return fileKey;
+    }
+}
@@ -0,0 +1,263 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Set of blob IDs kept off-heap, so that the blobs of the largest blob stores can be compared with little memory. Blob
+ * IDs are UUIDs, stored as 16 byte keys of an open addressing hash table (linear probing, at most 3/4 full) in a
+ * memory-mapped temporary file, which the operating system pages in and out as needed: tens of millions of IDs take a
+ * few hundred MiB of page cache and no heap. The few IDs that are not UUIDs in canonical form are kept in a plain set.
+ * <p>
+ * Not thread safe.
+ *
+ */
+public class BlobIdSet implements Closeable {
+
+    private static final int SLOT_SIZE = 16;
+
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private static final long INITIAL_CAPACITY = 1L << 16;
+
+    private final Path directory;
+
+    private final Set<String> others = new HashSet<>();
+
+    private Path file;
+
+    private MappedByteBuffer[] chunks;
+
+    private long capacity;
+
+    private long size;
+
+    /**
+     * @param directory
+     *            directory the table file is created into, deleted when the set is closed
+     * @throws IOException
+     *             if table file cannot be created
+     */
+    public BlobIdSet(final Path directory) throws IOException {
+        this.directory = directory;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return whether ID was not in the set
+     */
+    public boolean add(final String id) throws IOException {
+        UUID uuid = parse(id);
+        if (uuid == null) {
+            return others.add(id);
+        }
+        if ((size + 1) * 4 > capacity * 3) {
+            grow();
+        }
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (long slot = home(msb, lsb);; slot = (slot + 1) & (capacity - 1)) {
+            MappedByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            long slotMsb = chunk.getLong(offset);
+            long slotLsb = chunk.getLong(offset + 8);
+            if (slotMsb == 0 && slotLsb == 0) {
+                chunk.putLong(offset, msb);
+                chunk.putLong(offset + 8, lsb);
+                size++;
+                return true;
+            }
+            if (slotMsb == msb && slotLsb == lsb) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return whether ID was in the set
+     */
+    public boolean remove(final String id) {
+        UUID uuid = parse(id);
+        if (uuid == null) {
+            return others.remove(id);
+        }
+        long slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot < 0) {
+            return false;
+        }
+        // shift back the following keys of the probe sequence, so that lookups never stop at the freed slot
+        long free = slot;
+        for (long next = (free + 1) & (capacity - 1);; next = (next + 1) & (capacity - 1)) {
+            MappedByteBuffer chunk = chunk(next);
+            int offset = offset(next);
+            long msb = chunk.getLong(offset);
+            long lsb = chunk.getLong(offset + 8);
+            if (msb == 0 && lsb == 0) {
+                break;
+            }
+            long home = home(msb, lsb);
+            // key can move to the free slot unless its home lies cyclically after the free slot, up to its own slot
+            boolean movable = free <= next ? home <= free || home > next : home <= free && home > next;
+            if (movable) {
+                MappedByteBuffer freeChunk = chunk(free);
+                freeChunk.putLong(offset(free), msb);
+                freeChunk.putLong(offset(free) + 8, lsb);
+                free = next;
+            }
+        }
+        MappedByteBuffer freeChunk = chunk(free);
+        freeChunk.putLong(offset(free), 0);
+        freeChunk.putLong(offset(free) + 8, 0);
+        size--;
+        return true;
+    }
+
+    public boolean contains(final String id) {
+        UUID uuid = parse(id);
+        if (uuid == null) {
+            return others.contains(id);
+        }
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    /**
+     * @return number of IDs in the set
+     */
+    public long size() {
+        return size + others.size();
+    }
+
+    /**
+     * Passes every ID of the set to given consumer, in no particular order
+     */
+    public void forEach(final Consumer<String> consumer) {
+        for (long slot = 0; slot < capacity; slot++) {
+            MappedByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            long msb = chunk.getLong(offset);
+            long lsb = chunk.getLong(offset + 8);
+            if (msb != 0 || lsb != 0) {
+                consumer.accept(new UUID(msb, lsb).toString());
+            }
+        }
+        others.forEach(consumer);
+    }
+
+    /**
+     * Deletes the table file
+     */
+    @Override
+    public void close() throws IOException {
+        chunks = new MappedByteBuffer[0];
+        capacity = 0;
+        size = 0;
+        others.clear();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * @return ID as a UUID, null if it is not a UUID in canonical form or it is the nil UUID, which marks free slots
+     */
+    private static UUID parse(final String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            if ((uuid.getMostSignificantBits() == 0 && uuid.getLeastSignificantBits() == 0) || !uuid.toString().equals(id)) {
+                return null;
+            }
+            return uuid;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private long find(final long msb, final long lsb) {
+        for (long slot = home(msb, lsb);; slot = (slot + 1) & (capacity - 1)) {
+            MappedByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            long slotMsb = chunk.getLong(offset);
+            long slotLsb = chunk.getLong(offset + 8);
+            if (slotMsb == msb && slotLsb == lsb) {
+                return slot;
+            }
+            if (slotMsb == 0 && slotLsb == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private long home(final long msb, final long lsb) {
+        // random UUIDs are already uniformly distributed, mixing only guards against other generators
+        long hash = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+        return (hash ^ (hash >>> 29)) & (capacity - 1);
+    }
+
+    private MappedByteBuffer chunk(final long slot) {
+        return chunks[(int) (slot * SLOT_SIZE / CHUNK_SIZE)];
+    }
+
+    private static int offset(final long slot) {
+        return (int) (slot * SLOT_SIZE % CHUNK_SIZE);
+    }
+
+    /**
+     * Replaces the table with an empty one of given capacity, in a new file
+     */
+    private void allocate(final long slots) throws IOException {
+        Path table = Files.createTempFile(directory, "blob-ids-", ".tmp");
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long bytes = slots * SLOT_SIZE;
+            MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((bytes + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < mapped.length; i++) {
+                // the file grows sparse and zero filled, which is an empty table
+                mapped[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * CHUNK_SIZE, Math.min(CHUNK_SIZE, bytes - i * CHUNK_SIZE));
+            }
+            file = table;
+            chunks = mapped;
+            capacity = slots;
+            size = 0;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(table);
+            throw e;
+        }
+    }
+
+    /**
+     * Doubles the capacity of the table, moving keys to a new file
+     */
+    private void grow() throws IOException {
+        Path oldFile = file;
+        MappedByteBuffer[] oldChunks = chunks;
+        long oldCapacity = capacity;
+        long oldSize = size;
+        allocate(oldCapacity * 2);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            MappedByteBuffer chunk = oldChunks[(int) (slot * SLOT_SIZE / CHUNK_SIZE)];
+            int offset = offset(slot);
+            long msb = chunk.getLong(offset);
+            long lsb = chunk.getLong(offset + 8);
+            if (msb == 0 && lsb == 0) {
+                continue;
+            }
+            long free = home(msb, lsb);
+            while (chunk(free).getLong(offset(free)) != 0 || chunk(free).getLong(offset(free) + 8) != 0) {
+                free = (free + 1) & (capacity - 1);
+            }
+            chunk(free).putLong(offset(free), msb);
+            chunk(free).putLong(offset(free) + 8, lsb);
+        }
+        size = oldSize;
+        Files.deleteIfExists(oldFile);
+    }
+}
@@ -0,0 +1,48 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Utilities for restoring backups of blob stores
+ *
+ */
+public interface BlobRestore
+{
+
+  /**
+   * @param backupFolder Name of folder holding blob backup files
+   * @param timestamp timestamp of the backup, as it appears in backup file names (e.g. 2019-12-14-00-00-00)
+   * @return java.util.List&lt;String&gt; Names of the backup files of each blob store taken at given time
+   * @throws IOException
+   */
+  List<String> backupFiles(String backupFolder, String timestamp) throws IOException;
+
+  /**
+   * Creates a restore job
+   *
+   * @param backupFolder Name of folder holding blob backup files
+   * @param backupFile Name of the backup file to restore
+   * @param targetFolder Name of folder where the blob store directory is restored
+   * @param threads number of extraction workers
+   * @return java.util.concurrent.Callable For restoring blob store
+   * @throws IOException
+   */
+  Callable<Void> restore(String backupFolder, String backupFile, String targetFolder, int threads) throws IOException;
+
+  /**
+   * Creates a job restoring single blobs, looked up in the indexes of the backup archives
+   *
+   * @param backupFolder Name of folder holding blob backup files
+   * @param backupFile Name of the backup file to restore from
+   * @param targetFolder Name of folder where the blob store directory holding the blobs is restored
+   * @param blobIds IDs of the blobs to restore
+   * @return java.util.concurrent.Callable For restoring the blobs, returning the IDs of those found in the backup
+   * @throws IOException
+   */
+  Callable<Set<String>> restoreBlobs(String backupFolder, String backupFile, String targetFolder, Collection<String> blobIds) throws IOException;
+
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.app.ApplicationDirectories;
+
+/**
+ * basic implementation of {@link BlobRestore}
+ *
+ */
+@Named
+@Singleton
+public class BlobRestoreImpl extends ComponentSupport implements BlobRestore {
+
+    private final ApplicationDirectories applicationDirectories;
+
+    @Inject
+    public BlobRestoreImpl(final ApplicationDirectories applicationDirectories) {
+        this.applicationDirectories = checkNotNull(applicationDirectories);
+    }
+
+    @Override
+    public List<String> backupFiles(final String backupFolder, final String timestamp) throws IOException {
+        try (Stream<Path> files = Files.list(applicationDirectories.getWorkDirectory(backupFolder).toPath())) {
+            return files.map(path -> path.getFileName().toString()).filter(name -> timestamp.equals(BlobRestoreRunner.backupTimestamp(name))).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Callable<Void> restore(final String backupFolder, final String backupFile, final String targetFolder, final int threads) throws IOException {
+        File source = new File(applicationDirectories.getWorkDirectory(backupFolder), backupFile);
+        if (!source.isFile()) {
+            throw new IOException("backup file not found: " + source.getAbsolutePath());
+        }
+        String blobStoreName = BlobRestoreRunner.blobStoreName(backupFile);
+        if (blobStoreName == null) {
+            throw new IOException("not a blob store backup file: " + source.getAbsolutePath());
+        }
+        File target = new File(applicationDirectories.getWorkDirectory(targetFolder), blobStoreName);
+        log.info("blob store {} will be restored from {} into {}", blobStoreName, source.getAbsolutePath(), target.getAbsolutePath());
+        return new BlobRestoreRunner(source.toPath(), target.toPath(), threads);
+    }
+
+    @Override
+    public Callable<Set<String>> restoreBlobs(final String backupFolder, final String backupFile, final String targetFolder, final Collection<String> blobIds)
+            throws IOException {
+        File source = new File(applicationDirectories.getWorkDirectory(backupFolder), backupFile);
+        if (!source.isFile()) {
+            throw new IOException("backup file not found: " + source.getAbsolutePath());
+        }
+        String blobStoreName = BlobRestoreRunner.blobStoreName(backupFile);
+        if (blobStoreName == null) {
+            throw new IOException("not a blob store backup file: " + source.getAbsolutePath());
+        }
+        File target = new File(applicationDirectories.getWorkDirectory(targetFolder), blobStoreName);
+        log.info("{} blobs of blob store {} will be restored from {} into {}", blobIds.size(), blobStoreName, source.getAbsolutePath(),
+                target.getAbsolutePath());
+        return new IndexedBlobRestoreRunner(source.toPath(), target.toPath(), blobIds);
+    }
+}
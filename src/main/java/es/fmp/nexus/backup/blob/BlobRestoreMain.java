@@ -0,0 +1,113 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command line entry point to restore blob store backups without a running Nexus, e.g.:
+ *
+ * <pre>
+ * java -cp nexus-backup-plugin.jar:slf4j-api.jar:commons-lang3.jar es.fmp.nexus.backup.blob.BlobRestoreMain \
+ *     [-threads N] [-stores N] [-blob ID]... [-blobs FILE] &lt;target dir&gt; &lt;bak file&gt;...
+ * </pre>
+ *
+ * Each backup file is restored into {@code <target dir>/<blob store name>}. Incremental chains and parts are resolved
+ * from the directory of the given backup file, so only the latest backup of each blob store has to be specified. With
+ * {@code -blob} (repeatable) or {@code -blobs} (a file with one ID per line) only those blobs are restored, looked up in
+ * the indexes of the backups, see {@link IndexedBlobRestoreRunner}.
+ *
+ */
+public class BlobRestoreMain {
+
+    private static final String USAGE = "usage: BlobRestoreMain [-threads N] [-stores N] [-blob ID]... [-blobs FILE] <target dir> <bak file>...";
+
+    public static void main(final String[] args) throws InterruptedException {
+        int threads = BlobRestoreRunner.DEFAULT_THREADS;
+        int stores = 1;
+        Set<String> blobIds = new LinkedHashSet<>();
+        List<String> arguments = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-threads".equals(args[i])) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("-stores".equals(args[i])) {
+                    stores = Integer.parseInt(args[++i]);
+                } else if ("-blob".equals(args[i])) {
+                    blobIds.add(args[++i]);
+                } else if ("-blobs".equals(args[i])) {
+                    for (String line : Files.readAllLines(Paths.get(args[++i]), StandardCharsets.UTF_8)) {
+                        if (!line.trim().isEmpty()) {
+                            blobIds.add(line.trim());
+                        }
+                    }
+                } else {
+                    arguments.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            arguments.clear();
+        } catch (IOException e) {
+            System.err.println("unable to read blob IDs: " + e);
+            System.exit(2);
+        }
+        if (arguments.size() < 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Path target = Paths.get(arguments.get(0));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, stores));
+        List<Future<?>> futures = new ArrayList<>();
+        List<Path> backupFiles = new ArrayList<>();
+        for (String argument : arguments.subList(1, arguments.size())) {
+            Path backupFile = Paths.get(argument);
+            String name = BlobRestoreRunner.blobStoreName(backupFile.getFileName().toString());
+            if (name == null) {
+                System.err.println("not a blob store backup file: " + backupFile);
+                System.exit(2);
+            }
+            backupFiles.add(backupFile);
+            if (blobIds.isEmpty()) {
+                futures.add(executor.submit(new BlobRestoreRunner(backupFile, target.resolve(name), threads)));
+            } else {
+                futures.add(executor.submit(new IndexedBlobRestoreRunner(backupFile, target.resolve(name), blobIds)));
+            }
+        }
+        executor.shutdown();
+
+        int failed = 0;
+        Set<String> notFound = new LinkedHashSet<>(blobIds);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                Object restored = futures.get(i).get();
+                if (restored instanceof Set) {
+                    notFound.removeAll((Set<?>) restored);
+                    System.out.println("restored " + ((Set<?>) restored).size() + " blobs from " + backupFiles.get(i));
+                } else {
+                    System.out.println("restored " + backupFiles.get(i));
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println("restore of " + backupFiles.get(i) + " failed: " + e.getCause());
+                for (Throwable cause = e.getCause().getCause(); cause != null; cause = cause.getCause()) {
+                    System.err.println("  caused by: " + cause);
+                }
+            }
+        }
+        for (String id : notFound) {
+            System.err.println("blob not found: " + id);
+        }
+        System.exit(failed == 0 && notFound.isEmpty() ? 0 : 1);
+    }
+}
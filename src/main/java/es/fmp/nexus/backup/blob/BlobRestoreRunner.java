@@ -0,0 +1,490 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread that restores a blob store from its backup. The central directory of each archive is streamed and
+ * its entries are extracted by a pool of workers, each one reading with positional reads into its own direct buffer,
+ * verifying sizes and CRCs (pack segments are unpacked by a worker each). Incremental chains (from the full backup to the requested one), parts, deleted lists and
+ * the content index of dedup backups are all applied, so the result is the blob store as it was when backed up.
+ *
+ */
+public class BlobRestoreRunner implements Callable<Void> {
+
+    /**
+     * Default number of extraction workers
+     */
+    public static final int DEFAULT_THREADS = 8;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    static final String METADATA_PREFIX = ".backup/";
+
+    private static final Pattern BACKUP_FILE_PATTERN = Pattern.compile("^(.+)-(\\d{4}(?:-\\d{2}){5})-(.+)\\.bak$");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path backupFile;
+
+    private final Path target;
+
+    private final int threads;
+
+    /**
+     * @param backupFile
+     *            main archive of the backup to restore. For incremental backups the rest of the chain is looked up next
+     *            to it
+     * @param target
+     *            directory the blob store is restored into. Must be empty or missing
+     * @param threads
+     *            number of extraction workers
+     */
+    public BlobRestoreRunner(final Path backupFile, final Path target, final int threads) {
+        this.backupFile = backupFile;
+        this.target = target;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param fileName
+     *            name of a blob store backup file
+     * @return name of the blob store backed up into given file, or null if name does not follow backup file naming
+     */
+    public static String blobStoreName(final String fileName) {
+        Matcher matcher = BACKUP_FILE_PATTERN.matcher(fileName);
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @param fileName
+     *            name of a blob store backup file
+     * @return timestamp of the backup in given file, or null if name does not follow backup file naming
+     */
+    public static String backupTimestamp(final String fileName) {
+        Matcher matcher = BACKUP_FILE_PATTERN.matcher(fileName);
+        return matcher.matches() ? matcher.group(2) : null;
+    }
+
+    /**
+     * @param backupFile
+     *            main archive of a blob store backup
+     * @return name of the backup given one was taken against if it is incremental, null if it is a full backup
+     * @throws IOException
+     *             if archive cannot be read
+     */
+    public static String previousBackup(final Path backupFile) throws IOException {
+        Properties info = readInfo(backupFile);
+        return info != null && "incremental".equals(info.getProperty("type")) ? info.getProperty("previous") : null;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        restore();
+        return null;
+    }
+
+    private class RestoreStats {
+        private static final long SIZE_PROGRESS_STEP = 1000 * 1024 * 1024;
+        private static final long COUNT_PROGRESS_STEP = 10000;
+
+        long reportedSize = 0;
+        int reportedCount = 0;
+        long startTs = System.currentTimeMillis();
+
+        long totalSize = 0;
+        int count = 0;
+
+        synchronized void add(long size) {
+            totalSize += size;
+            count++;
+
+            if ((totalSize - reportedSize) >= SIZE_PROGRESS_STEP || (count - reportedCount) >= COUNT_PROGRESS_STEP) {
+                long elapsedTime = Math.max(1, System.currentTimeMillis() - startTs);
+                log.info("blob store restore {} stats: {{}, {}, entries: {}, size: {}}", backupFile.getFileName(),
+                        BlobBackupRunner.humanReadableByteCountBin((totalSize - reportedSize) * 1000 / elapsedTime) + "/s",
+                        (count - reportedCount) * 1000 / elapsedTime + " files/s", count, BlobBackupRunner.humanReadableByteCountBin(totalSize));
+                reportedSize = totalSize;
+                reportedCount = count;
+                startTs = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void restore() throws Exception {
+        long start = System.currentTimeMillis();
+        if (Files.isDirectory(target)) {
+            try (Stream<Path> content = Files.list(target)) {
+                if (content.findAny().isPresent()) {
+                    throw new IOException("restore target " + target + " is not empty");
+                }
+            }
+        }
+        List<Path> chain = resolveChain(backupFile);
+        Properties info = readInfo(backupFile);
+        if (info != null && Boolean.parseBoolean(info.getProperty("partial"))) {
+            log.warn("blob store backup {} was cancelled before completion, only the files archived up to its checkpoint are restored",
+                    backupFile.getFileName());
+        }
+        Files.createDirectories(target);
+        Path root = target.toRealPath();
+
+        log.info("restore of blob store backup {} into {} starting ({} archives in chain, {} workers)", backupFile.getFileName(), target, chain.size(),
+                threads);
+        RestoreStats stats = new RestoreStats();
+        for (Path archive : chain) {
+            restoreBackup(archive, root, stats);
+        }
+        long elapsedTime = System.currentTimeMillis() - start;
+        log.info("restore of blob store backup {} finished successfully in {}: {} files, {}", backupFile.getFileName(),
+                DurationFormatUtils.formatDuration(elapsedTime, "HH:mm:ss.S"), stats.count, BlobBackupRunner.humanReadableByteCountBin(stats.totalSize));
+    }
+
+    /**
+     * @param backupFile
+     *            main archive of a backup
+     * @return main archives of its incremental chain, from the full backup to given one
+     * @throws IOException
+     *             if an archive of the chain is missing or cannot be read
+     */
+    static List<Path> resolveChain(final Path backupFile) throws IOException {
+        List<Path> chain = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Path archive = backupFile;
+        while (true) {
+            if (!Files.isRegularFile(archive)) {
+                throw new IOException("backup file " + archive + " not found");
+            }
+            if (!visited.add(archive.getFileName().toString())) {
+                throw new IOException("incremental chain of " + backupFile.getFileName() + " loops at " + archive.getFileName());
+            }
+            chain.add(archive);
+            Properties info = readInfo(archive);
+            if (info == null || !"incremental".equals(info.getProperty("type"))) {
+                break;
+            }
+            archive = archive.resolveSibling(info.getProperty("previous"));
+        }
+        Collections.reverse(chain);
+        return chain;
+    }
+
+    /**
+     * @param archive
+     *            main archive of a backup
+     * @return content of its {@link BlobBackupRunner#BACKUP_INFO_ENTRY}, or null if it was not taken with incremental
+     *         backups enabled
+     * @throws IOException
+     *             if archive cannot be read
+     */
+    static Properties readInfo(final Path archive) throws IOException {
+        try (ChannelZipReader reader = new ChannelZipReader(archive)) {
+            Map<String, ChannelZipReader.Entry> metadata = new HashMap<>();
+            reader.entries(entry -> {
+                if (entry.getName().startsWith(METADATA_PREFIX)) {
+                    metadata.put(entry.getName(), entry);
+                }
+            });
+            ChannelZipReader.Entry entry = metadata.get(BlobBackupRunner.BACKUP_INFO_ENTRY);
+            if (entry == null) {
+                return null;
+            }
+            Properties info = new Properties();
+            try (InputStream in = reader.openStream(entry)) {
+                info.load(in);
+            }
+            return info;
+        }
+    }
+
+    /**
+     * Restores one backup of the chain: its main archive and parts, the blobs referenced by its content index and
+     * finally removes the names it records as deleted
+     */
+    private void restoreBackup(final Path archive, final Path root, final RestoreStats stats) throws Exception {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * 256), r -> {
+            Thread thread = new Thread(r, "blobrestore-" + target.getFileName() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+        List<ChannelZipReader> readers = new ArrayList<>();
+        List<Map<String, ChannelZipReader.Entry>> metadata = new ArrayList<>();
+        try {
+            try {
+                extractAll(archive, root, stats, workers, buffers, failure, readers, metadata);
+            } catch (IOException e) {
+                // scanning is aborted when a worker fails, which is the error to report
+                if (failure.get() == null) {
+                    throw e;
+                }
+            } finally {
+                workers.shutdown();
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            if (failure.get() != null) {
+                throw new IOException("restore of " + archive.getFileName() + " failed", failure.get());
+            }
+            for (int i = 0; i < readers.size(); i++) {
+                ChannelZipReader.Entry deleted = metadata.get(i).get(BlobBackupRunner.DELETED_ENTRY);
+                if (deleted != null) {
+                    applyDeleted(readers.get(i), deleted, root);
+                }
+            }
+        } finally {
+            for (ChannelZipReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Streams entries of the main archive and its parts to the workers, collecting backup metadata entries
+     */
+    private void extractAll(final Path archive, final Path root, final RestoreStats stats, final ThreadPoolExecutor workers,
+            final ThreadLocal<ByteBuffer> buffers, final AtomicReference<Exception> failure, final List<ChannelZipReader> readers,
+            final List<Map<String, ChannelZipReader.Entry>> metadata) throws IOException {
+        List<Path> archives = new ArrayList<>();
+        archives.add(archive);
+        for (int i = 0; i < archives.size(); i++) {
+            ChannelZipReader reader = new ChannelZipReader(archives.get(i));
+            readers.add(reader);
+            Map<String, ChannelZipReader.Entry> entries = new HashMap<>();
+            metadata.add(entries);
+            log.info("restoring {} ({} entries)", archives.get(i), reader.size());
+
+            String[] parent = new String[1];
+            reader.entries(entry -> {
+                if (failure.get() != null) {
+                    throw new IOException("restore of " + archive.getFileName() + " aborted");
+                }
+                if (PackSegment.isSegment(entry.getName())) {
+                    workers.execute(() -> {
+                        try {
+                            unpack(reader, entry, root, stats);
+                        } catch (IOException | RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    });
+                    return;
+                }
+                if (entry.getName().startsWith(METADATA_PREFIX)) {
+                    entries.put(entry.getName(), entry);
+                    return;
+                }
+                Path path = resolve(root, entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    return;
+                }
+                // entries come sorted by path, so parent directories only need to be checked when they change
+                String entryParent = path.getParent().toString();
+                if (!entryParent.equals(parent[0])) {
+                    Files.createDirectories(path.getParent());
+                    parent[0] = entryParent;
+                }
+                workers.execute(() -> {
+                    try {
+                        reader.extract(entry, path, buffers.get());
+                        stats.add(entry.getSize());
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            });
+
+            if (i == 0 && entries.containsKey(BlobBackupRunner.PARTS_ENTRY)) {
+                for (String part : readLines(reader, entries.get(BlobBackupRunner.PARTS_ENTRY))) {
+                    archives.add(resolvePart(archive, part));
+                }
+            }
+            ChannelZipReader.Entry contentIndex = entries.get(DedupBlobArchiveWriter.CONTENT_INDEX_ENTRY);
+            if (contentIndex != null) {
+                // the content store is next to the main archive, wherever parts are
+                restoreContent(archive, reader, contentIndex, root, workers, failure, stats);
+            }
+        }
+    }
+
+    /**
+     * Extracts the files of a pack segment, verifying their CRCs
+     */
+    private void unpack(final ChannelZipReader reader, final ChannelZipReader.Entry segment, final Path root, final RestoreStats stats)
+            throws IOException {
+        try (PackSegment.Reader pack = new PackSegment.Reader(reader.openStream(segment))) {
+            Path parent = null;
+            for (int i = 0; i < pack.size(); i++) {
+                Path path = resolve(root, pack.getName(i));
+                if (!path.getParent().equals(parent)) {
+                    Files.createDirectories(path.getParent());
+                    parent = path.getParent();
+                }
+                Files.write(path, pack.read(i));
+                Files.setLastModifiedTime(path, FileTime.fromMillis(pack.getLastModified(i)));
+                stats.add(pack.getSize(i));
+            }
+        } catch (IOException e) {
+            throw new IOException("unable to unpack " + segment.getName() + " of " + reader.getFile().getFileName(), e);
+        }
+    }
+
+    /**
+     * Copies blob content referenced by the content index of a dedup backup from the content store
+     */
+    private void restoreContent(final Path archive, final ChannelZipReader reader, final ChannelZipReader.Entry contentIndex, final Path root,
+            final ThreadPoolExecutor workers, final AtomicReference<Exception> failure, final RestoreStats stats) throws IOException {
+        Path contentStore = archive.resolveSibling(DedupBlobArchiveWriter.CONTENT_STORE_DIR);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(contentIndex), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null && failure.get() == null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                Path path = resolve(root, line.substring(0, tab));
+                Path content = DedupBlobArchiveWriter.contentPath(contentStore, line.substring(tab + 1));
+                Files.createDirectories(path.getParent());
+                workers.execute(() -> {
+                    try {
+                        Files.copy(content, path, StandardCopyOption.REPLACE_EXISTING);
+                        stats.add(Files.size(path));
+                    } catch (IOException | RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes names deleted since previous backup of the chain. Directories are removed last and only when empty
+     */
+    private void applyDeleted(final ChannelZipReader reader, final ChannelZipReader.Entry deleted, final Path root) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(deleted), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Path path = resolve(root, line);
+                if (line.endsWith("/")) {
+                    directories.add(path);
+                } else {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        Collections.sort(directories, Collections.reverseOrder());
+        for (Path directory : directories) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (DirectoryNotEmptyException e) {
+                log.debug("deleted directory {} is not empty, keeping it", directory);
+            }
+        }
+    }
+
+    /**
+     * Resolves a part listed by a main archive: part file names are next to it, absolute paths are in other
+     * destinations, unless the part is missing there and a copy is next to the main archive (e.g. once backups were
+     * gathered in one place)
+     *
+     * @param archive
+     *            main archive
+     * @param part
+     *            part as listed in the main archive
+     * @return path of the part
+     */
+    public static Path resolvePart(final Path archive, final String part) {
+        Path path = archive.resolveSibling(part);
+        if (path.isAbsolute() && !Files.exists(path) && Files.exists(archive.resolveSibling(path.getFileName()))) {
+            return archive.resolveSibling(path.getFileName());
+        }
+        return path;
+    }
+
+    /**
+     * Lists the parts of a blob store backup split in several archives
+     *
+     * @param backupFile
+     *            main archive
+     * @return paths of the parts, empty if the backup is a single archive
+     * @throws IOException
+     *             if the main archive cannot be read
+     */
+    public static List<Path> parts(final Path backupFile) throws IOException {
+        List<Path> parts = new ArrayList<>();
+        try (ChannelZipReader reader = new ChannelZipReader(backupFile)) {
+            ChannelZipReader.Entry[] list = new ChannelZipReader.Entry[1];
+            reader.entries(entry -> {
+                if (entry.getName().equals(BlobBackupRunner.PARTS_ENTRY)) {
+                    list[0] = entry;
+                }
+            });
+            if (list[0] != null) {
+                for (String part : readLines(reader, list[0])) {
+                    parts.add(resolvePart(backupFile, part));
+                }
+            }
+        }
+        return parts;
+    }
+
+    static List<String> readLines(final ChannelZipReader reader, final ChannelZipReader.Entry entry) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(entry), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return path of an archive entry below restore root, refusing names that would escape it
+     */
+    static Path resolve(final Path root, final String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            throw new IOException("invalid entry name " + name);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,124 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Excludes from backups the blob store files that are not needed to restore it: the {@code tmp} directory, where
+ * FileBlobStore writes uploads in progress, and the files of soft-deleted blobs. FileBlobStore only flags deleted blobs
+ * with {@code deleted=true} in their {@code .properties} file and removes them when the blob store is compacted, so the
+ * {@code .properties} file is parsed before its {@code .bytes} file is accepted. Blob files are skipped in pairs, so a
+ * restored blob store looks as if it had been compacted.
+ * <p>
+ * Tests names relative to blob store root as visited by {@link BlobStoreWalker}; safe to share among threads.
+ *
+ */
+public class BlobStoreFilter implements Predicate<String> {
+
+    private static final String TMP_DIR = "tmp";
+
+    private static final String CONTENT_PREFIX = "content/";
+
+    private static final String BYTES_EXTENSION = ".bytes";
+
+    private static final String PROPERTIES_EXTENSION = ".properties";
+
+    private static final String DELETED_PROPERTY = "deleted";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path root;
+
+    /**
+     * Last blob checked by each thread, as walks visit the {@code .bytes} file of a blob right before its
+     * {@code .properties} one
+     */
+    private final ThreadLocal<CheckedBlob> lastChecked = ThreadLocal.withInitial(CheckedBlob::new);
+
+    private final AtomicLong skippedFiles = new AtomicLong();
+
+    private final AtomicLong skippedSize = new AtomicLong();
+
+    /**
+     * @param root
+     *            blob store root
+     */
+    public BlobStoreFilter(final Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public boolean test(final String name) {
+        if (name.equals(TMP_DIR)) {
+            return true;
+        }
+        String blob;
+        if (!name.startsWith(CONTENT_PREFIX)) {
+            return false;
+        } else if (name.endsWith(BYTES_EXTENSION)) {
+            blob = name.substring(0, name.length() - BYTES_EXTENSION.length());
+        } else if (name.endsWith(PROPERTIES_EXTENSION)) {
+            blob = name.substring(0, name.length() - PROPERTIES_EXTENSION.length());
+        } else {
+            return false;
+        }
+        CheckedBlob last = lastChecked.get();
+        if (!blob.equals(last.name)) {
+            last.name = blob;
+            last.deleted = isDeleted(blob);
+        }
+        boolean deleted = last.deleted;
+        if (deleted) {
+            skippedFiles.incrementAndGet();
+            try {
+                skippedSize.addAndGet(Files.size(root.resolve(name)));
+            } catch (IOException e) {
+                // size is only informative
+            }
+        }
+        return deleted;
+    }
+
+    private boolean isDeleted(final String blob) {
+        Path properties = root.resolve(blob + PROPERTIES_EXTENSION);
+        Properties values = new Properties();
+        try (InputStream in = Files.newInputStream(properties)) {
+            values.load(in);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("unable to read {}, blob is backed up: {}", properties, e.toString());
+            return false;
+        }
+        return Boolean.parseBoolean(values.getProperty(DELETED_PROPERTY));
+    }
+
+    private static class CheckedBlob {
+        String name;
+
+        boolean deleted;
+    }
+
+    /**
+     * @return number of files of soft-deleted blobs skipped so far
+     */
+    public long getSkippedFiles() {
+        return skippedFiles.get();
+    }
+
+    /**
+     * @return size of files of soft-deleted blobs skipped so far
+     */
+    public long getSkippedSize() {
+        return skippedSize.get();
+    }
+}
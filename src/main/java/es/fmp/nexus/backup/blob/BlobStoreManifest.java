@@ -0,0 +1,362 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact on-disk record of every file archived by the last backup of a blob store (name, size, modification time and
+ * file key), used to find new, changed and deleted files on the next incremental backup. Entries are stored in
+ * {@link BlobStoreWalker} order with names front-coded against the previous entry, so previous and current trees are
+ * merged in a single streaming pass without loading the manifest in memory.
+ *
+ */
+public class BlobStoreManifest {
+
+    private static final int MAGIC = 0x4e424d46;
+
+    private static final int VERSION = 1;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path file;
+
+    public BlobStoreManifest(final Path file) {
+        this.file = checkNotNull(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Manifest header, describing the backup that produced it
+     */
+    public static class Header {
+        private final int runsSinceFull;
+
+        private final String backupName;
+
+        private final String fullBackupName;
+
+        Header(final int runsSinceFull, final String backupName, final String fullBackupName) {
+            this.runsSinceFull = runsSinceFull;
+            this.backupName = backupName;
+            this.fullBackupName = fullBackupName;
+        }
+
+        /**
+         * @return number of incremental backups taken since last full backup
+         */
+        public int getRunsSinceFull() {
+            return runsSinceFull;
+        }
+
+        /**
+         * @return file name of the backup that produced the manifest
+         */
+        public String getBackupName() {
+            return backupName;
+        }
+
+        /**
+         * @return file name of the full backup the incremental chain is based on
+         */
+        public String getFullBackupName() {
+            return fullBackupName;
+        }
+    }
+
+    /**
+     * Single manifest entry
+     */
+    public static class Entry {
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final int fileKey;
+
+        Entry(final String name, final long size, final long lastModified, final int fileKey) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isDirectory() {
+            return size < 0;
+        }
+
+        /**
+         * @param file
+         *            current state of the file
+         * @return whether file differs from the archived one. Directories never change, only their content
+         */
+        public boolean isChanged(final BlobFile file) {
+            if (file.isDirectory() || isDirectory()) {
+                return file.isDirectory() != isDirectory();
+            }
+            return file.getSize() != size || file.getLastModified() != lastModified
+                    || (fileKey != 0 && file.getFileKey() != 0 && file.getFileKey() != fileKey);
+        }
+    }
+
+    /**
+     * Sequential reader of manifest entries
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        private final Header header;
+
+        private String last = "";
+
+        private Entry current;
+
+        Reader(final DataInputStream in) throws IOException {
+            this.in = in;
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported blob store manifest format");
+            }
+            this.header = new Header(in.readInt(), in.readUTF(), in.readUTF());
+        }
+
+        public Header getHeader() {
+            return header;
+        }
+
+        /**
+         * @return next entry in walk order or null if there are no more entries
+         * @throws IOException
+         *             on read failure
+         */
+        public Entry next() throws IOException {
+            if (!in.readBoolean()) {
+                current = null;
+            } else {
+                int common = in.readUnsignedShort();
+                last = last.substring(0, common) + in.readUTF();
+                current = new Entry(last, in.readLong(), in.readLong(), in.readInt());
+            }
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Writer of a new manifest. Data is written to a temporary file that only replaces the current manifest on
+     * {@link #commit()}, so a failed backup leaves the previous manifest untouched. Blob stores archived in several
+     * parts concurrently write one segment per part that are merged into the new manifest on commit.
+     */
+    public class Writer implements Closeable {
+        private final Path tmpFile;
+
+        private final DataOutputStream out;
+
+        private String last = "";
+
+        private boolean finished;
+
+        private boolean committed;
+
+        Writer(final Path tmpFile, final Header header) throws IOException {
+            this.tmpFile = tmpFile;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmpFile), 64 * 1024)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(header.getRunsSinceFull());
+            out.writeUTF(header.getBackupName());
+            out.writeUTF(header.getFullBackupName());
+        }
+
+        /**
+         * Adds entry. Files must be added in walk order
+         *
+         * @param blobFile
+         *            archived file
+         * @throws IOException
+         *             on write failure
+         */
+        public void add(final BlobFile blobFile) throws IOException {
+            add(blobFile.getName(), blobFile.getSize(), blobFile.getLastModified(), blobFile.getFileKey());
+        }
+
+        void add(final Entry entry) throws IOException {
+            add(entry.name, entry.size, entry.lastModified, entry.fileKey);
+        }
+
+        private void add(final String name, final long size, final long lastModified, final int fileKey) throws IOException {
+            int common = 0;
+            int max = Math.min(Math.min(name.length(), last.length()), 0xffff);
+            while (common < max && name.charAt(common) == last.charAt(common)) {
+                common++;
+            }
+            out.writeBoolean(true);
+            out.writeShort(common);
+            out.writeUTF(name.substring(common));
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeInt(fileKey);
+            last = name;
+        }
+
+        /**
+         * Adds the entries of several segments, merging them in walk order
+         *
+         * @param segments
+         *            segment writers, every entry of a segment must be after the ones already added
+         * @throws IOException
+         *             on read or write failure
+         */
+        public void addAll(final List<Writer> segments) throws IOException {
+            List<Reader> readers = new ArrayList<>();
+            try {
+                PriorityQueue<Reader> heads = new PriorityQueue<>(Math.max(1, segments.size()),
+                        (a, b) -> BlobStoreWalker.compareNames(a.current.name, b.current.name));
+                for (Writer segment : segments) {
+                    segment.finish();
+                    Reader reader = openReader(segment.tmpFile);
+                    readers.add(reader);
+                    if (reader.next() != null) {
+                        heads.add(reader);
+                    }
+                }
+                while (!heads.isEmpty()) {
+                    Reader head = heads.poll();
+                    add(head.current);
+                    if (head.next() != null) {
+                        heads.add(head);
+                    }
+                }
+            } finally {
+                for (Reader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                out.writeBoolean(false);
+                out.close();
+            }
+        }
+
+        /**
+         * Completes the manifest and makes it the current one
+         *
+         * @throws IOException
+         *             on write failure
+         */
+        public void commit() throws IOException {
+            finish();
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Discards the manifest if not committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                committed = true;
+                if (!finished) {
+                    finished = true;
+                    out.close();
+                }
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+
+    /**
+     * @return reader of current manifest
+     * @throws IOException
+     *             if manifest does not exist or cannot be read
+     */
+    public Reader openReader() throws IOException {
+        return openReader(file);
+    }
+
+    private static Reader openReader(final Path path) throws IOException {
+        return new Reader(new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path), 64 * 1024))));
+    }
+
+    /**
+     * @return header of current manifest or null if there is none
+     * @throws IOException
+     *             if manifest cannot be read
+     */
+    public Header readHeader() throws IOException {
+        if (!exists()) {
+            return null;
+        }
+        try (Reader reader = openReader()) {
+            return reader.getHeader();
+        }
+    }
+
+    /**
+     * @param runsSinceFull
+     *            number of incremental backups since the last full one (0 for a full backup)
+     * @param backupName
+     *            file name of the backup being taken
+     * @param fullBackupName
+     *            file name of the full backup of the chain
+     * @return writer of the new manifest
+     * @throws IOException
+     *             on write failure
+     */
+    public Writer openWriter(final int runsSinceFull, final String backupName, final String fullBackupName) throws IOException {
+        return new Writer(file.resolveSibling(file.getFileName() + TMP_SUFFIX), new Header(runsSinceFull, backupName, fullBackupName));
+    }
+
+    /**
+     * @param segment
+     *            segment number, unique within a backup
+     * @return writer of a manifest segment, to be merged into the new manifest with {@link Writer#addAll(List)}
+     * @throws IOException
+     *             on write failure
+     */
+    public Writer openSegmentWriter(final int segment) throws IOException {
+        return new Writer(file.resolveSibling(file.getFileName() + "." + segment + TMP_SUFFIX), new Header(0, "", ""));
+    }
+}
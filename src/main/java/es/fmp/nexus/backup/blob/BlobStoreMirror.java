@@ -0,0 +1,417 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Syncs a blob store into a dated directory ({@code <mirror root>/<timestamp>/}) holding a plain copy of its tree, the
+ * way rsnapshot does: files unchanged (same size and modification time) since the previous mirror are hard linked to
+ * it, so every mirror is complete but only changed files take space and time. The rest are copied with zero-copy
+ * channel transfers. The tree is walked by a work-stealing pool, one task per directory. With adaptive workers the
+ * number of files copied at a time is tuned while the mirror runs (see {@link WorkerTuner}).
+ * <p>
+ * The mirror is built in a {@code <timestamp>.partial} directory renamed once complete, so an interrupted run is never
+ * taken as previous mirror. Files that cannot be synced do not stop the walk, they are reported together at the end.
+ * When the task is cancelled the walk stops and the partial directory is kept as checkpoint: the next mirror resumes
+ * from it, keeping the files already synced that are unchanged and deleting those no longer in the blob store.
+ *
+ */
+public class BlobStoreMirror implements Callable<Void> {
+
+    /**
+     * Number of threads syncing a blob store unless blob backup parts sets more
+     */
+    public static final int DEFAULT_THREADS = 8;
+
+    /**
+     * Format of mirror directory names, same as the timestamp of backup files
+     */
+    public static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss");
+
+    private static final Pattern MIRROR_NAME = Pattern.compile("\\d{4}(?:-\\d{2}){5}");
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final long COUNT_PROGRESS_STEP = 10000;
+
+    private static final int MAX_REPORTED_FAILURES = 20;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path blobStorePath;
+
+    private final Path mirrorRoot;
+
+    private final String name;
+
+    private final BlobBackupOptions options;
+
+    private final Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong files = new AtomicLong();
+
+    private final AtomicLong copied = new AtomicLong();
+
+    private final AtomicLong copiedSize = new AtomicLong();
+
+    private final AtomicLong linked = new AtomicLong();
+
+    private final AtomicLong kept = new AtomicLong();
+
+    private boolean resumed;
+
+    private volatile boolean linksSupported = true;
+
+    private BlobStoreFilter filter;
+
+    private WorkerTuner tuner;
+
+    /**
+     * @param blobStorePath
+     *            blob store (or blob store snapshot) to mirror
+     * @param mirrorRoot
+     *            directory holding the mirrors of the blob store
+     * @param timestamp
+     *            time of the backup, naming the mirror directory
+     * @param options
+     *            backup settings
+     */
+    public BlobStoreMirror(final Path blobStorePath, final Path mirrorRoot, final LocalDateTime timestamp, final BlobBackupOptions options) {
+        this.blobStorePath = checkNotNull(blobStorePath);
+        this.mirrorRoot = checkNotNull(mirrorRoot);
+        this.name = timestamp.format(TIMESTAMP_FORMAT);
+        this.options = checkNotNull(options);
+    }
+
+    /**
+     * @return directory the mirror is synced into
+     */
+    public Path getPath() {
+        return mirrorRoot.resolve(name);
+    }
+
+    /**
+     * @param mirrorRoot
+     *            directory holding the mirrors of a blob store
+     * @return complete mirrors, oldest first
+     * @throws IOException
+     *             if directory cannot be listed
+     */
+    public static List<Path> mirrors(final Path mirrorRoot) throws IOException {
+        List<Path> mirrors = new ArrayList<>();
+        if (Files.isDirectory(mirrorRoot)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(mirrorRoot,
+                    path -> MIRROR_NAME.matcher(path.getFileName().toString()).matches() && Files.isDirectory(path))) {
+                stream.forEach(mirrors::add);
+            }
+        }
+        mirrors.sort(null);
+        return mirrors;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        long start = System.currentTimeMillis();
+        Path target = getPath();
+        if (Files.exists(target)) {
+            throw new IOException("mirror already exists: " + target);
+        }
+        Files.createDirectories(mirrorRoot);
+        List<Path> mirrors = mirrors(mirrorRoot);
+        Path previous = mirrors.isEmpty() ? null : mirrors.get(mirrors.size() - 1);
+        Path partial = mirrorRoot.resolve(name + PARTIAL_SUFFIX);
+        if (Files.exists(partial)) {
+            delete(partial);
+        }
+        Path checkpoint = lastPartial(mirrorRoot);
+        if (checkpoint != null) {
+            log.info("mirror of blob store {} resumes cancelled mirror {}", mirrorRoot.getFileName(), checkpoint.getFileName());
+            Files.move(checkpoint, partial, StandardCopyOption.ATOMIC_MOVE);
+            resumed = true;
+        } else {
+            Files.createDirectory(partial);
+        }
+        log.info("mirror of blob store {} into {} starting (previous mirror: {})", mirrorRoot.getFileName(), target,
+                previous != null ? previous.getFileName() : "none");
+
+        if (options.isSkipDeleted()) {
+            filter = new BlobStoreFilter(blobStorePath);
+        }
+        int threads = Math.max(DEFAULT_THREADS, options.getShards());
+        if (options.isAdaptiveWorkers()) {
+            tuner = new WorkerTuner(mirrorRoot.getFileName().toString(), WorkerTuner.of(mirrorRoot.getParent(), mirrorRoot.getFileName().toString()), threads);
+            threads = WorkerTuner.MAX_WORKERS;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new SyncDirectory(blobStorePath, "", partial, previous));
+        } finally {
+            pool.shutdownNow();
+            if (tuner != null) {
+                tuner.finish();
+            }
+        }
+
+        if (options.isCanceled()) {
+            log.warn("mirror of blob store {} cancelled after {} files, {} kept as checkpoint for the next mirror", mirrorRoot.getFileName(), files.get(),
+                    partial.getFileName());
+            throw new CancellationException(String.format("mirror of blob store %s cancelled", mirrorRoot.getFileName()));
+        }
+        if (!failures.isEmpty()) {
+            IOException e = new IOException(String.format("mirror of blob store %s failed for %d files", mirrorRoot.getFileName(), failures.size()));
+            failures.stream().limit(MAX_REPORTED_FAILURES).forEach(e::addSuppressed);
+            delete(partial);
+            throw e;
+        }
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        log.info("mirror of blob store {} completed in {}: {} files, {} copied ({}), {} linked, {} kept from cancelled mirror", mirrorRoot.getFileName(),
+                DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"), files.get(), copied.get(),
+                BlobBackupRunner.humanReadableByteCountBin(copiedSize.get()), linked.get(), kept.get());
+        if (filter != null) {
+            log.info("mirror of blob store {} skipped {} files of deleted blobs ({})", mirrorRoot.getFileName(), filter.getSkippedFiles(),
+                    BlobBackupRunner.humanReadableByteCountBin(filter.getSkippedSize()));
+        }
+        return null;
+    }
+
+    /**
+     * @return newest mirror left partial by a cancelled run, null if there is none
+     */
+    private static Path lastPartial(final Path mirrorRoot) throws IOException {
+        Path last = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(mirrorRoot, "*" + PARTIAL_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (MIRROR_NAME.matcher(name.substring(0, name.length() - PARTIAL_SUFFIX.length())).matches() && Files.isDirectory(path)
+                        && (last == null || path.compareTo(last) > 0)) {
+                    last = path;
+                }
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Syncs the files of a directory and forks a task for every subdirectory
+     */
+    private class SyncDirectory extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+
+        private final String prefix;
+
+        private final Path target;
+
+        private final Path previous;
+
+        SyncDirectory(final Path source, final String prefix, final Path target, final Path previous) {
+            this.source = source;
+            this.prefix = prefix;
+            this.target = target;
+            this.previous = previous;
+        }
+
+        @Override
+        protected void compute() {
+            List<SyncDirectory> subdirectories = new ArrayList<>();
+            Set<Path> synced = new HashSet<>();
+            boolean listed = false;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+                for (Path child : stream) {
+                    if (options.isCanceled()) {
+                        break;
+                    }
+                    String name = prefix + child.getFileName().toString();
+                    if (BlobStoreSnapshot.isSnapshot(name) || filter != null && filter.test(name)) {
+                        continue;
+                    }
+                    Path childTarget = target.resolve(child.getFileName().toString());
+                    Path childPrevious = previous != null ? previous.resolve(child.getFileName().toString()) : null;
+                    synced.add(childTarget.getFileName());
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                        if (attrs.isDirectory()) {
+                            if (resumed && Files.exists(childTarget) && !Files.isDirectory(childTarget)) {
+                                Files.delete(childTarget);
+                            }
+                            if (!resumed || !Files.isDirectory(childTarget)) {
+                                Files.createDirectory(childTarget);
+                            }
+                            SyncDirectory task = new SyncDirectory(child, name + "/", childTarget, childPrevious);
+                            task.fork();
+                            subdirectories.add(task);
+                        } else {
+                            sync(child, attrs, childTarget, childPrevious);
+                        }
+                    } catch (IOException e) {
+                        failures.add(new IOException("unable to mirror " + child + ": " + e, e));
+                    }
+                }
+                listed = !options.isCanceled();
+            } catch (IOException e) {
+                failures.add(new IOException("unable to list " + source + ": " + e, e));
+            }
+            if (resumed && listed) {
+                prune(target, synced);
+            }
+            subdirectories.forEach(SyncDirectory::join);
+        }
+    }
+
+    /**
+     * Deletes the entries of a resumed directory that are no longer in the blob store
+     */
+    private void prune(final Path target, final Set<Path> synced) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(target, path -> !synced.contains(path.getFileName()))) {
+            for (Path stale : stream) {
+                if (Files.isDirectory(stale)) {
+                    delete(stale);
+                } else {
+                    Files.delete(stale);
+                }
+            }
+        } catch (IOException e) {
+            failures.add(new IOException("unable to prune " + target + ": " + e, e));
+        }
+    }
+
+    private void sync(final Path source, final BasicFileAttributes attrs, final Path target, final Path previous) throws IOException {
+        if (resumed && Files.exists(target)) {
+            if (!Files.isDirectory(target) && unchanged(attrs, target)) {
+                kept.incrementAndGet();
+                progress();
+                return;
+            }
+            if (Files.isDirectory(target)) {
+                delete(target);
+            } else {
+                Files.delete(target);
+            }
+        }
+        if (previous != null && linksSupported && unchanged(attrs, previous)) {
+            try {
+                Files.createLink(target, previous);
+                linked.incrementAndGet();
+                progress();
+                return;
+            } catch (UnsupportedOperationException e) {
+                log.warn("hard links not available for mirror of blob store {}, copying unchanged files: {}", mirrorRoot.getFileName(), e.toString());
+                linksSupported = false;
+            } catch (IOException e) {
+                // e.g. maximum number of links to the file reached, a new copy starts a new chain
+                log.debug("unable to link {} to previous mirror, copying it: {}", target, e.toString());
+            }
+        }
+
+        if (tuner != null) {
+            try {
+                tuner.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("mirror of " + source + " interrupted");
+            }
+        }
+        IoThrottle throttle = options.getThrottle();
+        long start;
+        boolean done = false;
+        try {
+            throttle.acquireRead(attrs.size());
+            start = System.nanoTime();
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+            Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+            done = true;
+        } finally {
+            if (tuner != null && done) {
+                tuner.completed(attrs.size());
+            } else if (tuner != null) {
+                tuner.release();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        throttle.completed(attrs.size(), nanos);
+        throttle.acquireWrite(attrs.size());
+        options.getMetrics().archived(attrs.size(), nanos);
+        copied.incrementAndGet();
+        copiedSize.addAndGet(attrs.size());
+        progress();
+    }
+
+    private static boolean unchanged(final BasicFileAttributes attrs, final Path previous) {
+        try {
+            BasicFileAttributes previousAttrs = Files.readAttributes(previous, BasicFileAttributes.class);
+            return previousAttrs.isRegularFile() && previousAttrs.size() == attrs.size()
+                    && previousAttrs.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void progress() {
+        long count = files.incrementAndGet();
+        if (count % COUNT_PROGRESS_STEP == 0) {
+            log.info("mirror of blob store {} stats: {files: {}, copied: {} ({}), linked: {}}", mirrorRoot.getFileName(), count, copied.get(),
+                    BlobBackupRunner.humanReadableByteCountBin(copiedSize.get()), linked.get());
+        }
+    }
+
+    /**
+     * Deletes a mirror
+     *
+     * @param root
+     *            mirror directory
+     * @throws IOException
+     *             if a file cannot be deleted
+     */
+    public static void delete(final Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
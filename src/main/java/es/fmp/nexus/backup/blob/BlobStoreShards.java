@@ -0,0 +1,99 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Splits a file blob store into shards that can be archived concurrently. FileBlobStore spreads blobs evenly over
+ * {@code content/vol-NN} directories, which are assigned round-robin to shards numbered from 1. Everything else
+ * (store metadata, temporary files, etc.) belongs to shard 0, the main archive.
+ *
+ */
+public class BlobStoreShards {
+
+    private static final String CONTENT_DIR = "content";
+
+    private static final String VOLUME_PREFIX = "vol-";
+
+    private final Map<String, Integer> volumes = new HashMap<>();
+
+    private final List<List<String>> roots = new ArrayList<>();
+
+    /**
+     * @param blobStorePath
+     *            blob store root
+     * @param shards
+     *            maximum number of shards, besides the main one
+     * @throws IOException
+     *             if content directory cannot be listed
+     */
+    public BlobStoreShards(final Path blobStorePath, final int shards) throws IOException {
+        Path content = blobStorePath.resolve(CONTENT_DIR);
+        if (shards <= 1 || !Files.isDirectory(content)) {
+            return;
+        }
+
+        TreeSet<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(content, p -> Files.isDirectory(p) && p.getFileName().toString().startsWith(VOLUME_PREFIX))) {
+            for (Path volume : stream) {
+                names.add(CONTENT_DIR + "/" + volume.getFileName());
+            }
+        }
+        int count = Math.min(shards, names.size());
+        for (int i = 0; i < count; i++) {
+            roots.add(new ArrayList<>());
+        }
+        int i = 0;
+        for (String name : names) {
+            int shard = i++ % count;
+            roots.get(shard).add(name);
+            volumes.put(name, shard + 1);
+        }
+    }
+
+    /**
+     * @return number of shards besides the main one, 0 if the store is not sharded
+     */
+    public int getCount() {
+        return roots.size();
+    }
+
+    /**
+     * @param shard
+     *            shard number, from 1 to {@link #getCount()}
+     * @return names of the directories archived by given shard, in walk order
+     */
+    public List<String> getRoots(final int shard) {
+        return roots.get(shard - 1);
+    }
+
+    /**
+     * @param name
+     *            entry name relative to blob store root
+     * @return whether name is the root directory of a shard
+     */
+    public boolean isRoot(final String name) {
+        return volumes.containsKey(name);
+    }
+
+    /**
+     * @param name
+     *            entry name relative to blob store root
+     * @return shard the entry belongs to, 0 for the main archive
+     */
+    public int shardOf(final String name) {
+        if (volumes.isEmpty() || !name.startsWith(CONTENT_DIR + "/")) {
+            return 0;
+        }
+        int end = name.indexOf('/', CONTENT_DIR.length() + 1);
+        Integer shard = volumes.get(end < 0 ? name : name.substring(0, end));
+        return shard == null ? 0 : shard;
+    }
+}
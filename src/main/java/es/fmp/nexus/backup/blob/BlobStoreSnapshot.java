@@ -0,0 +1,211 @@
+package es.fmp.nexus.backup.blob;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fast point-in-time capture of a file blob store, taken while databases are frozen so that blobs can be archived once
+ * the freeze is released. Blob content ({@code .bytes} files) is write-once so it is hard linked into the snapshot
+ * directory, and any other file ({@code .properties} that may be updated, e.g. on soft deletion, and store metadata) is
+ * copied. The snapshot directory is created in the blob store root, so that it lives in the same file system even when
+ * the blob store is a mount of its own, and it is left out of blob store walks (see {@link #isSnapshot(String)}).
+ * Blob content is never copied nor symbolically linked: neither would be a point-in-time capture that takes little
+ * time, so the capture fails instead when hard links are not possible.
+ * <p>
+ * Snapshots left behind by backups that did not complete (e.g. the node was stopped while archiving) would keep the
+ * blobs they link on disk forever, so they are deleted before every capture (see {@link #deleteStale(Path)}).
+ *
+ */
+public class BlobStoreSnapshot {
+
+    /**
+     * Name prefix of snapshot directories in the blob store root
+     */
+    public static final String DIRECTORY_PREFIX = ".backup-snapshot-";
+
+    private static final String BYTES_EXTENSION = ".bytes";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path blobStorePath;
+
+    private final Path path;
+
+    /**
+     * @param blobStorePath
+     *            live blob store root
+     * @param id
+     *            unique identifier of the snapshot (e.g. backup file name)
+     */
+    public BlobStoreSnapshot(final Path blobStorePath, final String id) {
+        this.blobStorePath = checkNotNull(blobStorePath);
+        this.path = blobStorePath.resolve(DIRECTORY_PREFIX + id);
+    }
+
+    /**
+     * @param name
+     *            name relative to blob store root
+     * @return whether name is a snapshot directory, which walks of the blob store must skip
+     */
+    public static boolean isSnapshot(final String name) {
+        return name.startsWith(DIRECTORY_PREFIX) && name.indexOf('/') < 0;
+    }
+
+    /**
+     * @return snapshot root, to be archived as if it were the blob store
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Captures blob store content
+     *
+     * @param cancellation
+     *            tells whether the backup was cancelled, checked before every file so that a cancelled backup does not
+     *            keep databases frozen until the capture ends
+     * @return false if blob content cannot be hard linked into the snapshot (e.g. the file system does not support
+     *         hard links), in which case nothing was captured
+     * @throws IOException
+     *             if capture fails. Partial snapshot is removed
+     * @throws CancellationException
+     *             if backup is cancelled. Partial snapshot is removed
+     */
+    public boolean capture(final BooleanSupplier cancellation) throws IOException {
+        long start = System.currentTimeMillis();
+        List<String> stale = deleteStale(blobStorePath);
+        if (!stale.isEmpty()) {
+            log.warn("stale snapshots of blob store {} removed, left by backups that did not complete: {}", blobStorePath.getFileName(), stale);
+        }
+        Files.createDirectories(path);
+        ExecutorService listing = BlobStoreWalker.newListingExecutor("blobsnapshot-" + blobStorePath.getFileName());
+        try {
+            new BlobStoreWalker(blobStorePath, name -> false, listing, BlobStoreWalker.DEFAULT_THREADS).walk(file -> {
+                if (cancellation.getAsBoolean()) {
+                    throw new CancellationException(String.format("snapshot of blob store %s cancelled", blobStorePath.getFileName()));
+                }
+                Path target = path.resolve(file.getName());
+                if (file.isDirectory()) {
+                    Files.createDirectories(target);
+                } else if (!file.getName().endsWith(BYTES_EXTENSION)) {
+                    try {
+                        Files.copy(file.getPath(), target, StandardCopyOption.COPY_ATTRIBUTES);
+                    } catch (NoSuchFileException e) {
+                        log.debug("file removed while capturing blob store: {}", file.getPath());
+                    }
+                } else {
+                    link(file, target);
+                }
+            });
+        } catch (HardLinksUnavailable e) {
+            delete();
+            log.warn("blob content of blob store {} cannot be hard linked into a snapshot: {}", blobStorePath.getFileName(), e.getCause().toString());
+            return false;
+        } catch (IOException | RuntimeException e) {
+            delete();
+            throw e;
+        } finally {
+            listing.shutdownNow();
+        }
+        log.info("snapshot of blob store {} captured in {}", blobStorePath.getFileName(),
+                DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"));
+        return true;
+    }
+
+    private void link(final BlobFile file, final Path target) throws IOException {
+        try {
+            Files.createLink(target, file.getPath());
+        } catch (NoSuchFileException e) {
+            log.debug("file removed while capturing blob store: {}", file.getPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            throw new HardLinksUnavailable(e);
+        }
+    }
+
+    /**
+     * Thrown out of the walk when a hard link cannot be created
+     */
+    private static class HardLinksUnavailable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        HardLinksUnavailable(final Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Removes the snapshot. Blob store content is not affected
+     *
+     * @throws IOException
+     *             if snapshot cannot be removed
+     */
+    public void delete() throws IOException {
+        delete(path);
+    }
+
+    /**
+     * Removes all the snapshots of a blob store, left behind by backups that did not complete. Snapshots are only
+     * archived by the backup that captured them, so none of them will ever be archived
+     *
+     * @param blobStorePath
+     *            live blob store root
+     * @return names of the snapshots removed
+     * @throws IOException
+     *             if a snapshot cannot be removed
+     */
+    public static List<String> deleteStale(final Path blobStorePath) throws IOException {
+        List<String> removed = new ArrayList<>();
+        if (!Files.isDirectory(blobStorePath)) {
+            return removed;
+        }
+        try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(blobStorePath,
+                child -> isSnapshot(child.getFileName().toString()) && Files.isDirectory(child))) {
+            for (Path snapshot : snapshots) {
+                delete(snapshot);
+                removed.add(snapshot.getFileName().toString());
+            }
+        }
+        return removed;
+    }
+
+    private static void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
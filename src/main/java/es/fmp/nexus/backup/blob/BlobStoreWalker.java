@@ -0,0 +1,232 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Walks a blob store depth-first visiting every file and directory exactly once, in a stable order (children sorted by
+ * name) so that two walks of the same tree can be merged entry by entry (see {@link #compareNames(String, String)}).
+ * File attributes are read once per entry and handed over to the visitor. Backup snapshots in the blob store root are
+ * never visited.
+ * <p>
+ * When given an executor, directories are listed (and attributes of their entries read) in the background ahead of the
+ * visitor: on entering a directory the listings of its first subdirectories are requested, and every time one of them
+ * has been walked the listing of the next one is, so a bounded number of listings per level are in flight while
+ * entries are still visited in walk order. This keeps metadata I/O off the visiting thread on large blob stores
+ * ({@code content/vol-NN/chap-NN} directories holding millions of files), especially on network file systems.
+ *
+ */
+public class BlobStoreWalker {
+
+    /**
+     * Receives every entry of the walked tree
+     */
+    public interface Visitor {
+        void visit(BlobFile file) throws IOException;
+    }
+
+    private final Path root;
+
+    /**
+     * Number of listing threads for parallel walks
+     */
+    public static final int DEFAULT_THREADS = 8;
+
+    private final Predicate<String> excluded;
+
+    private final ExecutorService executor;
+
+    private final int lookahead;
+
+    public BlobStoreWalker(final Path root) {
+        this(root, name -> false);
+    }
+
+    /**
+     * @param root
+     *            blob store root
+     * @param excluded
+     *            names of entries that are neither visited nor descended into
+     */
+    public BlobStoreWalker(final Path root, final Predicate<String> excluded) {
+        this(root, excluded, null, 0);
+    }
+
+    /**
+     * @param root
+     *            blob store root
+     * @param excluded
+     *            names of entries that are neither visited nor descended into, tested on listing threads
+     * @param executor
+     *            executor directories are listed on, null to list them on the visiting thread
+     * @param lookahead
+     *            maximum number of subdirectories of a directory listed ahead of the visitor
+     */
+    public BlobStoreWalker(final Path root, final Predicate<String> excluded, final ExecutorService executor, final int lookahead) {
+        this.root = root;
+        this.excluded = excluded;
+        this.executor = executor;
+        this.lookahead = Math.max(1, lookahead);
+    }
+
+    /**
+     * @param name
+     *            prefix of thread names
+     * @return executor for parallel walks, with {@link #DEFAULT_THREADS} daemon threads
+     */
+    public static ExecutorService newListingExecutor(final String name) {
+        return Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactoryBuilder().setNameFormat(name + "-list-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Visits all entries below root (root itself is not visited)
+     *
+     * @param visitor
+     *            receiver of entries
+     * @throws IOException
+     *             if a directory cannot be listed or visitor fails
+     */
+    public void walk(final Visitor visitor) throws IOException {
+        walk(root, "", visitor);
+    }
+
+    /**
+     * Visits a directory below root and all its entries
+     *
+     * @param name
+     *            name of the directory relative to root
+     * @param visitor
+     *            receiver of entries
+     * @throws IOException
+     *             if a directory cannot be listed or visitor fails
+     */
+    public void walk(final String name, final Visitor visitor) throws IOException {
+        Path dir = root.resolve(name);
+        visitor.visit(new BlobFile(name, dir, Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+        walk(dir, name + "/", visitor);
+    }
+
+    private void walk(final Path dir, final String prefix, final Visitor visitor) throws IOException {
+        walk(request(dir, prefix), visitor);
+    }
+
+    private void walk(final Future<List<BlobFile>> listing, final Visitor visitor) throws IOException {
+        List<BlobFile> children = await(listing);
+        List<BlobFile> directories = children.stream().filter(BlobFile::isDirectory).collect(Collectors.toList());
+        Deque<Future<List<BlobFile>>> ahead = new ArrayDeque<>();
+        int requested = 0;
+        try {
+            for (; requested < directories.size() && requested < lookahead; requested++) {
+                ahead.add(request(directories.get(requested).getPath(), directories.get(requested).getName() + "/"));
+            }
+            for (BlobFile child : children) {
+                visitor.visit(child);
+                if (child.isDirectory()) {
+                    Future<List<BlobFile>> next = ahead.poll();
+                    if (requested < directories.size()) {
+                        ahead.add(request(directories.get(requested).getPath(), directories.get(requested).getName() + "/"));
+                        requested++;
+                    }
+                    walk(next, visitor);
+                }
+            }
+        } finally {
+            ahead.forEach(future -> future.cancel(false));
+        }
+    }
+
+    /**
+     * Requests the listing of a directory, started right away on the executor or, without one, once awaited
+     */
+    private Future<List<BlobFile>> request(final Path dir, final String prefix) {
+        if (executor != null) {
+            return executor.submit(() -> list(dir, prefix));
+        }
+        return new FutureTask<>(() -> list(dir, prefix));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<BlobFile> await(final Future<List<BlobFile>> listing) throws IOException {
+        if (listing instanceof FutureTask && !listing.isDone()) {
+            ((FutureTask<List<BlobFile>>) listing).run();
+        }
+        try {
+            return listing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("blob store walk interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Lists the entries of a directory in walk order, along with their attributes
+     */
+    private List<BlobFile> list(final Path dir, final String prefix) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        Collections.sort(children, (a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+
+        List<BlobFile> files = new ArrayList<>(children.size());
+        for (Path child : children) {
+            String name = prefix + child.getFileName().toString();
+            if (BlobStoreSnapshot.isSnapshot(name) || excluded.test(name)) {
+                continue;
+            }
+            BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            files.add(new BlobFile(name, child, attrs));
+        }
+        return files;
+    }
+
+    /**
+     * Compares relative names the same way entries are ordered by {@link #walk(Visitor)}: as plain strings but with the
+     * '/' separator sorting before any other character, so a directory's content comes before its next sibling.
+     *
+     * @param a
+     *            first name
+     * @param b
+     *            second name
+     * @return negative, zero or positive as a is before, equal to or after b in walk order
+     */
+    public static int compareNames(final String a, final String b) {
+        int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb) {
+                return (ca == '/' ? 0 : ca) - (cb == '/' ? 0 : cb);
+            }
+        }
+        return a.length() - b.length();
+    }
+}
@@ -0,0 +1,452 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Zip file reader built for concurrent extraction: the central directory is streamed (so memory does not grow with the
+ * number of entries) and entry data is read with positional reads on a shared {@link FileChannel}, so any number of
+ * threads can extract entries of the same archive at the same time. Supports STORED and DEFLATED entries and Zip64.
+ *
+ */
+public class ChannelZipReader implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int END_SIZE = 22;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    /**
+     * Central directory record of an entry
+     */
+    public static class Entry {
+        private final String name;
+
+        private final int method;
+
+        private final long dosTime;
+
+        private final long crc;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long offset;
+
+        Entry(final String name, final int method, final long dosTime, final long crc, final long compressedSize, final long size, final long offset) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return modification time in MS-DOS format, as recorded in the archive
+         */
+        long getDosTime() {
+            return dosTime;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return offset of the local header of the entry
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return modification time in milliseconds
+         */
+        public long getLastModified() {
+            if (dosTime == 0) {
+                return 0;
+            }
+            LocalDateTime ldt = LocalDateTime.of((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f), (int) ((dosTime >> 16) & 0x1f),
+                    (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f), (int) ((dosTime << 1) & 0x3e));
+            return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Sequential iterator over central directory records
+     */
+    public interface EntryVisitor {
+        void visit(Entry entry) throws IOException;
+    }
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final long entryCount;
+
+    private final long centralOffset;
+
+    private final long centralSize;
+
+    /**
+     * @param file
+     *            zip file
+     * @throws IOException
+     *             if file cannot be read or is not a zip file
+     */
+    public ChannelZipReader(final Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            int tailSize = (int) Math.min(size, END_SIZE + 0xFFFF + ZIP64_LOCATOR_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(tail, size - tailSize);
+            int end = -1;
+            for (int i = tailSize - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                throw new IOException("not a zip file: " + file);
+            }
+            long count = tail.getShort(end + 10) & 0xFFFF;
+            long cdSize = tail.getInt(end + 12) & ZIP64_MAGIC;
+            long cdOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+            if (end >= ZIP64_LOCATOR_SIZE && tail.getInt(end - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE) {
+                long zip64End = tail.getLong(end - ZIP64_LOCATOR_SIZE + 8);
+                ByteBuffer record = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(record, zip64End);
+                if (record.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new IOException("invalid zip64 end of central directory: " + file);
+                }
+                count = record.getLong(32);
+                cdSize = record.getLong(40);
+                cdOffset = record.getLong(48);
+            }
+            this.entryCount = count;
+            this.centralSize = cdSize;
+            this.centralOffset = cdOffset;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public long size() {
+        return entryCount;
+    }
+
+    /**
+     * Streams central directory records in archive order
+     *
+     * @param visitor
+     *            receiver of entries
+     * @throws IOException
+     *             on read failure or if visitor fails
+     */
+    public void entries(final EntryVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new RangeInputStream(centralOffset, centralSize), 256 * 1024))) {
+            byte[] fixed = new byte[46];
+            ByteBuffer record = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+            for (long i = 0; i < entryCount; i++) {
+                in.readFully(fixed);
+                if (record.getInt(0) != CENTRAL_HEADER_SIGNATURE) {
+                    throw new IOException("invalid central directory record in " + file);
+                }
+                int method = record.getShort(10) & 0xFFFF;
+                long dosTime = record.getInt(12) & ZIP64_MAGIC;
+                long crc = record.getInt(16) & ZIP64_MAGIC;
+                long compressedSize = record.getInt(20) & ZIP64_MAGIC;
+                long size = record.getInt(24) & ZIP64_MAGIC;
+                int nameLength = record.getShort(28) & 0xFFFF;
+                int extraLength = record.getShort(30) & 0xFFFF;
+                int commentLength = record.getShort(32) & 0xFFFF;
+                long offset = record.getInt(42) & ZIP64_MAGIC;
+
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                byte[] extra = new byte[extraLength];
+                in.readFully(extra);
+                skipFully(in, commentLength);
+
+                ByteBuffer extras = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+                while (extras.remaining() >= 4) {
+                    int id = extras.getShort() & 0xFFFF;
+                    int length = extras.getShort() & 0xFFFF;
+                    int next = extras.position() + length;
+                    if (id == 0x0001) {
+                        if (size == ZIP64_MAGIC) {
+                            size = extras.getLong();
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = extras.getLong();
+                        }
+                        if (offset == ZIP64_MAGIC) {
+                            offset = extras.getLong();
+                        }
+                    }
+                    extras.position(Math.min(next, extras.limit()));
+                }
+                visitor.visit(new Entry(new String(name, StandardCharsets.UTF_8), method, dosTime, crc, compressedSize, size, offset));
+            }
+        }
+    }
+
+    /**
+     * @param entry
+     *            archive entry
+     * @return offset of entry data within the archive
+     * @throws IOException
+     *             on read failure
+     */
+    public long dataOffset(final Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, entry.getOffset());
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("invalid local header for entry " + entry.getName() + " in " + file);
+        }
+        return entry.getOffset() + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * @param entry
+     *            archive entry
+     * @return stream of uncompressed entry content
+     * @throws IOException
+     *             on read failure or unsupported compression method
+     */
+    public InputStream openStream(final Entry entry) throws IOException {
+        InputStream raw = new RangeInputStream(dataOffset(entry), entry.getCompressedSize());
+        switch (entry.getMethod()) {
+        case METHOD_STORED:
+            return raw;
+        case METHOD_DEFLATED:
+            Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(new BufferedInputStream(raw, 64 * 1024), inflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        default:
+            throw new IOException("unsupported compression method " + entry.getMethod() + " for entry " + entry.getName());
+        }
+    }
+
+    /**
+     * Copies the data of an entry as stored in the archive, still compressed, using zero-copy transfers
+     *
+     * @param entry
+     *            archive entry
+     * @param target
+     *            channel receiving {@link Entry#getCompressedSize()} bytes
+     * @throws IOException
+     *             on read or write failure
+     */
+    public void transferData(final Entry entry, final WritableByteChannel target) throws IOException {
+        long position = dataOffset(entry);
+        long end = position + entry.getCompressedSize();
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                throw new EOFException("unexpected end of data for entry " + entry.getName() + " in " + file);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Extracts an entry into a file, verifying its size and CRC. Target file is sized up-front and its modification
+     * time is set to the one of the entry
+     *
+     * @param entry
+     *            archive entry, not a directory
+     * @param target
+     *            file to create or overwrite
+     * @param buffer
+     *            buffer to use for the copy, preferably a large direct one
+     * @throws IOException
+     *             on read or write failure or if CRC does not match
+     */
+    public void extract(final Entry entry, final Path target, final ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        long written = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+            raf.setLength(entry.getSize());
+            FileChannel out = raf.getChannel();
+            if (entry.getMethod() == METHOD_STORED) {
+                long position = dataOffset(entry);
+                long end = position + entry.getSize();
+                while (position < end) {
+                    buffer.clear();
+                    if (end - position < buffer.capacity()) {
+                        buffer.limit((int) (end - position));
+                    }
+                    int n = channel.read(buffer, position);
+                    if (n < 0) {
+                        throw new EOFException("unexpected end of data for entry " + entry.getName() + " in " + file);
+                    }
+                    position += n;
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        written += out.write(buffer);
+                    }
+                }
+            } else {
+                try (InputStream in = openStream(entry)) {
+                    byte[] chunk = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(chunk)) > 0) {
+                        crc.update(chunk, 0, n);
+                        ByteBuffer data = ByteBuffer.wrap(chunk, 0, n);
+                        while (data.hasRemaining()) {
+                            written += out.write(data);
+                        }
+                    }
+                }
+            }
+        }
+        if (written != entry.getSize() || crc.getValue() != entry.getCrc()) {
+            throw new IOException("corrupted entry " + entry.getName() + " in " + file + ": size " + written + "/" + entry.getSize() + ", crc "
+                    + Long.toHexString(crc.getValue()) + "/" + Long.toHexString(entry.getCrc()));
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getLastModified()));
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+        long p = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, p);
+            if (n < 0) {
+                throw new EOFException("unexpected end of file " + file);
+            }
+            p += n;
+        }
+    }
+
+    private static void skipFully(final InputStream in, final long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            long n = in.skip(remaining);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Stream over a range of the archive using positional reads, so it does not interfere with other readers
+     */
+    private class RangeInputStream extends InputStream {
+        private long position;
+
+        private final long end;
+
+        RangeInputStream(final long position, final long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) {
+                throw new EOFException("unexpected end of file " + file);
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
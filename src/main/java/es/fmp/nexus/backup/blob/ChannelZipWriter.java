@@ -0,0 +1,954 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import es.fmp.nexus.backup.BackupChecksums;
+import es.fmp.nexus.backup.BackupOutput;
+
+/**
+ * Zip file writer that emits true STORED entries and moves file content straight from the source file to the archive
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so data is never copied
+ * through the heap. The CRC32 and SHA-256 of large files are computed over a memory mapping of the source file, small
+ * files are read once into a direct buffer used for both the CRC and the write. Zip64 extensions are used whenever
+ * sizes, offsets or number of entries require them, and central directory records are spooled to a temporary file so
+ * memory use does not grow with the number of entries. Archives are readable by {@code unzip} and
+ * {@link java.util.zip.ZipFile}.
+ * <p>
+ * When created with a {@link ParallelDeflater} file entries are DEFLATED instead: small files are read in the calling
+ * thread and compressed by the deflater workers while next files are read, large files are compressed block by block
+ * in parallel, and compressed data is always written in entry order. Files that do not compress (a probe of their
+ * first block does not shrink) are still STORED.
+ * <p>
+ * The archive is only ever appended to, so its SHA-256 is computed over the data as it is written, along with the CRC
+ * and size of every entry, and recorded in a {@link BackupChecksums} manifest next to it once finished. Large
+ * compressed entries use a data descriptor instead of patching their local header.
+ * <p>
+ * For the same reason the archive can be streamed to a {@link BackupOutput} instead of a file, committed once
+ * finished. An entry that fails half-way cannot be taken back from a stream: its data is left as a gap no central
+ * directory record points to, which readers going by the central directory skip.
+ *
+ */
+public class ChannelZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static final int VERSION_STORED = 10;
+
+    private static final int VERSION_DEFLATED = 20;
+
+    private static final int VERSION_DIRECTORY = 20;
+
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final int VERSION_MADE_BY = (3 << 8) | VERSION_ZIP64; // unix
+
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int UNIX_FILE_ATTRIBUTES = 0100644 << 16;
+
+    private static final int UNIX_DIRECTORY_ATTRIBUTES = (040755 << 16) | 0x10;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final long MAX_MAPPING = 1024 * 1024 * 1024;
+
+    /**
+     * Entries this close to 4 GiB get Zip64 local headers when compressed, as compressed size is unknown in advance
+     */
+    private static final long ZIP64_DEFLATE_MARGIN = 64 * 1024 * 1024;
+
+    /**
+     * Files whose first compressed block is larger than this ratio (in thousandths) of it are STORED
+     */
+    private static final int MAX_DEFLATE_RATIO = 970;
+
+    /**
+     * Description of an archived entry
+     */
+    public static class Entry {
+        private final String name;
+
+        private final byte[] nameBytes;
+
+        private final int method;
+
+        private final int flags;
+
+        private final long dosTime;
+
+        private final long crc;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long offset;
+
+        private final boolean directory;
+
+        Entry(final String name, final int method, final int flags, final long lastModified, final long crc, final long compressedSize,
+                final long size, final long offset) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = toDosTime(lastModified);
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.directory = name.endsWith("/");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return offset of the local header of the entry within the archive
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        boolean isZip64() {
+            return size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        }
+    }
+
+    private final Path file;
+
+    private final WritableByteChannel out;
+
+    private final FileChannel fileOut;
+
+    private final Path centralFile;
+
+    private final OutputStream central;
+
+    private final ByteBuffer header = ByteBuffer.allocate(30 + 0xFFFF + 20).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    private long position;
+
+    private long count;
+
+    /**
+     * Time taken to read the source of the last file added, see {@link #getReadNanos()}
+     */
+    private long readNanos = -1;
+
+    private long centralSize;
+
+    private boolean finished;
+
+    private final ParallelDeflater deflater;
+
+    private final ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
+
+    private final BackupChecksums.Writer checksums;
+
+    private String checksumName;
+
+    private BlobArchiveIndex.Writer index;
+
+    private MessageDigest digest = BackupChecksums.newDigest();
+
+    /**
+     * Digest state before the entry being written, restored when the entry is rolled back
+     */
+    private MessageDigest entryStartDigest;
+
+    /**
+     * Archive channel updating the digest with the data written
+     */
+    private final WritableByteChannel digestingOut = new WritableByteChannel() {
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            return ChannelZipWriter.this.write(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // archive channel is closed by the writer
+        }
+    };
+
+    /**
+     * Small file entry waiting for its compression to complete
+     */
+    private static class PendingEntry {
+        private final String name;
+
+        private final long lastModified;
+
+        private final byte[] data;
+
+        private final Future<ParallelDeflater.Block> compressed;
+
+        PendingEntry(final String name, final long lastModified, final byte[] data, final Future<ParallelDeflater.Block> compressed) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.data = data;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * @param file
+     *            archive to create, truncated if it exists
+     * @throws IOException
+     *             if file cannot be created
+     */
+    public ChannelZipWriter(final Path file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * @param file
+     *            archive to create, truncated if it exists
+     * @param deflater
+     *            compressor for file entries, null to store them uncompressed
+     * @throws IOException
+     *             if file cannot be created
+     */
+    public ChannelZipWriter(final Path file, final ParallelDeflater deflater) throws IOException {
+        this(file, null, deflater);
+    }
+
+    /**
+     * @param file
+     *            archive to create, truncated if it exists. When streamed, only names the archive: its central
+     *            directory is spooled and its checksum manifest written next to it
+     * @param output
+     *            output the archive is streamed to instead of the file, committed once finished. Null to write the file
+     * @param deflater
+     *            compressor for file entries, null to store them uncompressed
+     * @throws IOException
+     *             if file cannot be created
+     */
+    public ChannelZipWriter(final Path file, final BackupOutput output, final ParallelDeflater deflater) throws IOException {
+        this.file = file;
+        this.deflater = deflater;
+        this.fileOut = output == null ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : null;
+        this.out = output != null ? output : fileOut;
+        this.centralFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".cd");
+        this.central = new BufferedOutputStream(Files.newOutputStream(centralFile), 256 * 1024);
+        this.checksums = new BackupChecksums.Writer(BackupChecksums.of(file));
+        this.checksumName = file.getFileName().toString();
+    }
+
+    /**
+     * @param name
+     *            name recorded for the archive in its checksum manifest, for archives renamed once finished
+     */
+    public void setChecksumName(final String name) {
+        this.checksumName = name;
+    }
+
+    /**
+     * Records the blob files of the archive in an index, written once the archive is finished. Must be set before
+     * adding entries
+     *
+     * @param index
+     *            index to write, null for none
+     */
+    public void setIndex(final BlobArchiveIndex.Writer index) {
+        this.index = index;
+    }
+
+    /**
+     * @return current size of the archive, not including compressed entries still pending to be written
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Adds a directory entry
+     *
+     * @param name
+     *            entry name, a trailing '/' is added if missing
+     * @param lastModified
+     *            modification time in milliseconds
+     * @return archived entry
+     * @throws IOException
+     *             on write failure
+     */
+    public Entry putDirectory(final String name, final long lastModified) throws IOException {
+        drain(0);
+        long start = begin();
+        try {
+            Entry entry = new Entry(name.endsWith("/") ? name : name + "/", METHOD_STORED, FLAG_UTF8, lastModified, 0, 0, 0, start);
+            writeLocalHeader(entry);
+            addCentralRecord(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            rollback(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an entry with the content of a file, STORED unless the writer compresses entries
+     *
+     * @param name
+     *            entry name
+     * @param source
+     *            file to archive
+     * @param lastModified
+     *            modification time in milliseconds
+     * @return archived entry, or null if its content is being compressed and will be written later
+     * @throws IOException
+     *             if source cannot be read or archive cannot be written. The archive is left as it was before the call
+     */
+    public Entry putFile(final String name, final Path source, final long lastModified) throws IOException {
+        readNanos = -1;
+        if (deflater != null) {
+            return putCompressedFile(name, source, lastModified);
+        }
+        return putStoredFile(name, source, lastModified);
+    }
+
+    /**
+     * @return time taken to read the source of the last file added by {@link #putFile(String, Path, long)}, in
+     *         nanoseconds, or -1 if it was not read apart from being written (files larger than a read buffer or a
+     *         compression block)
+     */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    private Entry putStoredFile(final String name, final Path source, final long lastModified) throws IOException {
+        drain(0);
+        long start = begin();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            Entry entry;
+            if (size <= BUFFER_SIZE) {
+                long readStart = System.nanoTime();
+                buffer.clear();
+                while (buffer.position() < size && in.read(buffer) >= 0) {
+                    // read whole file
+                }
+                readNanos = System.nanoTime() - readStart;
+                buffer.flip();
+                if (buffer.remaining() != size) {
+                    throw new IOException("file size changed while archiving: " + source);
+                }
+                crc.reset();
+                crc.update(buffer.duplicate());
+                entry = new Entry(name, METHOD_STORED, FLAG_UTF8, lastModified, crc.getValue(), size, size, start);
+                writeLocalHeader(entry);
+                writeFully(buffer);
+            } else {
+                MappedByteBuffer[] mappings = map(in, size);
+                crc.reset();
+                for (MappedByteBuffer mapping : mappings) {
+                    crc.update(mapping.duplicate());
+                }
+                entry = new Entry(name, METHOD_STORED, FLAG_UTF8, lastModified, crc.getValue(), size, size, start);
+                writeLocalHeader(entry);
+                long transferred = 0;
+                while (transferred < size) {
+                    long n = in.transferTo(transferred, size - transferred, out);
+                    if (n <= 0) {
+                        throw new IOException("file size changed while archiving: " + source);
+                    }
+                    // data is moved by the kernel, the digest reads it from the mapping the CRC was computed from
+                    digest(mappings, transferred, n);
+                    transferred += n;
+                    position += n;
+                }
+            }
+            addCentralRecord(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            rollback(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies an entry of another archive as is: its data is transferred still compressed and its CRC is not computed
+     * again
+     *
+     * @param source
+     *            archive holding the entry
+     * @param sourceEntry
+     *            entry to copy, STORED or DEFLATED
+     * @return archived entry
+     * @throws IOException
+     *             on read or write failure. The archive is left as it was before the call
+     */
+    public Entry putEntry(final ChannelZipReader source, final ChannelZipReader.Entry sourceEntry) throws IOException {
+        return putEntry(source, sourceEntry, sourceEntry.getName());
+    }
+
+    /**
+     * Copies an entry of another archive under another name, see
+     * {@link #putEntry(ChannelZipReader, ChannelZipReader.Entry)}
+     *
+     * @param source
+     *            archive holding the entry
+     * @param sourceEntry
+     *            entry to copy
+     * @param name
+     *            name of the copy
+     * @return archived entry
+     * @throws IOException
+     *             on read or write failure. The archive is left as it was before the call
+     */
+    public Entry putEntry(final ChannelZipReader source, final ChannelZipReader.Entry sourceEntry, final String name) throws IOException {
+        if (sourceEntry.isDirectory()) {
+            return putDirectory(name, sourceEntry.getLastModified());
+        }
+        PackSegment.Reader pack = index != null && PackSegment.isSegment(name) ? readSegment(source.openStream(sourceEntry)) : null;
+        drain(0);
+        long start = begin();
+        try {
+            Entry entry = new Entry(name, sourceEntry.getMethod(), FLAG_UTF8, sourceEntry.getLastModified(), sourceEntry.getCrc(),
+                    sourceEntry.getCompressedSize(), sourceEntry.getSize(), start);
+            writeLocalHeader(entry);
+            source.transferData(sourceEntry, digestingOut);
+            addCentralRecord(entry);
+            if (pack != null) {
+                index.addSegment(name, pack);
+            }
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            rollback(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds an entry with content held in memory, compressed like a file when the writer compresses entries and the
+     * content fits in a single compression block, STORED otherwise
+     *
+     * @param name
+     *            entry name
+     * @param content
+     *            entry content, not to be modified afterwards
+     * @param lastModified
+     *            modification time in milliseconds
+     * @return archived entry, or null if its content is being compressed and will be written later
+     * @throws IOException
+     *             on write failure
+     */
+    public Entry putContent(final String name, final byte[] content, final long lastModified) throws IOException {
+        PackSegment.Reader pack = index != null && PackSegment.isSegment(name) ? readSegment(new ByteArrayInputStream(content)) : null;
+        Entry entry = null;
+        if (deflater == null || content.length > ParallelDeflater.BLOCK_SIZE) {
+            entry = putBytes(name, content, lastModified);
+        } else {
+            drain(deflater.getThreads() * 4);
+            pending.add(new PendingEntry(name, lastModified, content, deflater.deflateEntry(content, content.length)));
+        }
+        if (pack != null) {
+            // a pending segment that cannot be written fails the whole archive, which then gets no index
+            index.addSegment(name, pack);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the file block of a pack segment, so its files can be recorded in the index once the segment is archived
+     */
+    private static PackSegment.Reader readSegment(final InputStream segment) throws IOException {
+        try (PackSegment.Reader pack = new PackSegment.Reader(segment)) {
+            return pack;
+        }
+    }
+
+    /**
+     * Adds a STORED entry with given content
+     *
+     * @param name
+     *            entry name
+     * @param content
+     *            entry content
+     * @param lastModified
+     *            modification time in milliseconds
+     * @return archived entry
+     * @throws IOException
+     *             on write failure
+     */
+    public Entry putBytes(final String name, final byte[] content, final long lastModified) throws IOException {
+        drain(0);
+        long start = begin();
+        try {
+            crc.reset();
+            crc.update(content);
+            Entry entry = new Entry(name, METHOD_STORED, FLAG_UTF8, lastModified, crc.getValue(), content.length, content.length, start);
+            writeLocalHeader(entry);
+            writeFully(ByteBuffer.wrap(content));
+            addCentralRecord(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            rollback(start);
+            throw e;
+        }
+    }
+
+    private Entry putCompressedFile(final String name, final Path source, final long lastModified) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size <= ParallelDeflater.BLOCK_SIZE) {
+                byte[] data = new byte[(int) size];
+                ByteBuffer target = ByteBuffer.wrap(data);
+                long readStart = System.nanoTime();
+                while (target.hasRemaining() && in.read(target) >= 0) {
+                    // read whole file
+                }
+                readNanos = System.nanoTime() - readStart;
+                if (target.hasRemaining() || in.read(ByteBuffer.allocate(1)) > 0) {
+                    throw new IOException("file size changed while archiving: " + source);
+                }
+                drain(deflater.getThreads() * 4);
+                pending.add(new PendingEntry(name, lastModified, data, deflater.deflateEntry(data, data.length)));
+                return null;
+            }
+            drain(0);
+            return putDeflatedBlocks(name, source, in, size, lastModified);
+        }
+    }
+
+    /**
+     * Writes completed compressed entries in order, waiting for the oldest ones until no more than given number of
+     * entries are pending
+     */
+    private void drain(final int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().compressed.isDone())) {
+            PendingEntry entry = pending.poll();
+            ParallelDeflater.Block block = await(entry.compressed);
+            long start = begin();
+            try {
+                int method = block.getLength() < entry.data.length ? METHOD_DEFLATED : METHOD_STORED;
+                ByteBuffer data = method == METHOD_DEFLATED ? ByteBuffer.wrap(block.getData(), 0, block.getLength()) : ByteBuffer.wrap(entry.data);
+                Entry archived = new Entry(entry.name, method, FLAG_UTF8, entry.lastModified, block.getCrc(), data.remaining(), entry.data.length, start);
+                writeLocalHeader(archived);
+                writeFully(data);
+                addCentralRecord(archived);
+            } catch (IOException | RuntimeException e) {
+                rollback(start);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Compresses a large file in blocks on the deflater workers, keeping a bounded number of blocks in flight. CRC and
+     * compressed size are only known at the end, so they follow the data in a data descriptor
+     */
+    private Entry putDeflatedBlocks(final String name, final Path source, final FileChannel in, final long size, final long lastModified)
+            throws IOException {
+        long start = begin();
+        ArrayDeque<Future<ParallelDeflater.Block>> blocks = new ArrayDeque<>();
+        try {
+            byte[] first = readBlock(in, 0, size, source);
+            ParallelDeflater.Block probe = await(deflater.deflateBlock(first, first.length, null, first.length == size));
+            if ((long) probe.getLength() * 1000 > (long) first.length * MAX_DEFLATE_RATIO) {
+                return putStoredFile(name, source, lastModified);
+            }
+
+            boolean zip64 = size >= ZIP64_MAGIC - ZIP64_DEFLATE_MARGIN;
+            int flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+            writeLocalHeader(new Entry(name, METHOD_DEFLATED, flags, lastModified, 0, 0, 0, start), zip64);
+            long dataStart = position;
+            crc.reset();
+            crc.update(first, 0, first.length);
+            writeFully(ByteBuffer.wrap(probe.getData(), 0, probe.getLength()));
+
+            byte[] previous = first;
+            for (long offset = first.length; offset < size; offset += previous.length) {
+                byte[] block = readBlock(in, offset, size, source);
+                crc.update(block, 0, block.length);
+                blocks.add(deflater.deflateBlock(block, block.length, previous, offset + block.length == size));
+                previous = block;
+                while (blocks.size() > deflater.getThreads() * 2 || !blocks.isEmpty() && blocks.peek().isDone()) {
+                    ParallelDeflater.Block compressed = await(blocks.poll());
+                    writeFully(ByteBuffer.wrap(compressed.getData(), 0, compressed.getLength()));
+                }
+            }
+            while (!blocks.isEmpty()) {
+                ParallelDeflater.Block compressed = await(blocks.poll());
+                writeFully(ByteBuffer.wrap(compressed.getData(), 0, compressed.getLength()));
+            }
+
+            Entry entry = new Entry(name, METHOD_DEFLATED, flags, lastModified, crc.getValue(), position - dataStart, size, start);
+            writeDataDescriptor(entry, zip64);
+            addCentralRecord(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            for (Future<ParallelDeflater.Block> block : blocks) {
+                block.cancel(false);
+            }
+            rollback(start);
+            throw e;
+        }
+    }
+
+    private static byte[] readBlock(final FileChannel in, final long offset, final long size, final Path source) throws IOException {
+        byte[] block = new byte[(int) Math.min(ParallelDeflater.BLOCK_SIZE, size - offset)];
+        ByteBuffer target = ByteBuffer.wrap(block);
+        long position = offset;
+        while (target.hasRemaining()) {
+            int n = in.read(target, position);
+            if (n < 0) {
+                throw new IOException("file size changed while archiving: " + source);
+            }
+            position += n;
+        }
+        return block;
+    }
+
+    private static ParallelDeflater.Block await(final Future<ParallelDeflater.Block> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+    }
+
+    private static MappedByteBuffer[] map(final FileChannel in, final long size) throws IOException {
+        MappedByteBuffer[] mappings = new MappedByteBuffer[(int) ((size + MAX_MAPPING - 1) / MAX_MAPPING)];
+        for (int i = 0; i < mappings.length; i++) {
+            mappings[i] = in.map(FileChannel.MapMode.READ_ONLY, i * MAX_MAPPING, Math.min(MAX_MAPPING, size - i * MAX_MAPPING));
+        }
+        return mappings;
+    }
+
+    /**
+     * Updates the digest with a range of a mapped file, as written to the archive
+     */
+    private void digest(final MappedByteBuffer[] mappings, final long offset, final long length) {
+        for (long done = 0; done < length;) {
+            long at = offset + done;
+            ByteBuffer mapping = mappings[(int) (at / MAX_MAPPING)].duplicate();
+            mapping.position((int) (at % MAX_MAPPING));
+            int n = (int) Math.min(length - done, mapping.remaining());
+            mapping.limit(mapping.position() + n);
+            digest.update(mapping);
+            done += n;
+        }
+    }
+
+    /**
+     * Marks the start of an entry
+     *
+     * @return position of the entry
+     */
+    private long begin() {
+        try {
+            entryStartDigest = (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest cannot be cloned", e);
+        }
+        return position;
+    }
+
+    /**
+     * Discards a partially written entry
+     */
+    private void rollback(final long start) throws IOException {
+        if (fileOut == null) {
+            // streamed data is gone, the partial entry stays as a gap (and in the digest)
+            return;
+        }
+        fileOut.truncate(start);
+        fileOut.position(start);
+        position = start;
+        digest = entryStartDigest;
+    }
+
+    private void writeFully(final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            write(data);
+        }
+    }
+
+    private int write(final ByteBuffer data) throws IOException {
+        ByteBuffer written = data.duplicate();
+        int n = out.write(data);
+        written.limit(written.position() + n);
+        digest.update(written);
+        position += n;
+        return n;
+    }
+
+    private void writeDataDescriptor(final Entry entry, final boolean zip64) throws IOException {
+        header.clear();
+        header.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        header.putInt((int) entry.crc);
+        if (zip64) {
+            header.putLong(entry.compressedSize);
+            header.putLong(entry.size);
+        } else {
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+        }
+        header.flip();
+        writeFully(header);
+    }
+
+    private void writeLocalHeader(final Entry entry) throws IOException {
+        writeLocalHeader(entry, entry.isZip64());
+    }
+
+    private void writeLocalHeader(final Entry entry, final boolean zip64) throws IOException {
+        encodeLocalHeader(entry, zip64);
+        writeFully(header);
+    }
+
+    /**
+     * Encodes the local header of an entry, including its name and Zip64 extra field, into the header buffer
+     */
+    private void encodeLocalHeader(final Entry entry, final boolean zip64) {
+        header.clear();
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : entry.directory ? VERSION_DIRECTORY : entry.method == METHOD_DEFLATED ? VERSION_DEFLATED : VERSION_STORED));
+        header.putShort((short) entry.flags);
+        header.putShort((short) entry.method);
+        header.putInt((int) entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(entry.nameBytes);
+        if (zip64) {
+            header.putShort(ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+        }
+        header.flip();
+    }
+
+    private void addCentralRecord(final Entry entry) throws IOException {
+        boolean zip64Sizes = entry.isZip64();
+        boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+
+        ByteBuffer record = ByteBuffer.allocate(46 + entry.nameBytes.length + (extraLength > 0 ? 4 + extraLength : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CENTRAL_HEADER_SIGNATURE);
+        record.putShort((short) VERSION_MADE_BY);
+        record.putShort((short) (extraLength > 0 ? VERSION_ZIP64 : entry.directory ? VERSION_DIRECTORY : entry.method == METHOD_DEFLATED ? VERSION_DEFLATED : VERSION_STORED));
+        record.putShort((short) entry.flags);
+        record.putShort((short) entry.method);
+        record.putInt((int) entry.dosTime);
+        record.putInt((int) entry.crc);
+        record.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.compressedSize));
+        record.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.size));
+        record.putShort((short) entry.nameBytes.length);
+        record.putShort((short) (extraLength > 0 ? 4 + extraLength : 0));
+        record.putShort((short) 0); // comment length
+        record.putShort((short) 0); // disk number
+        record.putShort((short) 0); // internal attributes
+        record.putInt(entry.directory ? UNIX_DIRECTORY_ATTRIBUTES : UNIX_FILE_ATTRIBUTES);
+        record.putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset));
+        record.put(entry.nameBytes);
+        if (extraLength > 0) {
+            record.putShort(ZIP64_EXTRA_ID);
+            record.putShort((short) extraLength);
+            if (zip64Sizes) {
+                record.putLong(entry.size);
+                record.putLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                record.putLong(entry.offset);
+            }
+        }
+        central.write(record.array(), 0, record.position());
+        centralSize += record.position();
+        count++;
+        checksums.entry(entry.name, entry.crc, entry.size);
+        if (index != null && !entry.directory) {
+            index.add(entry.name, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, entry.offset);
+        }
+    }
+
+    /**
+     * Writes the central directory. No more entries can be added
+     *
+     * @throws IOException
+     *             on write failure
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        drain(0);
+        finished = true;
+        central.close();
+
+        long centralStart = position;
+        try (FileChannel in = FileChannel.open(centralFile, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                writeFully(buffer);
+                buffer.clear();
+            }
+        }
+        if (position - centralStart != centralSize) {
+            throw new IOException("central directory of " + file + " truncated");
+        }
+
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || centralSize >= ZIP64_MAGIC || centralStart >= ZIP64_MAGIC;
+        header.clear();
+        if (zip64) {
+            long zip64EndStart = position;
+            header.putInt(ZIP64_END_SIGNATURE);
+            header.putLong(44);
+            header.putShort((short) VERSION_MADE_BY);
+            header.putShort((short) VERSION_ZIP64);
+            header.putInt(0); // disk number
+            header.putInt(0); // central directory disk
+            header.putLong(count);
+            header.putLong(count);
+            header.putLong(centralSize);
+            header.putLong(centralStart);
+
+            header.putInt(ZIP64_LOCATOR_SIGNATURE);
+            header.putInt(0);
+            header.putLong(zip64EndStart);
+            header.putInt(1);
+        }
+        header.putInt(END_SIGNATURE);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count));
+        header.putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : centralSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : centralStart));
+        header.putShort((short) 0); // comment length
+        header.flip();
+        writeFully(header);
+        if (fileOut != null) {
+            fileOut.force(false);
+        }
+        if (index != null) {
+            index.commit();
+        }
+        checksums.commit(checksumName, position, digest.digest());
+        if (fileOut == null) {
+            ((BackupOutput) out).commit();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            try {
+                central.close();
+            } finally {
+                // closing a streamed archive that was not committed aborts its upload, so it must run even if the
+                // central directory spool cannot be flushed
+                out.close();
+            }
+        } finally {
+            try {
+                if (index != null) {
+                    index.close();
+                }
+            } finally {
+                try {
+                    checksums.close();
+                } finally {
+                    Files.deleteIfExists(centralFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return archive file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    private static long toDosTime(final long time) {
+        LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        int year = ldt.getYear();
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | ldt.getMonthValue() << 21 | ldt.getDayOfMonth() << 16 | ldt.getHour() << 11 | ldt.getMinute() << 5
+                | ldt.getSecond() >> 1;
+    }
+}
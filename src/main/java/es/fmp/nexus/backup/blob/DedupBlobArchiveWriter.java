@@ -0,0 +1,252 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Stores the content of blob {@code .bytes} files once in a content-addressed directory shared by all backups and blob
+ * stores, keyed by the SHA1 FileBlobStore already records in the {@code .properties} file of each blob, so content is
+ * neither re-hashed nor copied again when already present. All other files (including {@code .properties}) go into a
+ * regular zip archive along with an index entry ({@link #CONTENT_INDEX_ENTRY}) mapping blob file names to their hash.
+ *
+ */
+public class DedupBlobArchiveWriter implements BlobArchiveWriter {
+
+    /**
+     * Name of the content-addressed directory, relative to blob backup location
+     */
+    public static final String CONTENT_STORE_DIR = "content-store";
+
+    /**
+     * Archive entry with one {@code <name>\t<sha1>} line per blob file stored in the content store
+     */
+    public static final String CONTENT_INDEX_ENTRY = ".backup/content-index";
+
+    private static final String BYTES_EXTENSION = ".bytes";
+
+    private static final String PROPERTIES_EXTENSION = ".properties";
+
+    private static final String SHA1_PROPERTY = "sha1";
+
+    private static final String SIZE_PROPERTY = "size";
+
+    private static final Pattern SHA1_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+    private final ZipBlobArchiveWriter index;
+
+    private final Path contentStore;
+
+    private final Path indexFile;
+
+    private final Writer indexWriter;
+
+    /**
+     * Whether the file last written went into the archive, which then measured its read
+     */
+    private boolean archived;
+
+    /**
+     * @param zipFile
+     *            archive for files that are not blob content and for the content index
+     * @param contentStore
+     *            content-addressed directory
+     * @param deflater
+     *            compressor for archived files, null to store them uncompressed. Content store is never compressed
+     * @throws IOException
+     *             if files cannot be created
+     */
+    public DedupBlobArchiveWriter(final Path zipFile, final Path contentStore, final ParallelDeflater deflater) throws IOException {
+        this.index = new ZipBlobArchiveWriter(zipFile, deflater);
+        this.contentStore = contentStore;
+        Files.createDirectories(contentStore);
+        this.indexFile = Files.createTempFile(zipFile.getParent(), zipFile.getFileName().toString(), ".index");
+        this.indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param contentStore
+     *            content-addressed directory
+     * @param sha1
+     *            content hash
+     * @return path of content with given hash
+     */
+    public static Path contentPath(final Path contentStore, final String sha1) {
+        return contentStore.resolve(sha1.substring(0, 2)).resolve(sha1.substring(2, 4)).resolve(sha1);
+    }
+
+    /**
+     * Deletes content no longer referenced by the content index of any backup (main archive or part, wherever parts
+     * were distributed) left in the blob backup location. Content stored after given time is kept, as the backup storing
+     * it may not have written its index yet
+     *
+     * @param backupFolder
+     *            blob backup location, holding the content store
+     * @param storedBefore
+     *            only content stored before this time is deleted
+     * @return number of files deleted
+     * @throws IOException
+     *             if an archive cannot be read or content cannot be deleted
+     */
+    public static long deleteUnreferenced(final Path backupFolder, final FileTime storedBefore) throws IOException {
+        Path contentStore = backupFolder.resolve(CONTENT_STORE_DIR);
+        if (!Files.isDirectory(contentStore)) {
+            return 0;
+        }
+        Set<String> referenced = new HashSet<>();
+        try (DirectoryStream<Path> archives = Files.newDirectoryStream(backupFolder, path -> Files.isRegularFile(path)
+                && (path.getFileName().toString().endsWith(".bak") || path.getFileName().toString().matches(".*\\.bak\\.part\\d+")))) {
+            for (Path archive : archives) {
+                addReferenced(archive, referenced);
+                if (archive.getFileName().toString().endsWith(".bak")) {
+                    // parts in other destinations, the ones in the backup location are listed above
+                    for (Path part : BlobRestoreRunner.parts(archive)) {
+                        if (!part.toAbsolutePath().getParent().equals(backupFolder.toAbsolutePath()) && Files.isRegularFile(part)) {
+                            addReferenced(part, referenced);
+                        }
+                    }
+                }
+            }
+        }
+        AtomicLong deleted = new AtomicLong();
+        Files.walkFileTree(contentStore, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                String sha1 = file.getFileName().toString();
+                if (SHA1_PATTERN.matcher(sha1).matches() && !referenced.contains(sha1) && attrs.lastModifiedTime().compareTo(storedBefore) < 0) {
+                    Files.delete(file);
+                    deleted.incrementAndGet();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted.get();
+    }
+
+    private static void addReferenced(final Path archive, final Set<String> referenced) throws IOException {
+        try (ChannelZipReader reader = new ChannelZipReader(archive)) {
+            ChannelZipReader.Entry[] index = new ChannelZipReader.Entry[1];
+            reader.entries(entry -> {
+                if (entry.getName().equals(CONTENT_INDEX_ENTRY)) {
+                    index[0] = entry;
+                }
+            });
+            if (index[0] == null) {
+                return;
+            }
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(index[0]), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab >= 0) {
+                        referenced.add(line.substring(tab + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public long write(final BlobFile file) throws IOException {
+        String sha1 = file.isDirectory() || !file.getName().endsWith(BYTES_EXTENSION) ? null : readSha1(file);
+        archived = sha1 == null;
+        if (archived) {
+            return index.write(file);
+        }
+
+        long stored = 0;
+        Path target = contentPath(contentStore, sha1);
+        if (!Files.exists(target)) {
+            Files.createDirectories(target.getParent());
+            Path tmp = Files.createTempFile(target.getParent(), sha1, ".tmp");
+            try {
+                Files.copy(file.getPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                stored = file.getSize();
+            } catch (FileAlreadyExistsException e) {
+                // stored meanwhile by a concurrent backup of another blob store
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        indexWriter.write(file.getName());
+        indexWriter.write('\t');
+        indexWriter.write(sha1);
+        indexWriter.write('\n');
+        return stored;
+    }
+
+    /**
+     * @return SHA1 recorded in the properties file of a blob, or null if it cannot be trusted to describe current content
+     */
+    private String readSha1(final BlobFile file) throws IOException {
+        String name = file.getPath().getFileName().toString();
+        Path propertiesPath = file.getPath().resolveSibling(name.substring(0, name.length() - BYTES_EXTENSION.length()) + PROPERTIES_EXTENSION);
+        if (!Files.isRegularFile(propertiesPath)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(propertiesPath)) {
+            properties.load(in);
+        }
+        String sha1 = properties.getProperty(SHA1_PROPERTY);
+        if (sha1 == null || !SHA1_PATTERN.matcher(sha1).matches() || !Long.toString(file.getSize()).equals(properties.getProperty(SIZE_PROPERTY))) {
+            return null;
+        }
+        return sha1;
+    }
+
+    @Override
+    public long getReadNanos() {
+        return archived ? index.getReadNanos() : -1;
+    }
+
+    @Override
+    public void write(final String name, final Path content) throws IOException {
+        index.write(name, content);
+    }
+
+    @Override
+    public void write(final String name, final byte[] content) throws IOException {
+        index.write(name, content);
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        indexWriter.close();
+        index.write(CONTENT_INDEX_ENTRY, indexFile);
+        index.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            indexWriter.close();
+            index.close();
+        } finally {
+            Files.deleteIfExists(indexFile);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Restores single blobs from a blob store backup, reading only their entries. The chain of the backup is searched from
+ * the requested backup back to its full backup, main archive and parts of each one, through their indexes (see
+ * {@link BlobArchiveIndex}), so a blob costs a few index page reads plus the read of its own entries whatever the size
+ * of the backup. Missing or outdated indexes, such as those of backups taken before indexes were written, are built
+ * from the central directory of their archive and kept for later lookups.
+ * <p>
+ * Each blob file is restored from the newest archive holding it, even if a later backup of the chain lists it as
+ * deleted, so blobs removed by mistake can be brought back. Files are written below the target directory at their
+ * location in the blob store. Content of dedup backups is kept in their content store, not in the archives, and is not
+ * restored. Small files of pack backups are found through the index too, which gives their segment and position in it:
+ * only the segments holding them are unpacked.
+ *
+ */
+public class IndexedBlobRestoreRunner implements Callable<Set<String>> {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path backupFile;
+
+    private final Path target;
+
+    private final Collection<String> blobIds;
+
+    /**
+     * @param backupFile
+     *            main archive of the backup to restore from. For incremental backups the rest of the chain is looked up
+     *            next to it
+     * @param target
+     *            directory the blob files are restored into, at their location in the blob store. Existing files are
+     *            overwritten
+     * @param blobIds
+     *            IDs of the blobs to restore
+     */
+    public IndexedBlobRestoreRunner(final Path backupFile, final Path target, final Collection<String> blobIds) {
+        this.backupFile = backupFile;
+        this.target = target;
+        this.blobIds = blobIds;
+    }
+
+    /**
+     * @return IDs of the blobs found and restored
+     */
+    @Override
+    public Set<String> call() throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(target);
+        // files of each blob not found yet
+        Map<String, Set<String>> missing = new LinkedHashMap<>();
+        for (String id : blobIds) {
+            missing.put(id, new LinkedHashSet<>(Arrays.asList(id + ".properties", id + ".bytes")));
+        }
+        Set<String> restored = new LinkedHashSet<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Set<String> visited = new HashSet<>();
+        int searched = 0;
+        Path archive = backupFile;
+        while (archive != null && !missing.isEmpty()) {
+            if (!Files.isRegularFile(archive)) {
+                throw new IOException("backup file " + archive + " not found");
+            }
+            if (!visited.add(archive.getFileName().toString())) {
+                throw new IOException("incremental chain of " + backupFile.getFileName() + " loops at " + archive.getFileName());
+            }
+            String previous = null;
+            try (ChannelZipReader reader = new ChannelZipReader(archive)) {
+                BlobArchiveIndex index = openIndex(archive);
+                search(reader, index, missing, restored, buffer);
+                searched++;
+                ChannelZipReader.Entry parts = index.find(BlobBackupRunner.PARTS_ENTRY);
+                if (parts != null) {
+                    for (String part : BlobRestoreRunner.readLines(reader, parts)) {
+                        if (missing.isEmpty()) {
+                            break;
+                        }
+                        Path partFile = BlobRestoreRunner.resolvePart(archive, part);
+                        try (ChannelZipReader partReader = new ChannelZipReader(partFile)) {
+                            search(partReader, openIndex(partFile), missing, restored, buffer);
+                            searched++;
+                        }
+                    }
+                }
+                ChannelZipReader.Entry infoEntry = index.find(BlobBackupRunner.BACKUP_INFO_ENTRY);
+                if (infoEntry != null) {
+                    Properties info = new Properties();
+                    try (InputStream in = reader.openStream(infoEntry)) {
+                        info.load(in);
+                    }
+                    previous = "incremental".equals(info.getProperty("type")) ? info.getProperty("previous") : null;
+                }
+            }
+            archive = previous != null ? archive.resolveSibling(previous) : null;
+        }
+        for (Map.Entry<String, Set<String>> blob : missing.entrySet()) {
+            if (restored.contains(blob.getKey())) {
+                log.warn("blob {} restored without {}, not found in backup {}", blob.getKey(), blob.getValue(), backupFile.getFileName());
+            }
+        }
+        log.info("{} of {} blobs restored from {} into {} in {}, {} archives searched", restored.size(), blobIds.size(), backupFile.getFileName(), target,
+                DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"), searched);
+        return restored;
+    }
+
+    /**
+     * Opens the index of an archive, building it first if missing
+     */
+    private BlobArchiveIndex openIndex(final Path archive) throws IOException {
+        Path indexFile = BlobArchiveIndex.of(archive);
+        if (!BlobArchiveIndex.isCurrent(indexFile)) {
+            long start = System.currentTimeMillis();
+            BlobArchiveIndex.build(archive);
+            log.info("index of {} built in {}", archive.getFileName(), DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"));
+        }
+        return BlobArchiveIndex.open(indexFile);
+    }
+
+    /**
+     * Extracts the files of an archive still missing
+     */
+    private void search(final ChannelZipReader reader, final BlobArchiveIndex index, final Map<String, Set<String>> missing, final Set<String> restored,
+            final ByteBuffer buffer) throws IOException {
+        // packed files by segment number and position in the segment, unpacked once all are known
+        Map<Integer, TreeMap<Integer, String>> packed = new TreeMap<>();
+        for (Iterator<Map.Entry<String, Set<String>>> blobs = missing.entrySet().iterator(); blobs.hasNext();) {
+            Map.Entry<String, Set<String>> blob = blobs.next();
+            for (Iterator<String> files = blob.getValue().iterator(); files.hasNext();) {
+                ChannelZipReader.Entry entry = index.find(files.next());
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.getMethod() == BlobArchiveIndex.METHOD_PACKED) {
+                    packed.computeIfAbsent((int) entry.getOffset(), n -> new TreeMap<>()).put((int) entry.getCompressedSize(), blob.getKey());
+                    continue;
+                }
+                Path path = BlobRestoreRunner.resolve(target, entry.getName());
+                Files.createDirectories(path.getParent());
+                reader.extract(entry, path, buffer);
+                files.remove();
+                restored.add(blob.getKey());
+            }
+            if (blob.getValue().isEmpty()) {
+                blobs.remove();
+            }
+        }
+        for (Map.Entry<Integer, TreeMap<Integer, String>> segment : packed.entrySet()) {
+            unpack(reader, index, segment.getKey(), segment.getValue(), missing, restored);
+        }
+    }
+
+    /**
+     * Extracts files from a pack segment of an archive
+     *
+     * @param files
+     *            blob IDs by position of their files in the segment
+     */
+    private void unpack(final ChannelZipReader reader, final BlobArchiveIndex index, final int number, final TreeMap<Integer, String> files,
+            final Map<String, Set<String>> missing, final Set<String> restored) throws IOException {
+        ChannelZipReader.Entry segment = index.find(PackSegment.name(number));
+        if (segment == null) {
+            throw new IOException("pack segment " + number + " indexed but not found in " + index.getFile().getFileName());
+        }
+        try (PackSegment.Reader pack = new PackSegment.Reader(reader.openStream(segment))) {
+            for (Map.Entry<Integer, String> file : files.entrySet()) {
+                int i = file.getKey();
+                String name = pack.getName(i);
+                Path path = BlobRestoreRunner.resolve(target, name);
+                Files.createDirectories(path.getParent());
+                Files.write(path, pack.read(i));
+                Files.setLastModifiedTime(path, FileTime.fromMillis(pack.getLastModified(i)));
+                String id = file.getValue();
+                Set<String> missingFiles = missing.get(id);
+                missingFiles.remove(name.substring(name.lastIndexOf('/') + 1));
+                if (missingFiles.isEmpty()) {
+                    missing.remove(id);
+                }
+                restored.add(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package es.fmp.nexus.backup.blob;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Token bucket limits on read bandwidth, write bandwidth and file operations per second, shared by all the blob backup
+ * runners of a task so that backups do not starve Nexus of disk bandwidth. Files are throttled as a whole, before being
+ * read and after being written; large ones wait in one second chunks instead of charging their debt to other runners.
+ * <p>
+ * In adaptive mode the latency of small file reads is sampled: whenever the average of a sampling window exceeds twice
+ * the lowest one seen so far, read and operation rates are reduced by 30%, and they are increased again by 10% per calm
+ * window up to the configured limits. When no read limit is configured the throughput measured in the first window is
+ * used as starting point.
+ *
+ */
+public class IoThrottle {
+
+    /**
+     * Throttle that never waits
+     */
+    public static final IoThrottle UNLIMITED = new IoThrottle(0, 0, 0, false);
+
+    /**
+     * Files up to this size have their read time sampled as read latency
+     */
+    public static final long LATENCY_SAMPLE_MAX_SIZE = 64 * 1024;
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int MIN_WINDOW_SAMPLES = 20;
+
+    private static final double BACKOFF_FACTOR = 0.7;
+
+    private static final double RECOVERY_FACTOR = 1.1;
+
+    private static final double MIN_READ_RATE = 1024 * 1024;
+
+    private static final double MIN_OPERATION_RATE = 10;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final double maxReadRate;
+
+    private final double maxOperationRate;
+
+    private final boolean adaptive;
+
+    private RateLimiter readLimiter;
+
+    private final RateLimiter writeLimiter;
+
+    private RateLimiter operationLimiter;
+
+    private long windowStart = System.nanoTime();
+
+    private long windowSamples;
+
+    private long windowLatency;
+
+    private long windowBytes;
+
+    private double baselineLatency = Double.MAX_VALUE;
+
+    /**
+     * @param readBytesPerSecond
+     *            read bandwidth limit, 0 for unlimited
+     * @param writeBytesPerSecond
+     *            write bandwidth limit, 0 for unlimited
+     * @param operationsPerSecond
+     *            limit of files read per second, 0 for unlimited
+     * @param adaptive
+     *            whether read and operation rates back off when read latency rises
+     */
+    public IoThrottle(final long readBytesPerSecond, final long writeBytesPerSecond, final long operationsPerSecond, final boolean adaptive) {
+        this.maxReadRate = readBytesPerSecond > 0 ? readBytesPerSecond : Double.MAX_VALUE;
+        this.maxOperationRate = operationsPerSecond > 0 ? operationsPerSecond : Double.MAX_VALUE;
+        this.adaptive = adaptive;
+        this.readLimiter = readBytesPerSecond > 0 ? RateLimiter.create(readBytesPerSecond) : null;
+        this.writeLimiter = writeBytesPerSecond > 0 ? RateLimiter.create(writeBytesPerSecond) : null;
+        this.operationLimiter = operationsPerSecond > 0 ? RateLimiter.create(operationsPerSecond) : null;
+    }
+
+    /**
+     * @return whether this throttle may ever wait
+     */
+    public boolean isLimited() {
+        return readLimiter != null || writeLimiter != null || operationLimiter != null || adaptive;
+    }
+
+    /**
+     * Waits until a file of given size can be read
+     *
+     * @param bytes
+     *            number of bytes to be read
+     */
+    public void acquireRead(final long bytes) {
+        RateLimiter operations;
+        RateLimiter reads;
+        synchronized (this) {
+            operations = operationLimiter;
+            reads = readLimiter;
+        }
+        if (operations != null) {
+            operations.acquire();
+        }
+        acquire(reads, bytes);
+    }
+
+    /**
+     * Waits until given number of bytes can be written
+     *
+     * @param bytes
+     *            number of bytes to be written
+     */
+    public void acquireWrite(final long bytes) {
+        acquire(writeLimiter, bytes);
+    }
+
+    private static void acquire(final RateLimiter limiter, final long bytes) {
+        if (limiter == null || bytes <= 0) {
+            return;
+        }
+        // requests larger than a second of tokens would be charged to the next caller at once, split them
+        long chunk = Math.max(1, (long) Math.min(Integer.MAX_VALUE, limiter.getRate()));
+        for (long remaining = bytes; remaining > 0; remaining -= chunk) {
+            limiter.acquire((int) Math.min(chunk, remaining));
+        }
+    }
+
+    /**
+     * Records a completed file read, adjusting rates in adaptive mode
+     *
+     * @param bytes
+     *            size of the file
+     * @param nanos
+     *            time taken to read the file, negative if not measured, in which case it is not sampled as read latency
+     */
+    public void completed(final long bytes, final long nanos) {
+        if (!adaptive) {
+            return;
+        }
+        synchronized (this) {
+            windowBytes += bytes;
+            if (nanos >= 0 && bytes <= LATENCY_SAMPLE_MAX_SIZE) {
+                windowSamples++;
+                windowLatency += nanos;
+            }
+            long now = System.nanoTime();
+            long elapsed = now - windowStart;
+            if (elapsed < WINDOW_NANOS || windowSamples < MIN_WINDOW_SAMPLES) {
+                return;
+            }
+            double latency = (double) windowLatency / windowSamples;
+            if (readLimiter == null) {
+                readLimiter = RateLimiter.create(Math.max(MIN_READ_RATE, windowBytes * 1e9 / elapsed));
+                log.info("adaptive throttle starting at {} bytes/s", (long) readLimiter.getRate());
+            }
+            if (latency > baselineLatency * 2) {
+                adjust(BACKOFF_FACTOR);
+                log.info("read latency rose to {} us (baseline {} us), backup read rate lowered to {} bytes/s", (long) latency / 1000,
+                        (long) baselineLatency / 1000, (long) readLimiter.getRate());
+            } else if (latency < baselineLatency * 1.2) {
+                adjust(RECOVERY_FACTOR);
+            }
+            baselineLatency = Math.min(baselineLatency, latency);
+            windowStart = now;
+            windowSamples = 0;
+            windowLatency = 0;
+            windowBytes = 0;
+        }
+    }
+
+    private void adjust(final double factor) {
+        readLimiter.setRate(Math.max(MIN_READ_RATE, Math.min(maxReadRate, readLimiter.getRate() * factor)));
+        if (operationLimiter != null) {
+            operationLimiter.setRate(Math.max(MIN_OPERATION_RATE, Math.min(maxOperationRate, operationLimiter.getRate() * factor)));
+        }
+    }
+}
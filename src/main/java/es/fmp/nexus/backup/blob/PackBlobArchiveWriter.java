@@ -0,0 +1,84 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes blob store files into a zip file like {@link ZipBlobArchiveWriter}, except files of up to
+ * {@link PackSegment#MAX_FILE_SIZE} bytes, which are batched into {@link PackSegment pack segments} written as single
+ * entries (compressed as a whole when a compression level is set). Blob stores holding millions of small
+ * {@code .properties} files then get a fraction of the entries, and of the per entry overhead.
+ * <p>
+ * Files added to a segment are only written when the segment fills up or the archive is finished, so a segment that
+ * cannot be written fails the whole archive: its files were already reported as archived.
+ *
+ */
+public class PackBlobArchiveWriter implements BlobArchiveWriter {
+
+    private final ZipBlobArchiveWriter zip;
+
+    private final PackSegment.Packer packer;
+
+    private long readNanos = -1;
+
+    /**
+     * @param zip
+     *            archive segments and larger files are written to
+     */
+    public PackBlobArchiveWriter(final ZipBlobArchiveWriter zip) {
+        this.zip = zip;
+        this.packer = new PackSegment.Packer(zip::writeContent);
+    }
+
+    @Override
+    public long write(final BlobFile file) throws IOException {
+        readNanos = -1;
+        if (file.isDirectory() || file.getSize() > PackSegment.MAX_FILE_SIZE) {
+            return zip.write(file);
+        }
+        long readStart = System.nanoTime();
+        byte[] content = Files.readAllBytes(file.getPath());
+        readNanos = System.nanoTime() - readStart;
+        // segments are written as they fill up, so account for whatever the archive grew meanwhile
+        long start = zip.size();
+        try {
+            packer.add(file.getName(), content, file.getLastModified());
+        } catch (IOException e) {
+            throw new UncheckedIOException("unable to write pack segment of " + zip.getFile(), e);
+        }
+        return zip.size() - start;
+    }
+
+    @Override
+    public long getReadNanos() {
+        return readNanos >= 0 ? readNanos : zip.getReadNanos();
+    }
+
+    @Override
+    public void write(final String name, final Path content) throws IOException {
+        zip.write(name, content);
+    }
+
+    @Override
+    public void write(final String name, final byte[] content) throws IOException {
+        zip.write(name, content);
+    }
+
+    @Override
+    public long size() {
+        return zip.size();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        packer.flush();
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
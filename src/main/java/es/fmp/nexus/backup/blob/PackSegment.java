@@ -0,0 +1,360 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Batch of small blob store files archived as a single entry of a {@link BlobBackupFormat#PACK} backup. A segment
+ * starts with a block describing all its files column by column, followed by their contents back to back:
+ *
+ * <pre>
+ * magic (4 bytes), number of files (varint)
+ * names: length shared with the previous name, then length and bytes of the rest (varints, UTF-8)
+ * sizes: varint per file
+ * modification times: zigzag varint of the difference to the previous file, in milliseconds
+ * CRC32s: 4 bytes per file
+ * contents
+ * </pre>
+ *
+ * A file then costs a few bytes besides its content instead of the local header, central directory record and checksum
+ * manifest line of a zip entry of its own, and files are compressed together, which suits {@code .properties} files
+ * much better than compressing them one by one.
+ *
+ */
+public final class PackSegment {
+
+    /**
+     * Prefix of the names of segment entries, followed by their number in the archive starting at 1
+     */
+    public static final String PREFIX = BlobRestoreRunner.METADATA_PREFIX + "pack/";
+
+    /**
+     * Maximum size of files packed into segments, larger ones are archived as entries of their own
+     */
+    public static final int MAX_FILE_SIZE = 16 * 1024;
+
+    /**
+     * Maximum size of a segment, so it is compressed as a single block
+     */
+    static final int MAX_SIZE = ParallelDeflater.BLOCK_SIZE;
+
+    private static final int MAGIC = 0x424b5031; // BKP1
+
+    /**
+     * Size of the magic and the varint of the number of files
+     */
+    private static final int PREAMBLE_SIZE = 9;
+
+    private PackSegment() {
+    }
+
+    /**
+     * @return name of the entry of a segment
+     */
+    public static String name(final int number) {
+        return String.format("%s%08d", PREFIX, number);
+    }
+
+    /**
+     * @return number of a segment, from the name of its entry
+     */
+    public static int number(final String entryName) {
+        return Integer.parseInt(entryName.substring(PREFIX.length()));
+    }
+
+    /**
+     * @return whether an archive entry is a segment
+     */
+    public static boolean isSegment(final String entryName) {
+        return entryName.startsWith(PREFIX);
+    }
+
+    /**
+     * Destination of the segments filled by a {@link Packer}
+     */
+    interface Sink {
+        void write(String name, byte[] segment) throws IOException;
+    }
+
+    /**
+     * Packs files into consecutive segments, each one written to the sink once no more files fit into it. Not thread
+     * safe
+     */
+    static class Packer {
+        private final Sink sink;
+
+        private final List<byte[]> names = new ArrayList<>();
+
+        private long[] sizes = new long[256];
+
+        private long[] lastModified = new long[256];
+
+        private int[] crcs = new int[256];
+
+        private final ByteArrayOutputStream contents = new ByteArrayOutputStream(MAX_SIZE);
+
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Upper bound of the size of the file block
+         */
+        private int headerSize;
+
+        private int segments;
+
+        Packer(final Sink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Adds a file, writing the current segment first if the file does not fit into it
+         *
+         * @throws IOException
+         *             if the current segment cannot be written
+         */
+        void add(final String name, final byte[] content, final long modified) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            // varints of up to 5 bytes for name lengths and size, 10 for the modification time, 4 for the CRC
+            int fileHeader = nameBytes.length + 29;
+            if (!names.isEmpty() && PREAMBLE_SIZE + headerSize + fileHeader + contents.size() + content.length > MAX_SIZE) {
+                flush();
+            }
+            int i = names.size();
+            if (i == sizes.length) {
+                sizes = Arrays.copyOf(sizes, i * 2);
+                lastModified = Arrays.copyOf(lastModified, i * 2);
+                crcs = Arrays.copyOf(crcs, i * 2);
+            }
+            crc.reset();
+            crc.update(content);
+            names.add(nameBytes);
+            sizes[i] = content.length;
+            lastModified[i] = modified;
+            crcs[i] = (int) crc.getValue();
+            contents.write(content, 0, content.length);
+            headerSize += fileHeader;
+        }
+
+        /**
+         * Writes the current segment, if it holds any file
+         *
+         * @throws IOException
+         *             if segment cannot be written
+         */
+        void flush() throws IOException {
+            if (names.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(PREAMBLE_SIZE + headerSize + contents.size());
+            writeInt(segment, MAGIC);
+            writeVarint(segment, names.size());
+            byte[] previous = new byte[0];
+            for (byte[] name : names) {
+                int shared = 0;
+                while (shared < Math.min(previous.length, name.length) && previous[shared] == name[shared]) {
+                    shared++;
+                }
+                writeVarint(segment, shared);
+                writeVarint(segment, name.length - shared);
+                segment.write(name, shared, name.length - shared);
+                previous = name;
+            }
+            for (int i = 0; i < names.size(); i++) {
+                writeVarint(segment, sizes[i]);
+            }
+            long time = 0;
+            for (int i = 0; i < names.size(); i++) {
+                long delta = lastModified[i] - time;
+                writeVarint(segment, (delta << 1) ^ (delta >> 63));
+                time = lastModified[i];
+            }
+            for (int i = 0; i < names.size(); i++) {
+                writeInt(segment, crcs[i]);
+            }
+            contents.writeTo(segment);
+            names.clear();
+            contents.reset();
+            headerSize = 0;
+            sink.write(nextName(), segment.toByteArray());
+        }
+
+        /**
+         * Allocates the name of the next segment, for segments written as they are, e.g. copied from another archive
+         */
+        String nextName() {
+            return name(++segments);
+        }
+
+        /**
+         * @return number of segments written so far
+         */
+        int getSegments() {
+            return segments;
+        }
+
+        private static void writeVarint(final ByteArrayOutputStream out, final long value) {
+            long v = value;
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private static void writeInt(final ByteArrayOutputStream out, final int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+    }
+
+    /**
+     * Reads the files of a segment. The file block is read up-front, contents are read in order as requested
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+
+        private final String[] names;
+
+        private final long[] sizes;
+
+        private final long[] lastModified;
+
+        private final int[] crcs;
+
+        /**
+         * File whose content is next in the stream
+         */
+        private int position;
+
+        /**
+         * @param in
+         *            uncompressed content of the segment entry, closed with the reader
+         * @throws IOException
+         *             if stream cannot be read or is not a segment
+         */
+        public Reader(final InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            try {
+                if (this.in.readInt() != MAGIC) {
+                    throw new IOException("not a pack segment");
+                }
+                int count = (int) readVarint();
+                names = new String[count];
+                byte[] previous = new byte[0];
+                for (int i = 0; i < count; i++) {
+                    int shared = (int) readVarint();
+                    byte[] name = Arrays.copyOf(previous, shared + (int) readVarint());
+                    this.in.readFully(name, shared, name.length - shared);
+                    names[i] = new String(name, StandardCharsets.UTF_8);
+                    previous = name;
+                }
+                sizes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    sizes[i] = readVarint();
+                }
+                lastModified = new long[count];
+                long time = 0;
+                for (int i = 0; i < count; i++) {
+                    long zigzag = readVarint();
+                    time += (zigzag >>> 1) ^ -(zigzag & 1);
+                    lastModified[i] = time;
+                }
+                crcs = new int[count];
+                for (int i = 0; i < count; i++) {
+                    crcs[i] = this.in.readInt();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return number of files in the segment
+         */
+        public int size() {
+            return names.length;
+        }
+
+        public String getName(final int i) {
+            return names[i];
+        }
+
+        public long getSize(final int i) {
+            return sizes[i];
+        }
+
+        /**
+         * @return modification time in milliseconds
+         */
+        public long getLastModified(final int i) {
+            return lastModified[i];
+        }
+
+        public int getCrc(final int i) {
+            return crcs[i];
+        }
+
+        /**
+         * Reads the content of a file, skipping the contents of the files before it not read yet
+         *
+         * @param i
+         *            file number, after the last one read
+         * @return file content
+         * @throws IOException
+         *             on read failure or if CRC does not match
+         */
+        public byte[] read(final int i) throws IOException {
+            if (i < position) {
+                throw new IllegalStateException("content of " + names[i] + " already read");
+            }
+            for (; position < i; position++) {
+                long remaining = sizes[position];
+                while (remaining > 0) {
+                    long skipped = in.skip(remaining);
+                    if (skipped <= 0) {
+                        throw new EOFException("pack segment truncated");
+                    }
+                    remaining -= skipped;
+                }
+            }
+            byte[] content = new byte[(int) sizes[i]];
+            in.readFully(content);
+            position++;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            if ((int) crc.getValue() != crcs[i]) {
+                throw new IOException("CRC mismatch for " + names[i] + " in pack segment");
+            }
+            return content;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("invalid varint in pack segment");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
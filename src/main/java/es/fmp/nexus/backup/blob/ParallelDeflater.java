@@ -0,0 +1,174 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * pigz-style compressor: raw deflate of independent pieces of data on a pool of worker threads. Small files are
+ * compressed as a whole, large ones are split into {@link #BLOCK_SIZE} blocks, each one primed with the last 32 KiB of
+ * the previous block as dictionary and ended with a sync flush (except the last one, which finishes the stream) so that
+ * the compressed blocks concatenated in order form a single valid deflate stream.
+ *
+ */
+public class ParallelDeflater implements Closeable {
+
+    /**
+     * Size of the blocks large files are split into
+     */
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Result of compressing a piece of data
+     */
+    public static class Block {
+        private final byte[] data;
+
+        private final int length;
+
+        private final long crc;
+
+        Block(final byte[] data, final int length, final long crc) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        /**
+         * @return buffer holding compressed data, from offset 0
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return compressed length
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return CRC32 of uncompressed data, only computed for whole entries
+         */
+        public long getCrc() {
+            return crc;
+        }
+    }
+
+    private final int level;
+
+    private final int threads;
+
+    private final ExecutorService executor;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * @param level
+     *            compression level, 1 (fastest) to 9 (best)
+     * @param threads
+     *            number of compression threads
+     * @param name
+     *            prefix of thread names
+     */
+    public ParallelDeflater(final int level, final int threads, final String name) {
+        this.level = level;
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, name + "-deflate-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return number of compression threads, also a sensible number of pieces to have in flight per writer
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Compresses a whole entry as a single finished deflate stream, computing its CRC
+     *
+     * @param data
+     *            uncompressed data, must not be modified until compression completes
+     * @param length
+     *            length of data
+     * @return compressed entry
+     */
+    public Future<Block> deflateEntry(final byte[] data, final int length) {
+        return executor.submit(() -> {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            return deflate(data, length, null, true, crc.getValue());
+        });
+    }
+
+    /**
+     * Compresses a block of a large entry
+     *
+     * @param data
+     *            uncompressed block, must not be modified until compression completes
+     * @param length
+     *            length of block
+     * @param previous
+     *            previous block of the entry (used as dictionary), null for the first one
+     * @param last
+     *            whether this is the last block of the entry
+     * @return compressed block
+     */
+    public Future<Block> deflateBlock(final byte[] data, final int length, final byte[] previous, final boolean last) {
+        return executor.submit(() -> deflate(data, length, previous, last, 0));
+    }
+
+    private Block deflate(final byte[] data, final int length, final byte[] previous, final boolean last, final long crc) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (previous != null) {
+            deflater.setDictionary(previous, previous.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+        }
+        deflater.setInput(data, 0, length);
+        byte[] out = new byte[length + length / 1000 + 64];
+        int written = 0;
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (written == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                written += deflater.deflate(out, written, out.length - written);
+            }
+        } else {
+            // sync flush ends the block on a byte boundary, output is complete once it does not fill the buffer
+            while (true) {
+                int n = deflater.deflate(out, written, out.length - written, Deflater.SYNC_FLUSH);
+                written += n;
+                if (written < out.length) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+        }
+        return new Block(out, written, crc);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
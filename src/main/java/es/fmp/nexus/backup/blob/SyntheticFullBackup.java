@@ -0,0 +1,282 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.BackupChecksums;
+
+/**
+ * Turns an incremental backup into a full one by stitching together the entries of its chain, so the backups it depends
+ * on can be deleted. The chain is replayed from the full backup (parts, deleted lists and content index included) to
+ * find the latest copy of every file, and those entries are copied into a new archive as they are stored, without
+ * decompressing nor reading the blob store again. Content of dedup backups stays in the content store, only the index
+ * is merged. Pack segments whose files are all still current are copied as well, the others are unpacked and their
+ * current files packed again into new segments.
+ * <p>
+ * The synthetic archive is written next to the backup and replaces it (and its parts) once complete, keeping its name, so
+ * later incremental backups still find it as their previous backup. Names of the whole chain are held in memory while it
+ * is replayed.
+ *
+ */
+public class SyntheticFullBackup implements Callable<Void> {
+
+    private static final String SYNTHETIC_SUFFIX = ".synthetic";
+
+    /**
+     * Compression level of pack segments packed again
+     */
+    private static final int PACK_COMPRESSION_LEVEL = 6;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Path backupFile;
+
+    /**
+     * Latest copy of a file in the chain: an archive entry, the pack segment entry holding the file or a content hash
+     * for files in the content store
+     */
+    private static class Source {
+        private final ChannelZipReader reader;
+
+        private final ChannelZipReader.Entry entry;
+
+        private final String sha1;
+
+        private final boolean packed;
+
+        Source(final ChannelZipReader reader, final ChannelZipReader.Entry entry, final String sha1) {
+            this(reader, entry, sha1, false);
+        }
+
+        Source(final ChannelZipReader reader, final ChannelZipReader.Entry entry, final String sha1, final boolean packed) {
+            this.reader = reader;
+            this.entry = entry;
+            this.sha1 = sha1;
+            this.packed = packed;
+        }
+    }
+
+    /**
+     * @param backupFile
+     *            main archive of an incremental backup
+     */
+    public SyntheticFullBackup(final Path backupFile) {
+        this.backupFile = backupFile;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        long start = System.currentTimeMillis();
+        List<Path> chain = BlobRestoreRunner.resolveChain(backupFile);
+        if (chain.size() < 2) {
+            log.debug("{} is already a full backup", backupFile.getFileName());
+            return null;
+        }
+        log.info("synthetic full backup of {} starting ({} archives in chain)", backupFile.getFileName(), chain.size());
+
+        Properties info = BlobRestoreRunner.readInfo(backupFile);
+        List<ChannelZipReader> readers = new ArrayList<>();
+        List<String> ownParts = new ArrayList<>();
+        Path synthetic = backupFile.resolveSibling(backupFile.getFileName() + SYNTHETIC_SUFFIX);
+        Path indexFile = null;
+        try {
+            TreeMap<String, Source> files = new TreeMap<>();
+            for (Path archive : chain) {
+                List<String> parts = replay(archive, files, readers);
+                if (archive.equals(backupFile)) {
+                    ownParts.addAll(parts);
+                }
+            }
+
+            long copied = 0;
+            long indexed = 0;
+            boolean packs = files.values().stream().anyMatch(source -> source.packed);
+            // current files of each pack segment of the chain, written once every other entry is copied
+            Map<ChannelZipReader.Entry, Set<String>> segments = new LinkedHashMap<>();
+            Map<ChannelZipReader.Entry, ChannelZipReader> segmentReaders = new HashMap<>();
+            try (ParallelDeflater deflater = packs
+                    ? new ParallelDeflater(PACK_COMPRESSION_LEVEL, Runtime.getRuntime().availableProcessors(), "synthetic-" + backupFile.getFileName())
+                    : null; ChannelZipWriter writer = new ChannelZipWriter(synthetic, deflater)) {
+                writer.setChecksumName(backupFile.getFileName().toString());
+                writer.setIndex(new BlobArchiveIndex.Writer(BlobArchiveIndex.of(synthetic)));
+                indexFile = Files.createTempFile(backupFile.toAbsolutePath().getParent(), backupFile.getFileName().toString(), ".index");
+                try (Writer index = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Source> file : files.entrySet()) {
+                        Source source = file.getValue();
+                        if (source.sha1 != null) {
+                            index.write(file.getKey());
+                            index.write('\t');
+                            index.write(source.sha1);
+                            index.write('\n');
+                            indexed++;
+                        } else if (source.packed) {
+                            segments.computeIfAbsent(source.entry, entry -> new HashSet<>()).add(file.getKey());
+                            segmentReaders.put(source.entry, source.reader);
+                        } else {
+                            writer.putEntry(source.reader, source.entry);
+                            copied++;
+                        }
+                    }
+                }
+                copied += repack(writer, segments, segmentReaders);
+                if (indexed > 0) {
+                    writer.putFile(DedupBlobArchiveWriter.CONTENT_INDEX_ENTRY, indexFile, System.currentTimeMillis());
+                }
+                info.setProperty("type", "full");
+                info.setProperty("full", backupFile.getFileName().toString());
+                info.setProperty("synthetic", "true");
+                info.remove("previous");
+                info.remove("deleted");
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                info.store(content, null);
+                writer.putBytes(BlobBackupRunner.BACKUP_INFO_ENTRY, content.toByteArray(), System.currentTimeMillis());
+                writer.finish();
+            }
+            for (ChannelZipReader reader : readers) {
+                reader.close();
+            }
+            readers.clear();
+
+            Files.move(synthetic, backupFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(BackupChecksums.of(synthetic), BackupChecksums.of(backupFile), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(BlobArchiveIndex.of(synthetic), BlobArchiveIndex.of(backupFile), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (String part : ownParts) {
+                Files.deleteIfExists(BlobRestoreRunner.resolvePart(backupFile, part));
+                Files.deleteIfExists(BackupChecksums.of(BlobRestoreRunner.resolvePart(backupFile, part)));
+                Files.deleteIfExists(BlobArchiveIndex.of(BlobRestoreRunner.resolvePart(backupFile, part)));
+            }
+            log.info("synthetic full backup of {} completed in {}: {} entries copied, {} in content store, {}", backupFile.getFileName(),
+                    DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"), copied, indexed,
+                    BlobBackupRunner.humanReadableByteCountBin(Files.size(backupFile)));
+            return null;
+        } finally {
+            for (ChannelZipReader reader : readers) {
+                reader.close();
+            }
+            if (indexFile != null) {
+                Files.deleteIfExists(indexFile);
+            }
+            Files.deleteIfExists(synthetic);
+            Files.deleteIfExists(BackupChecksums.of(synthetic));
+            Files.deleteIfExists(BlobArchiveIndex.of(synthetic));
+        }
+    }
+
+    /**
+     * Writes the current files of the pack segments of the chain: segments whose files are all current are copied as
+     * they are, the others are unpacked and their current files packed into new segments
+     *
+     * @return number of files written
+     */
+    private static long repack(final ChannelZipWriter writer, final Map<ChannelZipReader.Entry, Set<String>> segments,
+            final Map<ChannelZipReader.Entry, ChannelZipReader> segmentReaders) throws IOException {
+        long written = 0;
+        PackSegment.Packer packer = new PackSegment.Packer((name, segment) -> writer.putContent(name, segment, System.currentTimeMillis()));
+        for (Map.Entry<ChannelZipReader.Entry, Set<String>> segment : segments.entrySet()) {
+            ChannelZipReader reader = segmentReaders.get(segment.getKey());
+            Set<String> current = segment.getValue();
+            try (PackSegment.Reader pack = new PackSegment.Reader(reader.openStream(segment.getKey()))) {
+                if (pack.size() == current.size()) {
+                    writer.putEntry(reader, segment.getKey(), packer.nextName());
+                } else {
+                    for (int i = 0; i < pack.size(); i++) {
+                        if (current.contains(pack.getName(i))) {
+                            packer.add(pack.getName(i), pack.read(i), pack.getLastModified(i));
+                        }
+                    }
+                }
+            }
+            written += current.size();
+        }
+        packer.flush();
+        return written;
+    }
+
+    /**
+     * Applies one backup of the chain: entries of its main archive and parts, then its content index and finally the
+     * names it records as deleted
+     *
+     * @return names of its parts
+     */
+    private static List<String> replay(final Path archive, final TreeMap<String, Source> files, final List<ChannelZipReader> readers)
+            throws IOException {
+        List<String> parts = new ArrayList<>();
+        List<Path> archives = new ArrayList<>();
+        List<ChannelZipReader> own = new ArrayList<>();
+        List<Map<String, ChannelZipReader.Entry>> metadata = new ArrayList<>();
+        archives.add(archive);
+        for (int i = 0; i < archives.size(); i++) {
+            ChannelZipReader reader = new ChannelZipReader(archives.get(i));
+            readers.add(reader);
+            own.add(reader);
+            Map<String, ChannelZipReader.Entry> entries = new HashMap<>();
+            metadata.add(entries);
+            reader.entries(entry -> {
+                if (entry.getName().startsWith(BlobRestoreRunner.METADATA_PREFIX)) {
+                    entries.put(entry.getName(), entry);
+                } else {
+                    files.put(entry.getName(), new Source(reader, entry, null));
+                }
+            });
+            if (i == 0 && entries.containsKey(BlobBackupRunner.PARTS_ENTRY)) {
+                for (String part : BlobRestoreRunner.readLines(reader, entries.get(BlobBackupRunner.PARTS_ENTRY))) {
+                    parts.add(part);
+                    archives.add(BlobRestoreRunner.resolvePart(archive, part));
+                }
+            }
+            for (ChannelZipReader.Entry segment : entries.values()) {
+                if (PackSegment.isSegment(segment.getName())) {
+                    try (PackSegment.Reader pack = new PackSegment.Reader(reader.openStream(segment))) {
+                        for (int j = 0; j < pack.size(); j++) {
+                            files.put(pack.getName(j), new Source(reader, segment, null, true));
+                        }
+                    }
+                }
+            }
+            ChannelZipReader.Entry contentIndex = entries.get(DedupBlobArchiveWriter.CONTENT_INDEX_ENTRY);
+            if (contentIndex != null) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(reader.openStream(contentIndex), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        int tab = line.lastIndexOf('\t');
+                        if (tab >= 0) {
+                            files.put(line.substring(0, tab), new Source(null, null, line.substring(tab + 1)));
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < archives.size(); i++) {
+            ChannelZipReader.Entry deleted = metadata.get(i).get(BlobBackupRunner.DELETED_ENTRY);
+            if (deleted != null) {
+                for (String name : BlobRestoreRunner.readLines(own.get(i), deleted)) {
+                    files.remove(name);
+                }
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,250 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the number of active workers of a blob store backup to what its storage sustains. Workers are started up to
+ * {@link #MAX_WORKERS}, but only as many as the tuner allows copy files at a time; throughput (bytes/s and files/s of
+ * the files completed) is measured over windows of a few seconds and the allowed number hill-climbs: it grows by a
+ * quarter while throughput grows, goes back to the previous number when throughput stops growing or drops, and
+ * probes again in the other direction after a while, so it follows changes of load during the backup. Fewer workers
+ * win ties, and a smaller number is kept only while throughput stays within a few percent of the best one measured.
+ * <p>
+ * The number reached is logged and saved in a state file per blob store ({@code <blob store>.workers} in the backup
+ * location), where the next backup of the blob store starts from, so each installation converges on the parallelism
+ * of its own hardware.
+ *
+ */
+public class WorkerTuner {
+
+    /**
+     * Extension of state files, appended to the blob store name
+     */
+    public static final String EXTENSION = ".workers";
+
+    /**
+     * Maximum number of active workers
+     */
+    public static final int MAX_WORKERS = 64;
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Files a window needs to be significant, otherwise it is extended
+     */
+    private static final int MIN_WINDOW_FILES = 50;
+
+    /**
+     * Relative change of throughput taken as a real change rather than noise
+     */
+    private static final double THRESHOLD = 0.05;
+
+    /**
+     * Windows spent at a settled number of workers before probing again
+     */
+    private static final int HOLD_WINDOWS = 10;
+
+    private static final String WORKERS_PROPERTY = "workers";
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final String name;
+
+    private final Path file;
+
+    private int workers;
+
+    private int active;
+
+    private long windowStart = System.nanoTime();
+
+    private long windowBytes;
+
+    private long windowFiles;
+
+    /**
+     * Number of workers throughput is compared against, with its throughput. 0 until the first window is measured
+     */
+    private int settled;
+
+    private double settledBytesRate;
+
+    private double settledFilesRate;
+
+    private int direction = 1;
+
+    private int hold;
+
+    /**
+     * @param name
+     *            blob store name, for logging
+     * @param file
+     *            state file of the blob store, see {@link #of(Path, String)}
+     * @param defaultWorkers
+     *            number of workers to start with when the state file does not exist yet
+     */
+    public WorkerTuner(final String name, final Path file, final int defaultWorkers) {
+        this.name = name;
+        this.file = file;
+        int remembered = 0;
+        if (Files.isRegularFile(file)) {
+            Properties state = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                state.load(in);
+                remembered = Integer.parseInt(state.getProperty(WORKERS_PROPERTY, "0"));
+            } catch (IOException | NumberFormatException e) {
+                log.warn("ignoring worker state {} of blob store {}: {}", file, name, e.toString());
+            }
+        }
+        this.workers = clamp(remembered > 0 ? remembered : defaultWorkers);
+        log.info("backup of blob store {} starts with {} workers ({})", name, workers, remembered > 0 ? "remembered" : "default");
+    }
+
+    /**
+     * @return state file of a blob store in the backup location
+     */
+    public static Path of(final Path backupFolder, final String blobStoreName) {
+        return backupFolder.resolve(blobStoreName + EXTENSION);
+    }
+
+    /**
+     * @return number of workers currently allowed
+     */
+    public synchronized int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Waits until one more worker is allowed to run
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (active >= workers) {
+            wait();
+        }
+        active++;
+    }
+
+    /**
+     * Releases a worker that did not complete a file, e.g. one that failed or was skipped
+     */
+    public synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Releases a worker that completed a file, adjusting the number of workers at the end of a window
+     *
+     * @param bytes
+     *            size of the file
+     */
+    public synchronized void completed(final long bytes) {
+        active--;
+        windowBytes += bytes;
+        windowFiles++;
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS && windowFiles >= MIN_WINDOW_FILES) {
+            adjust((now - windowStart) / 1e9);
+            windowStart = now;
+            windowBytes = 0;
+            windowFiles = 0;
+        }
+        notifyAll();
+    }
+
+    private void adjust(final double seconds) {
+        double bytesRate = windowBytes / seconds;
+        double filesRate = windowFiles / seconds;
+        if (settled == 0 || hold == 1) {
+            // measure the settled number of workers again before probing, load may have changed meanwhile
+            settle(workers, bytesRate, filesRate);
+            hold = 0;
+            probe(bytesRate, filesRate);
+            return;
+        }
+        if (hold > 0) {
+            hold--;
+            return;
+        }
+        // geometric mean, so that neither bytes nor files dominate whatever the size of files
+        double gain = Math.sqrt(ratio(bytesRate, settledBytesRate) * ratio(filesRate, settledFilesRate));
+        if (direction > 0 && gain > 1 + THRESHOLD) {
+            settle(workers, bytesRate, filesRate);
+            probe(bytesRate, filesRate);
+        } else if (direction < 0 && gain > 1 - THRESHOLD) {
+            // as good with fewer workers, compared against the best throughput so that losses do not add up
+            settled = workers;
+            probe(bytesRate, filesRate);
+        } else {
+            log.debug("backup of blob store {} back to {} workers: {} workers reached {}/s, {} files/s", name, settled, workers,
+                    BlobBackupRunner.humanReadableByteCountBin((long) bytesRate), (long) filesRate);
+            workers = settled;
+            direction = -direction;
+            hold = HOLD_WINDOWS;
+        }
+    }
+
+    private void settle(final int count, final double bytesRate, final double filesRate) {
+        settled = count;
+        settledBytesRate = bytesRate;
+        settledFilesRate = filesRate;
+    }
+
+    /**
+     * Moves the number of workers one step in the current direction, or holds when it is at a bound
+     */
+    private void probe(final double bytesRate, final double filesRate) {
+        int next = clamp(workers + direction * Math.max(1, workers / 4));
+        if (next == workers) {
+            direction = -direction;
+            hold = HOLD_WINDOWS;
+            return;
+        }
+        log.debug("backup of blob store {} tries {} workers: {} workers reached {}/s, {} files/s", name, next, workers,
+                BlobBackupRunner.humanReadableByteCountBin((long) bytesRate), (long) filesRate);
+        workers = next;
+    }
+
+    private static double ratio(final double rate, final double reference) {
+        return reference > 0 ? rate / reference : 1 + THRESHOLD * 2;
+    }
+
+    private static int clamp(final int count) {
+        return Math.max(1, Math.min(MAX_WORKERS, count));
+    }
+
+    /**
+     * Logs and saves the number of workers reached, unless the backup was too short to measure it
+     */
+    public synchronized void finish() {
+        if (settled == 0) {
+            log.info("backup of blob store {} too short to tune its workers, keeping {}", name, workers);
+            return;
+        }
+        log.info("backup of blob store {} settled on {} workers ({}/s, {} files/s), remembered for next backup", name, settled,
+                BlobBackupRunner.humanReadableByteCountBin((long) settledBytesRate), (long) settledFilesRate);
+        Properties state = new Properties();
+        state.setProperty(WORKERS_PROPERTY, Integer.toString(settled));
+        state.setProperty("bytesPerSecond", Long.toString((long) settledBytesRate));
+        state.setProperty("filesPerSecond", Long.toString((long) settledFilesRate));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            state.store(content, null);
+            Files.write(tmp, content.toByteArray());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("unable to save worker state {} of blob store {}: {}", file, name, e.toString());
+        }
+    }
+}
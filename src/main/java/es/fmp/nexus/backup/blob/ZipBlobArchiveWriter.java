@@ -0,0 +1,111 @@
+package es.fmp.nexus.backup.blob;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import es.fmp.nexus.backup.BackupOutput;
+
+/**
+ * Writes blob store files into a zip file, as STORED entries copied with zero-copy transfers or, when a compression
+ * level is set, as DEFLATED entries compressed in parallel
+ *
+ */
+public class ZipBlobArchiveWriter implements BlobArchiveWriter {
+
+    private final ChannelZipWriter zip;
+
+    public ZipBlobArchiveWriter(final Path zipFile) throws IOException {
+        this(zipFile, null);
+    }
+
+    /**
+     * @param zipFile
+     *            archive to create
+     * @param deflater
+     *            compressor for file entries, null to store them uncompressed
+     * @throws IOException
+     *             if file cannot be created
+     */
+    public ZipBlobArchiveWriter(final Path zipFile, final ParallelDeflater deflater) throws IOException {
+        this(zipFile, null, deflater);
+    }
+
+    /**
+     * @param zipFile
+     *            archive to create, only naming it when streamed
+     * @param output
+     *            output the archive is streamed to instead of the file, null to write the file
+     * @param deflater
+     *            compressor for file entries, null to store them uncompressed
+     * @throws IOException
+     *             if file cannot be created
+     */
+    public ZipBlobArchiveWriter(final Path zipFile, final BackupOutput output, final ParallelDeflater deflater) throws IOException {
+        this.zip = new ChannelZipWriter(zipFile, output, deflater);
+    }
+
+    /**
+     * Writes the index of the blob files of the archive next to it once finished, see {@link BlobArchiveIndex}
+     *
+     * @return this writer
+     */
+    public ZipBlobArchiveWriter indexed() {
+        zip.setIndex(new BlobArchiveIndex.Writer(BlobArchiveIndex.of(zip.getFile())));
+        return this;
+    }
+
+    @Override
+    public long write(final BlobFile file) throws IOException {
+        if (file.isDirectory()) {
+            return zip.putDirectory(file.getName(), file.getLastModified()).getCompressedSize();
+        }
+        // compressed entries are written later, so account for whatever the archive grew meanwhile
+        long start = zip.position();
+        ChannelZipWriter.Entry entry = zip.putFile(file.getName(), file.getPath(), file.getLastModified());
+        return entry != null ? entry.getCompressedSize() : zip.position() - start;
+    }
+
+    @Override
+    public long getReadNanos() {
+        return zip.getReadNanos();
+    }
+
+    @Override
+    public void write(final String name, final Path content) throws IOException {
+        zip.putFile(name, content, System.currentTimeMillis());
+    }
+
+    @Override
+    public void write(final String name, final byte[] content) throws IOException {
+        zip.putBytes(name, content, System.currentTimeMillis());
+    }
+
+    /**
+     * Archives content built in memory, compressed like small files when a compression level is set
+     */
+    void writeContent(final String name, final byte[] content) throws IOException {
+        zip.putContent(name, content, System.currentTimeMillis());
+    }
+
+    /**
+     * @return archive file
+     */
+    public Path getFile() {
+        return zip.getFile();
+    }
+
+    @Override
+    public long size() {
+        return zip.position();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        zip.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
@@ -12,10 +12,15 @@
  */
 package es.fmp.nexus.backup.db;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import es.fmp.nexus.backup.s3.S3Storage;
 
 /**
  * Utilities for doing backups of databases
@@ -30,15 +35,54 @@ public interface DatabaseBackup
    */
   List<String> dbNames();
 
+  /**
+   * @param dbName The name of the database
+   * @return java.io.File Directory holding database files
+   */
+  File dbDirectory(String dbName);
+
+  /**
+   * @param dbName The name of the database
+   * @return size in bytes of database files, used to estimate the cost of its backup
+   */
+  long dbSize(String dbName);
+
+  /**
+   * Streams the blob references of the assets of the component database, without loading them in memory
+   *
+   * @param consumer receives the blob reference of every asset having one, as stored in the database (e.g.
+   *          {@code default@<node id>:<blob id>})
+   * @return number of assets read
+   */
+  long assetBlobRefs(Consumer<String> consumer);
+
   /**
    * Creates a backup job
    *
    * @param backupFolder Name of folder where backup file will be created
    * @param dbName The name of the database being backed up
    * @param timestamp a timestamp indicating when the backup was taken
+   * @param cancellation whether the task running the backup has been cancelled, stopping the backup
+   * @param storage object storage the backup file is streamed to instead of the backup folder, null for none
    * @return java.util.concurrent.Callable For storing backup data
    * @throws IOException
    */
-  Callable<Void> fullBackup(String backupFolder, String dbName, LocalDateTime timestamp) throws IOException;
+  Callable<Void> fullBackup(String backupFolder, String dbName, LocalDateTime timestamp, BooleanSupplier cancellation,
+                            S3Storage storage) throws IOException;
+
+  /**
+   * Creates a backup job in two stages, so that the database is frozen for as little as possible
+   *
+   * @param backupFolder Name of folder where backup file will be created
+   * @param dbName The name of the database being backed up
+   * @param timestamp a timestamp indicating when the backup was taken
+   * @param cancellation whether the task running the backup has been cancelled, stopping the backup
+   * @param storage object storage the backup file is streamed to instead of the backup folder, null for none
+   * @return java.util.concurrent.Callable Exporting the database uncompressed into a staging file next to the backup
+   *         file, returning the job that compresses it into the backup file once databases are released
+   * @throws IOException
+   */
+  Callable<Callable<Void>> stagedBackup(String backupFolder, String dbName, LocalDateTime timestamp,
+                                        BooleanSupplier cancellation, S3Storage storage) throws IOException;
 
 }
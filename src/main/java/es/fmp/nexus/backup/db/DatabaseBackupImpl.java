@@ -14,9 +14,16 @@ package es.fmp.nexus.backup.db;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -32,6 +39,10 @@ import org.sonatype.nexus.orient.restore.RestoreFile;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+import es.fmp.nexus.backup.s3.S3Storage;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -47,6 +58,16 @@ public class DatabaseBackupImpl
     implements DatabaseBackup
 {
 
+  private static final String DB_DIR = "db";
+
+  private static final String STAGING_EXTENSION = ".staging";
+
+  private static final String COMPONENT_DB = "component";
+
+  private static final String ASSET_CLASS = "asset";
+
+  private static final String P_BLOB_REF = "blob_ref";
+
   private final DatabaseServer databaseServer;
 
   private final DatabaseManager databaseManager;
@@ -70,10 +91,27 @@ public class DatabaseBackupImpl
   }
 
   @Override
-  public Callable<Void> fullBackup(final String backupFolder, final String dbName, final LocalDateTime timestamp) throws IOException {
+  public Callable<Void> fullBackup(final String backupFolder, final String dbName, final LocalDateTime timestamp,
+                                   final BooleanSupplier cancellation, final S3Storage storage) throws IOException
+  {
     File backupFile = checkTarget(backupFolder, dbName, timestamp);
     return new DatabaseBackupRunner(databaseManager.instance(dbName), backupFile,
-        databaseManager.getBackupCompressionLevel(), databaseManager.getBackupBufferSize());
+        databaseManager.getBackupCompressionLevel(), databaseManager.getBackupBufferSize(), cancellation, null, storage);
+  }
+
+  @Override
+  public Callable<Callable<Void>> stagedBackup(final String backupFolder, final String dbName, final LocalDateTime timestamp,
+                                               final BooleanSupplier cancellation, final S3Storage storage)
+      throws IOException
+  {
+    File backupFile = checkTarget(backupFolder, dbName, timestamp);
+    DatabaseBackupRunner runner = new DatabaseBackupRunner(databaseManager.instance(dbName), backupFile,
+        databaseManager.getBackupCompressionLevel(), databaseManager.getBackupBufferSize(), cancellation,
+        new File(backupFile.getParentFile(), backupFile.getName() + STAGING_EXTENSION), storage);
+    return () -> {
+      runner.call();
+      return runner.compression();
+    };
   }
 
   @VisibleForTesting
@@ -98,4 +136,47 @@ public class DatabaseBackupImpl
     return ImmutableList.copyOf(databaseServer.databases());
   }
 
+  @Override
+  public File dbDirectory(final String dbName) {
+    return new File(applicationDirectories.getWorkDirectory(DB_DIR), dbName);
+  }
+
+  @Override
+  public long dbSize(final String dbName) {
+    Path dir = dbDirectory(dbName).toPath();
+    if (!Files.isDirectory(dir)) {
+      return 0;
+    }
+    try (Stream<Path> files = Files.find(dir, Integer.MAX_VALUE, (path, attributes) -> attributes.isRegularFile())) {
+      return files.mapToLong(path -> {
+        try {
+          return Files.readAttributes(path, BasicFileAttributes.class).size();
+        }
+        catch (IOException e) {
+          return 0;
+        }
+      }).sum();
+    }
+    catch (IOException | UncheckedIOException e) {
+      log.warn("unable to determine size of database {}: {}", dbName, e.toString());
+      return 0;
+    }
+  }
+
+  @Override
+  public long assetBlobRefs(final Consumer<String> consumer) {
+    long assets = 0;
+    // browsing reads records one cluster page at a time, whatever the number of assets
+    try (ODatabaseDocumentTx db = databaseManager.instance(COMPONENT_DB).acquire()) {
+      for (ODocument asset : db.browseClass(ASSET_CLASS)) {
+        Object blobRef = asset.field(P_BLOB_REF);
+        if (blobRef != null) {
+          consumer.accept(blobRef.toString());
+        }
+        assets++;
+      }
+    }
+    return assets;
+  }
+
 }
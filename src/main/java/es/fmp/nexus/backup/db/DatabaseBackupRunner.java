@@ -12,22 +12,50 @@
  */
 package es.fmp.nexus.backup.db;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.sonatype.nexus.orient.DatabaseInstance;
 
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import es.fmp.nexus.backup.BackupChecksums;
+import es.fmp.nexus.backup.BackupOutput;
+import es.fmp.nexus.backup.blob.BlobBackupRunner;
+import es.fmp.nexus.backup.s3.S3Storage;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.sonatype.nexus.orient.transaction.OrientTransactional.inTx;
 
 /**
- * Background thread that creates the database backup
+ * Background thread that creates the database backup. The SHA-256 of the backup file is computed as it is written and
+ * recorded in a {@link BackupChecksums} manifest next to it. Cancellation of the task is checked on every write, so
+ * the backup stops promptly and databases can be released. Incomplete backup files are deleted
+ * <p>
+ * With a staging file, the database is exported uncompressed into it, so the time the database is frozen is bound by
+ * read and write speed rather than by deflate. {@link #compression()} then deflates it into the backup file once
+ * databases are released, entry by entry, so the backup is the same zip archive OrientDB restores from.
+ * <p>
+ * With an object storage, the backup file is streamed to it instead of being written into the backup folder, along
+ * with its checksum manifest once complete. Only the staging file, when there is one, is written locally.
  *
  * @since 3.2
  */
@@ -43,6 +71,12 @@ public class DatabaseBackupRunner implements Callable<Void> {
 
     private final int bufferSize;
 
+    private final BooleanSupplier cancellation;
+
+    private final File stagingFile;
+
+    private final S3Storage storage;
+
     /**
      * Constructor to instantiate thread for executing database backup
      *
@@ -56,28 +90,212 @@ public class DatabaseBackupRunner implements Callable<Void> {
      * @param bufferSize
      *            from {@link com.orientechnologies.orient.core.util.OBackupable} Buffer size in bytes, the bigger is the buffer, the more efficient will be the
      *            compression
+     * @param cancellation
+     *            whether the task running the backup has been cancelled
      */
-    public DatabaseBackupRunner(final DatabaseInstance databaseInstance, final File backupFile, final int compressionLevel, final int bufferSize) {
+    public DatabaseBackupRunner(final DatabaseInstance databaseInstance, final File backupFile, final int compressionLevel, final int bufferSize,
+            final BooleanSupplier cancellation) {
+        this(databaseInstance, backupFile, compressionLevel, bufferSize, cancellation, null);
+    }
+
+    /**
+     * Constructor to instantiate thread for executing database backup, optionally exporting the database
+     * uncompressed into a staging file compressed by {@link #compression()}
+     *
+     * @param databaseInstance
+     *            the database that will be backed up
+     * @param backupFile
+     *            the backup data will be written onto this file
+     * @param compressionLevel
+     *            ZIP compression level between 1 (the minimum) and 9 (maximum) of the backup file
+     * @param bufferSize
+     *            buffer size in bytes of the database export
+     * @param cancellation
+     *            whether the task running the backup has been cancelled
+     * @param stagingFile
+     *            file the database is exported into, null to export it straight into the backup file
+     */
+    public DatabaseBackupRunner(final DatabaseInstance databaseInstance, final File backupFile, final int compressionLevel, final int bufferSize,
+            final BooleanSupplier cancellation, final File stagingFile) {
+        this(databaseInstance, backupFile, compressionLevel, bufferSize, cancellation, stagingFile, null);
+    }
+
+    /**
+     * Constructor to instantiate thread for executing database backup, optionally exporting the database
+     * uncompressed into a staging file compressed by {@link #compression()} and streaming the backup file to object
+     * storage
+     *
+     * @param databaseInstance
+     *            the database that will be backed up
+     * @param backupFile
+     *            the backup data will be written onto this file, only naming it when streamed to object storage
+     * @param compressionLevel
+     *            ZIP compression level between 1 (the minimum) and 9 (maximum) of the backup file
+     * @param bufferSize
+     *            buffer size in bytes of the database export
+     * @param cancellation
+     *            whether the task running the backup has been cancelled
+     * @param stagingFile
+     *            file the database is exported into, null to export it straight into the backup file
+     * @param storage
+     *            object storage the backup file is streamed to, null to write it into the backup folder
+     */
+    public DatabaseBackupRunner(final DatabaseInstance databaseInstance, final File backupFile, final int compressionLevel, final int bufferSize,
+            final BooleanSupplier cancellation, final File stagingFile, final S3Storage storage) {
         this.databaseInstance = checkNotNull(databaseInstance);
         this.backupFile = checkNotNull(backupFile);
         this.compressionLevel = checkNotNull(compressionLevel);
         this.bufferSize = checkNotNull(bufferSize);
+        this.cancellation = checkNotNull(cancellation);
+        this.stagingFile = stagingFile;
+        this.storage = storage;
     }
 
     @Override
     public Void call() throws Exception {
-        try (final OutputStream backupOutputStream = new FileOutputStream(backupFile)) {
-            inTx(() -> databaseInstance).throwing(IOException.class).run(db -> {
-                db.backup(backupOutputStream, null, null, iText -> {
-                    // these messages are a bit chatty, so only visible at debug
-                    log.debug("database backup of {}, received message '{}'", databaseInstance.getName(), iText);
-                }, compressionLevel, bufferSize);
+        long start = System.currentTimeMillis();
+        MessageDigest digest = BackupChecksums.newDigest();
+        try (BackupChecksums.Writer checksums = stagingFile == null ? new BackupChecksums.Writer(BackupChecksums.of(backupFile.toPath())) : null;
+                BackupOutput upload = stagingFile == null ? openUpload() : null) {
+            File exportFile = stagingFile != null ? stagingFile : backupFile;
+            // the export stream may be closed by the database, the upload is only committed once the backup is complete
+            try (final CancelableOutputStream backupOutputStream = new CancelableOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(upload != null ? upload.unclosable() : new FileOutputStream(exportFile), 256 * 1024), digest))) {
+                backupOutputStream.checkCancellation();
+                inTx(() -> databaseInstance).throwing(IOException.class).run(db -> {
+                    db.backup(backupOutputStream, null, null, iText -> {
+                        // these messages are a bit chatty, so only visible at debug
+                        log.debug("database backup of {}, received message '{}'", databaseInstance.getName(), iText);
+                    }, stagingFile != null ? 0 : compressionLevel, bufferSize);
+                });
+            }
+            if (checksums != null) {
+                checksums.commit(backupFile.getName(), upload != null ? upload.size() : backupFile.length(), digest.digest());
+                if (upload != null) {
+                    upload.commit();
+                }
                 log.info("database backup of {} completed successfully", databaseInstance.getName());
-            });
+            } else {
+                log.info("database export of {} completed in {} ({}), compressing it once databases are released", databaseInstance.getName(),
+                        DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"),
+                        BlobBackupRunner.humanReadableByteCountBin(stagingFile.length()));
+            }
         } catch (Throwable e) { // NOSONAR
-            throw new RuntimeException(String.format("database backup of %s failed", databaseInstance.getName()), e);
+            throw failure(e, "database backup of %s");
         }
         return null;
     }
 
+    /**
+     * @return job deflating the export in the staging file into the backup file, deleting the staging file
+     */
+    public Callable<Void> compression() {
+        checkNotNull(stagingFile);
+        return () -> {
+            long start = System.currentTimeMillis();
+            MessageDigest digest = BackupChecksums.newDigest();
+            byte[] buffer = new byte[256 * 1024];
+            try (BackupChecksums.Writer checksums = new BackupChecksums.Writer(BackupChecksums.of(backupFile.toPath()));
+                    BackupOutput upload = openUpload()) {
+                try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(stagingFile), 256 * 1024));
+                        CancelableOutputStream cancelable = new CancelableOutputStream(new DigestOutputStream(
+                                new BufferedOutputStream(upload != null ? upload.unclosable() : new FileOutputStream(backupFile), 256 * 1024), digest));
+                        ZipOutputStream out = new ZipOutputStream(cancelable)) {
+                    out.setLevel(compressionLevel);
+                    ZipEntry entry;
+                    while ((entry = in.getNextEntry()) != null) {
+                        ZipEntry compressed = new ZipEntry(entry.getName());
+                        compressed.setTime(entry.getTime());
+                        out.putNextEntry(compressed);
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, n);
+                        }
+                        out.closeEntry();
+                    }
+                }
+                long backupSize = upload != null ? upload.size() : backupFile.length();
+                checksums.commit(backupFile.getName(), backupSize, digest.digest());
+                if (upload != null) {
+                    upload.commit();
+                }
+                long exportSize = stagingFile.length();
+                Files.delete(stagingFile.toPath());
+                log.info("database backup of {} completed successfully, export compressed from {} to {} in {}", databaseInstance.getName(),
+                        BlobBackupRunner.humanReadableByteCountBin(exportSize), BlobBackupRunner.humanReadableByteCountBin(backupSize),
+                        DurationFormatUtils.formatDuration(System.currentTimeMillis() - start, "HH:mm:ss.S"));
+            } catch (Throwable e) { // NOSONAR
+                throw failure(e, "compression of database backup of %s");
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Starts the upload of the backup file to object storage, if any. The empty file reserving its name in the backup
+     * folder is deleted, as nothing is written there
+     *
+     * @return upload, or null when the backup file is written into the backup folder
+     */
+    private BackupOutput openUpload() throws IOException {
+        if (storage == null) {
+            return null;
+        }
+        Files.deleteIfExists(backupFile.toPath());
+        return storage.create(storage.key(backupFile.getParentFile().getName(), backupFile.getName()), BackupChecksums.of(backupFile.toPath()));
+    }
+
+    /**
+     * Deletes the files of a backup that did not complete
+     *
+     * @return exception to throw
+     */
+    private RuntimeException failure(final Throwable e, final String what) {
+        try {
+            // an incomplete backup must never be restored
+            Files.deleteIfExists(backupFile.toPath());
+            if (stagingFile != null) {
+                Files.deleteIfExists(stagingFile.toPath());
+            }
+            if (storage != null) {
+                // uploads are discarded unless complete, which the checksum manifest may not be
+                storage.delete(storage.key(backupFile.getParentFile().getName(), backupFile.getName()));
+            }
+        } catch (IOException deleteFailure) {
+            e.addSuppressed(deleteFailure);
+        }
+        if (cancellation.getAsBoolean()) {
+            log.warn("{} cancelled", String.format(what, databaseInstance.getName()));
+            return new CancellationException(String.format(what + " cancelled", databaseInstance.getName()));
+        }
+        return new RuntimeException(String.format(what + " failed", databaseInstance.getName()), e);
+    }
+
+    /**
+     * Fails the next write once the task is cancelled, aborting the database backup
+     */
+    private class CancelableOutputStream extends FilterOutputStream {
+        CancelableOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        void checkCancellation() throws InterruptedIOException {
+            if (cancellation.getAsBoolean()) {
+                throw new InterruptedIOException("database backup of " + databaseInstance.getName() + " cancelled");
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            checkCancellation();
+            out.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            checkCancellation();
+            out.write(b, off, len);
+        }
+    }
+
 }
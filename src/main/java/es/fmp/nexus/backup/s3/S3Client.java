@@ -0,0 +1,378 @@
+package es.fmp.nexus.backup.s3;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.BackupChecksums;
+
+/**
+ * Minimal client of the S3 API, enough to upload backup files to any S3-compatible object storage (AWS S3, MinIO,
+ * Ceph...): single object uploads, multipart uploads and deletes. Requests are signed with AWS Signature Version 4
+ * and use path-style addressing ({@code <endpoint>/<bucket>/<key>}, after the path of the endpoint if it has one, e.g.
+ * behind a reverse proxy), supported by every implementation. Failed requests are retried a few times, as a multipart
+ * upload of a large backup makes thousands of them, except the creation of multipart uploads: a failed attempt may
+ * still have created one, which a retry would leave behind.
+ *
+ */
+public class S3Client implements Closeable {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    private static final String SERVICE = "s3";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY = 500;
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private static final Pattern ERROR = Pattern.compile("<Error>.*?<Code>([^<]*)</Code>(?:.*?<Message>([^<]*)</Message>)?", Pattern.DOTALL);
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final URI endpoint;
+
+    private final String region;
+
+    private final String bucket;
+
+    private final String accessKey;
+
+    private final String secretKey;
+
+    private final CloseableHttpClient client;
+
+    /**
+     * @param endpoint
+     *            endpoint URL, e.g. {@code https://s3.eu-west-1.amazonaws.com} or {@code http://minio:9000}
+     * @param region
+     *            region requests are signed for ({@code us-east-1} for most S3-compatible servers)
+     * @param bucket
+     *            bucket backup files are uploaded to
+     * @param accessKey
+     *            access key id
+     * @param secretKey
+     *            secret access key
+     * @param connections
+     *            maximum number of concurrent connections
+     */
+    public S3Client(final URI endpoint, final String region, final String bucket, final String accessKey, final String secretKey,
+            final int connections) {
+        this.endpoint = checkNotNull(endpoint);
+        this.region = checkNotNull(region);
+        this.bucket = checkNotNull(bucket);
+        this.accessKey = checkNotNull(accessKey);
+        this.secretKey = checkNotNull(secretKey);
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(Math.max(2, connections));
+        connectionManager.setDefaultMaxPerRoute(Math.max(2, connections));
+        this.client = HttpClients.custom().setConnectionManager(connectionManager).disableContentCompression().build();
+    }
+
+    /**
+     * Uploads an object in a single request
+     *
+     * @throws IOException
+     *             on request failure
+     */
+    public void putObject(final String key, final byte[] data, final int length) throws IOException {
+        execute(new HttpPut(), key, null, data, length);
+    }
+
+    /**
+     * Deletes an object, if it exists
+     *
+     * @throws IOException
+     *             on request failure
+     */
+    public void deleteObject(final String key) throws IOException {
+        execute(new HttpDelete(), key, null, null, 0);
+    }
+
+    /**
+     * Starts a multipart upload
+     *
+     * @return upload id
+     * @throws IOException
+     *             on request failure
+     */
+    public String createMultipartUpload(final String key) throws IOException {
+        // not retried, a request failing after the upload was created would leave it behind
+        String response = execute(new HttpPost(), key, query("uploads", ""), new byte[0], 0, 1, created -> {
+            // body is enough
+        });
+        Matcher matcher = UPLOAD_ID.matcher(response);
+        if (!matcher.find()) {
+            throw new IOException("no upload id in response to multipart upload of " + key);
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * Uploads a part of a multipart upload. Every part but the last one must be at least 5 MiB
+     *
+     * @param partNumber
+     *            part number, from 1 to 10000
+     * @return ETag of the part, needed to complete the upload
+     * @throws IOException
+     *             on request failure
+     */
+    public String uploadPart(final String key, final String uploadId, final int partNumber, final byte[] data, final int length) throws IOException {
+        Map<String, String> query = query("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", uploadId);
+        String[] etag = new String[1];
+        execute(new HttpPut(), key, query, data, length, MAX_ATTEMPTS, response -> {
+            Header header = response.getFirstHeader("ETag");
+            etag[0] = header != null ? header.getValue() : null;
+        });
+        if (etag[0] == null) {
+            throw new IOException(String.format("no ETag in response to upload of part %d of %s", partNumber, key));
+        }
+        return etag[0];
+    }
+
+    /**
+     * Completes a multipart upload, making the object visible
+     *
+     * @param etags
+     *            ETags of the parts, in part order
+     * @throws IOException
+     *             on request failure
+     */
+    public void completeMultipartUpload(final String key, final String uploadId, final List<String> etags) throws IOException {
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(escape(etags.get(i))).append("</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+        byte[] data = body.toString().getBytes(StandardCharsets.UTF_8);
+        // failures may come as 200 responses with an error document
+        String response = execute(new HttpPost(), key, query("uploadId", uploadId), data, data.length);
+        Matcher error = ERROR.matcher(response);
+        if (error.find()) {
+            throw new IOException(String.format("completion of multipart upload of %s failed: %s %s", key, error.group(1),
+                    error.group(2) != null ? error.group(2) : ""));
+        }
+    }
+
+    /**
+     * Aborts a multipart upload, discarding its parts
+     *
+     * @throws IOException
+     *             on request failure
+     */
+    public void abortMultipartUpload(final String key, final String uploadId) throws IOException {
+        execute(new HttpDelete(), key, query("uploadId", uploadId), null, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    private interface ResponseHandler {
+        void handle(HttpResponse response) throws IOException;
+    }
+
+    private String execute(final HttpRequestBase request, final String key, final Map<String, String> query, final byte[] data, final int length)
+            throws IOException {
+        return execute(request, key, query, data, length, MAX_ATTEMPTS, response -> {
+            // body is enough
+        });
+    }
+
+    private String execute(final HttpRequestBase request, final String key, final Map<String, String> query, final byte[] data, final int length,
+            final int maxAttempts, final ResponseHandler handler) throws IOException {
+        // signed as sent, so that endpoints with a path (e.g. https://host/s3) are signed right
+        String endpointPath = endpoint.getRawPath() != null ? endpoint.getRawPath().replaceAll("/+$", "") : "";
+        String path = endpointPath + "/" + encode(bucket, false) + "/" + encode(key, true);
+        String canonicalQuery = canonicalQuery(query);
+        request.setURI(URI.create(endpoint.getScheme() + "://" + endpoint.getRawAuthority() + path + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery)));
+        if (data != null && request instanceof HttpEntityEnclosingRequestBase) {
+            ((HttpEntityEnclosingRequestBase) request).setEntity(new ByteArrayEntity(data, 0, length));
+        }
+        String payloadHash = sha256(data != null ? data : new byte[0], data != null ? length : 0);
+
+        for (int attempt = 1;; attempt++) {
+            sign(request, path, canonicalQuery, payloadHash, ZonedDateTime.now(ZoneOffset.UTC));
+            try (CloseableHttpResponse response = client.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+                if (status < 300) {
+                    handler.handle(response);
+                    return body;
+                }
+                IOException failure = failure(request, key, status, body);
+                if (status < 500 || attempt >= maxAttempts) {
+                    throw failure;
+                }
+                log.debug("{}, retrying", failure.getMessage());
+            } catch (IOException e) {
+                if (e instanceof S3Exception || attempt >= maxAttempts) {
+                    throw e;
+                }
+                log.debug("{} {} failed, retrying: {}", request.getMethod(), key, e.toString());
+            }
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(request.getMethod() + " " + key + " interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Error response of the object storage
+     */
+    private static class S3Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        S3Exception(final String message) {
+            super(message);
+        }
+    }
+
+    private IOException failure(final HttpRequestBase request, final String key, final int status, final String body) {
+        Matcher error = ERROR.matcher(body);
+        String detail = error.find() ? error.group(1) + (error.group(2) != null ? " " + error.group(2) : "") : body;
+        return new S3Exception(String.format("%s %s in bucket %s failed with status %d: %s", request.getMethod(), key, bucket, status, detail));
+    }
+
+    /**
+     * Adds the Signature Version 4 headers to a request
+     *
+     * @param path
+     *            canonical URI, as sent
+     * @param time
+     *            signing time, in UTC
+     */
+    void sign(final HttpRequestBase request, final String path, final String canonicalQuery, final String payloadHash, final ZonedDateTime time)
+            throws IOException {
+        String amzDate = AMZ_DATE.format(time);
+        String date = amzDate.substring(0, 8);
+        String host = endpoint.getPort() < 0 ? endpoint.getHost() : endpoint.getHost() + ":" + endpoint.getPort();
+
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", payloadHash);
+        headers.put("x-amz-date", amzDate);
+        String signedHeaders = String.join(";", headers.keySet());
+
+        String canonicalRequest = canonicalRequest(request.getMethod(), path, canonicalQuery, headers, payloadHash);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8), -1);
+        try {
+            byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+            signingKey = hmac(signingKey, region);
+            signingKey = hmac(signingKey, SERVICE);
+            signingKey = hmac(signingKey, "aws4_request");
+            String signature = BackupChecksums.toHex(hmac(signingKey, stringToSign));
+
+            request.setHeader("Host", host);
+            request.setHeader("x-amz-content-sha256", payloadHash);
+            request.setHeader("x-amz-date", amzDate);
+            request.setHeader("Authorization",
+                    ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to sign request", e);
+        }
+    }
+
+    /**
+     * @param headers
+     *            signed headers by lower case name, sorted
+     * @return canonical request of Signature Version 4
+     */
+    static String canonicalRequest(final String method, final String path, final String canonicalQuery, final Map<String, String> headers,
+            final String payloadHash) {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        headers.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value).append('\n'));
+        return method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n" + String.join(";", headers.keySet()) + "\n" + payloadHash;
+    }
+
+    private static byte[] hmac(final byte[] key, final String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String sha256(final byte[] data, final int length) {
+        MessageDigest digest = BackupChecksums.newDigest();
+        digest.update(data, 0, length < 0 ? data.length : length);
+        return BackupChecksums.toHex(digest.digest());
+    }
+
+    private static Map<String, String> query(final String name, final String value) {
+        Map<String, String> query = new TreeMap<>();
+        query.put(name, value);
+        return query;
+    }
+
+    static String canonicalQuery(final Map<String, String> query) {
+        if (query == null) {
+            return "";
+        }
+        StringBuilder canonical = new StringBuilder();
+        query.forEach((name, value) -> canonical.append(canonical.length() > 0 ? "&" : "").append(encode(name, false)).append('=')
+                .append(encode(value, false)));
+        return canonical.toString();
+    }
+
+    /**
+     * URI encoding as specified by Signature Version 4: every byte but unreserved characters is percent-encoded
+     */
+    static String encode(final String value, final boolean keepSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~'
+                    || (keepSlash && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,180 @@
+package es.fmp.nexus.backup.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.fmp.nexus.backup.BackupOutput;
+
+/**
+ * Backup file streamed to object storage. Data is collected into a part buffer handed to the upload pool of the
+ * {@link S3Storage} as soon as it is full, so the next part is filled while previous ones are uploaded. The multipart
+ * upload is only started with the first full part: smaller files are uploaded in a single request on commit. Closing
+ * the stream before committing aborts the upload, discarding the parts already uploaded.
+ *
+ */
+class S3OutputStream extends BackupOutput {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final S3Storage storage;
+
+    private final String key;
+
+    private final Path[] sidecars;
+
+    private final List<Future<String>> parts = new ArrayList<>();
+
+    private String uploadId;
+
+    private byte[] buffer;
+
+    private int count;
+
+    private long size;
+
+    private boolean committed;
+
+    private boolean closed;
+
+    S3OutputStream(final S3Storage storage, final String key, final Path... sidecars) {
+        this.storage = storage;
+        this.key = key;
+        this.sidecars = sidecars;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (closed || committed) {
+            throw new IOException("upload of " + key + " already " + (committed ? "committed" : "closed"));
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (buffer == null) {
+                buffer = new byte[storage.partSize(parts.size() + 1)];
+            }
+            int n = Math.min(remaining, buffer.length - count);
+            System.arraycopy(b, offset, buffer, count, n);
+            count += n;
+            size += n;
+            offset += n;
+            remaining -= n;
+            if (count == buffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && !committed;
+    }
+
+    private void uploadPart() throws IOException {
+        int partNumber = parts.size() + 1;
+        if (partNumber > S3Storage.MAX_PARTS) {
+            throw new IOException(String.format("backup file %s exceeds the %d parts of a multipart upload", key, S3Storage.MAX_PARTS));
+        }
+        for (Future<String> part : parts) {
+            // fail fast instead of uploading the rest of a file that cannot be completed
+            if (part.isDone()) {
+                etag(part);
+            }
+        }
+        if (uploadId == null) {
+            uploadId = storage.getClient().createMultipartUpload(key);
+            log.debug("multipart upload of {} started", key);
+        }
+        final byte[] data = buffer;
+        final int length = count;
+        final String id = uploadId;
+        buffer = null;
+        count = 0;
+        parts.add(storage.submit(() -> storage.getClient().uploadPart(key, id, partNumber, data, length)));
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (committed) {
+            return;
+        }
+        if (closed) {
+            throw new IOException("upload of " + key + " already closed");
+        }
+        try {
+            if (uploadId == null) {
+                storage.getClient().putObject(key, buffer != null ? buffer : new byte[0], count);
+            } else {
+                if (count > 0) {
+                    uploadPart();
+                }
+                List<String> etags = new ArrayList<>();
+                for (Future<String> part : parts) {
+                    etags.add(etag(part));
+                }
+                storage.getClient().completeMultipartUpload(key, uploadId, etags);
+                log.debug("multipart upload of {} completed in {} parts", key, parts.size());
+            }
+            committed = true;
+            buffer = null;
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        for (Path sidecar : sidecars) {
+            if (Files.exists(sidecar)) {
+                storage.put(key.substring(0, key.lastIndexOf('/') + 1) + sidecar.getFileName(), sidecar);
+                Files.delete(sidecar);
+            }
+        }
+    }
+
+    private static String etag(final Future<String> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for upload of backup data");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed || committed) {
+            return;
+        }
+        closed = true;
+        buffer = null;
+        if (uploadId == null) {
+            return;
+        }
+        for (Future<String> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // upload is aborted anyway
+            }
+        }
+        storage.getClient().abortMultipartUpload(key, uploadId);
+        log.debug("multipart upload of {} aborted", key);
+    }
+}
@@ -0,0 +1,162 @@
+package es.fmp.nexus.backup.s3;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import es.fmp.nexus.backup.BackupOutput;
+
+/**
+ * Object storage backup files are streamed to instead of the backup location. Every backup file is uploaded as it is
+ * written with a multipart upload: data is cut into parts held in memory and uploaded by a pool shared by all backup
+ * files, so several parts of the same file go up at once. The number of parts waiting or being uploaded is bounded,
+ * writers block when it is reached, so memory use stays at most the part being filled by each file plus twice as
+ * many parts as uploads. Part size doubles every 1000 parts, as an upload holds at most 10000 parts.
+ *
+ */
+public class S3Storage implements Closeable {
+
+    /**
+     * Minimum part size of multipart uploads, except for the last part
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * Maximum number of parts of a multipart upload
+     */
+    public static final int MAX_PARTS = 10000;
+
+    private static final int PARTS_PER_SIZE = 1000;
+
+    private static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+
+    private final S3Client client;
+
+    private final String prefix;
+
+    private final int partSize;
+
+    private final ExecutorService uploads;
+
+    private final Semaphore buffers;
+
+    /**
+     * @param client
+     *            client of the bucket backup files are uploaded to
+     * @param prefix
+     *            prefix of the keys of backup files, may be empty
+     * @param partSize
+     *            size in bytes of the first parts of every upload, at least {@link #MIN_PART_SIZE}
+     * @param uploads
+     *            number of parts uploaded at the same time
+     */
+    public S3Storage(final S3Client client, final String prefix, final int partSize, final int uploads) {
+        this.client = checkNotNull(client);
+        this.prefix = prefix == null || prefix.isEmpty() || prefix.endsWith("/") ? (prefix == null ? "" : prefix) : prefix + "/";
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.uploads = Executors.newFixedThreadPool(Math.max(1, uploads),
+                new ThreadFactoryBuilder().setNameFormat("backupupload-%d").setDaemon(true).build());
+        this.buffers = new Semaphore(Math.max(1, uploads) * 2);
+    }
+
+    /**
+     * @param folder
+     *            folder of the backup location the backup file belongs to ({@code db} or {@code blob})
+     * @param name
+     *            name of the backup file
+     * @return key of the backup file
+     */
+    public String key(final String folder, final String name) {
+        return prefix + folder + "/" + name;
+    }
+
+    /**
+     * Starts the upload of a backup file
+     *
+     * @param key
+     *            key of the backup file
+     * @param sidecars
+     *            local files uploaded next to it under their own name and deleted once the backup file is committed,
+     *            such as its checksum manifest or index. Those not written are skipped
+     * @return output to stream the backup file into
+     */
+    public BackupOutput create(final String key, final Path... sidecars) {
+        return new S3OutputStream(this, key, sidecars);
+    }
+
+    /**
+     * Uploads a local file, in parts if large enough
+     *
+     * @throws IOException
+     *             if file cannot be read or uploaded
+     */
+    public void put(final String key, final Path file) throws IOException {
+        try (BackupOutput output = create(key)) {
+            Files.copy(file, output);
+            output.commit();
+        }
+    }
+
+    /**
+     * Deletes a backup file, if it exists
+     *
+     * @throws IOException
+     *             on request failure
+     */
+    public void delete(final String key) throws IOException {
+        client.deleteObject(key);
+    }
+
+    S3Client getClient() {
+        return client;
+    }
+
+    /**
+     * @return size of given part of an upload, doubling every {@link #PARTS_PER_SIZE} parts
+     */
+    int partSize(final int partNumber) {
+        long size = (long) partSize << Math.min(20, (partNumber - 1) / PARTS_PER_SIZE);
+        return (int) Math.min(MAX_PART_SIZE, size);
+    }
+
+    /**
+     * Queues the upload of a part, once the number of parts in flight allows it
+     */
+    Future<String> submit(final Callable<String> upload) throws IOException {
+        try {
+            buffers.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to upload backup data");
+        }
+        try {
+            return uploads.submit(() -> {
+                try {
+                    return upload.call();
+                } finally {
+                    buffers.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            buffers.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        uploads.shutdownNow();
+        client.close();
+    }
+}